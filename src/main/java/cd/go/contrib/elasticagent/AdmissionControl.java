@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Paces the pod creations and deletions the plugin sends to the Kubernetes API, so that a fan-out of hundreds of jobs
+ * does not get the API server to throttle the plugin.
+ * <p>
+ * Creations and deletions each go through a token bucket per cluster and one per elastic profile, refilled at the
+ * configured rate per second and holding at most a second's worth of tokens. Callers over a rate wait for a token,
+ * which takes at most a second.
+ * <p>
+ * A cluster that has {@link PluginSettings#getMaxPendingPodsPerCluster()} pods that are not running yet may stay
+ * full for as long as its nodes are. Creations over that cap are therefore not waited for, but parked, and handed
+ * back by {@link #releaseParked(String, IntSupplier)} once pods of the cluster have started or gone. They are queued
+ * rather than failed, and hold no thread while parked. At most {@link #PARKED_CREATIONS_PER_PENDING_POD} times the
+ * cap are parked, beyond that creations are rejected: GoCD asks again for the agents its jobs still need.
+ */
+public class AdmissionControl {
+    public static final int DEFAULT_CREATES_PER_SECOND_PER_CLUSTER = 10;
+    public static final int DEFAULT_CREATES_PER_SECOND_PER_PROFILE = 5;
+    public static final int DEFAULT_DELETES_PER_SECOND_PER_CLUSTER = 10;
+    public static final int DEFAULT_DELETES_PER_SECOND_PER_PROFILE = 5;
+    public static final int DEFAULT_MAX_PENDING_PODS_PER_CLUSTER = 100;
+    public static final int PARKED_CREATIONS_PER_PENDING_POD = 10;
+    private static final int PROFILE_BUCKET_TTL_MINUTES = 60;
+
+    private final Map<String, TokenBucket> clusterCreates = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> clusterDeletes = new ConcurrentHashMap<>();
+    private final Cache<String, TokenBucket> profileCreates = CacheBuilder.newBuilder()
+            .expireAfterAccess(PROFILE_BUCKET_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private final Cache<String, TokenBucket> profileDeletes = CacheBuilder.newBuilder()
+            .expireAfterAccess(PROFILE_BUCKET_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Admits the creation of a pod of <code>profileFingerprint</code> in <code>cluster</code>, once the rate limits
+     * allow it, unless the cluster has too many pods that are not running yet. Every admitted creation must be
+     * followed by {@link #createFinished(String)}.
+     *
+     * @param pendingPods the pods of the cluster that were created but are not running yet
+     * @param retry       the creation to hand back by {@link #releaseParked(String, IntSupplier)}, should it be parked
+     * @return false if the creation was parked
+     * @throws RejectedExecutionException if the creation would have been parked, but too many creations are already
+     */
+    public boolean admitCreate(String cluster, String profileFingerprint, PluginSettings settings, IntSupplier pendingPods, Runnable retry) throws InterruptedException {
+        Stats stats = stats(cluster);
+        int maxPending = settings.getMaxPendingPodsPerCluster();
+        synchronized (stats) {
+            stats.maxPending = maxPending;
+            if (pendingPods.getAsInt() + stats.creating >= maxPending) {
+                if (stats.parked.size() >= PARKED_CREATIONS_PER_PENDING_POD * maxPending) {
+                    throw new RejectedExecutionException(String.format("Cluster %s has %d or more pods that are not running yet, and %d creations are parked already.", cluster, maxPending, stats.parked.size()));
+                }
+                stats.pendingCapWaits.incrementAndGet();
+                stats.parked.add(retry);
+                LOG.info(String.format("[Admission Control] Cluster %s has %d or more pods that are not running yet, %d creation(s) are parked until some have started.", cluster, maxPending, stats.parked.size()));
+                return false;
+            }
+            // counted before the tokens are taken, so that concurrent creations do not get past the cap
+            stats.creating++;
+        }
+
+        stats.waiting.incrementAndGet();
+        try {
+            boolean throttled = !acquire(bucket(clusterCreates, cluster, settings.getCreatesPerSecondPerCluster()));
+            throttled |= !acquire(bucket(profileCreates.asMap(), profileFingerprint, settings.getCreatesPerSecondPerProfile()));
+            if (throttled) {
+                stats.throttledCreates.incrementAndGet();
+                LOG.debug(String.format("[Admission Control] Pod creation in cluster %s was rate limited.", cluster));
+            }
+            return true;
+        } catch (InterruptedException e) {
+            createFinished(cluster);
+            throw e;
+        } finally {
+            stats.waiting.decrementAndGet();
+        }
+    }
+
+    public void createFinished(String cluster) {
+        Stats stats = stats(cluster);
+        synchronized (stats) {
+            stats.creating--;
+        }
+    }
+
+    /**
+     * Takes as many parked creations as the cluster has room for, oldest first. They are admitted again when run,
+     * so a creation that finds the cluster full once more is parked again.
+     *
+     * @param pendingPods the pods of the cluster that were created but are not running yet
+     * @return the creations to run
+     */
+    public List<Runnable> releaseParked(String cluster, IntSupplier pendingPods) {
+        Stats stats = stats(cluster);
+        synchronized (stats) {
+            if (stats.parked.isEmpty()) {
+                return Collections.emptyList();
+            }
+            int room = stats.maxPending - pendingPods.getAsInt() - stats.creating;
+            List<Runnable> released = new ArrayList<>();
+            while (room-- > 0 && !stats.parked.isEmpty()) {
+                released.add(stats.parked.poll());
+            }
+            if (!released.isEmpty()) {
+                LOG.debug(String.format("[Admission Control] Releasing %d parked pod creation(s) in cluster %s, %d remain parked.", released.size(), cluster, stats.parked.size()));
+            }
+            return released;
+        }
+    }
+
+    /**
+     * Waits until a pod of <code>profileFingerprint</code> may be deleted from <code>cluster</code>.
+     */
+    public void admitDelete(String cluster, String profileFingerprint, PluginSettings settings) throws InterruptedException {
+        boolean throttled = !acquire(bucket(clusterDeletes, cluster, settings.getDeletesPerSecondPerCluster()));
+        throttled |= !acquire(bucket(profileDeletes.asMap(), profileFingerprint, settings.getDeletesPerSecondPerProfile()));
+        if (throttled) {
+            stats(cluster).throttledDeletes.incrementAndGet();
+            LOG.debug(String.format("[Admission Control] Pod deletion in cluster %s was rate limited.", cluster));
+        }
+    }
+
+    public Stats stats(String cluster) {
+        return stats.computeIfAbsent(cluster, key -> new Stats());
+    }
+
+    private static TokenBucket bucket(Map<String, TokenBucket> buckets, String key, int tokensPerSecond) {
+        TokenBucket bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(tokensPerSecond));
+        if (bucket.tokensPerSecond() != tokensPerSecond) {
+            bucket.setTokensPerSecond(tokensPerSecond);
+        }
+        return bucket;
+    }
+
+    /**
+     * @return false if the caller had to wait for a token
+     */
+    private static boolean acquire(TokenBucket bucket) throws InterruptedException {
+        long waitNanos = bucket.reserve();
+        if (waitNanos == 0) {
+            return true;
+        }
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return false;
+    }
+
+    /**
+     * How often the limits of one cluster were hit since the plugin started.
+     */
+    public static class Stats {
+        private final AtomicLong throttledCreates = new AtomicLong();
+        private final AtomicLong throttledDeletes = new AtomicLong();
+        private final AtomicLong pendingCapWaits = new AtomicLong();
+        private final AtomicInteger waiting = new AtomicInteger();
+        // guarded by this
+        private int creating;
+        private int maxPending = DEFAULT_MAX_PENDING_PODS_PER_CLUSTER;
+        private final Queue<Runnable> parked = new ArrayDeque<>();
+
+        public long throttledCreates() {
+            return throttledCreates.get();
+        }
+
+        public long throttledDeletes() {
+            return throttledDeletes.get();
+        }
+
+        /**
+         * @return how often a creation was parked for pending pods of the cluster to start
+         */
+        public long pendingCapWaits() {
+            return pendingCapWaits.get();
+        }
+
+        /**
+         * @return the creations currently waiting for a token or parked
+         */
+        public int waiting() {
+            return waiting.get() + parked();
+        }
+
+        /**
+         * @return the creations currently parked for pending pods of the cluster to start
+         */
+        public synchronized int parked() {
+            return parked.size();
+        }
+    }
+}
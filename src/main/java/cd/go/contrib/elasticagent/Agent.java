@@ -86,6 +86,13 @@ public class Agent {
         return configState;
     }
 
+    /**
+     * @return true if the agent is not running a job: it is idle, or the server lost contact with it
+     */
+    public boolean isIdleOrUnreachable() {
+        return agentState == AgentState.Idle || agentState == AgentState.Missing || agentState == AgentState.LostContact;
+    }
+
     @Override
     public String toString() {
         return "Agent{" +
@@ -19,6 +19,8 @@ package cd.go.contrib.elasticagent;
 import cd.go.contrib.elasticagent.executors.ServerPingRequestExecutor;
 import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
 
+import java.util.List;
+
 
 /**
  * Plugin implementors should implement these methods to interface to your cloud.
@@ -31,6 +33,8 @@ public interface AgentInstances<T> {
      * <p>
      * So that instances created are auto-registered with the server, the agent instance MUST have an
      * <code>autoregister.properties</code> file.
+     * <p>
+     * Implementations may return before the instance is actually created, as long as {@link #find(String)} reports it.
      *  @param request   the request object
      * @param settings   the plugin settings object
      * @param pluginRequest the plugin request object
@@ -45,32 +49,88 @@ public interface AgentInstances<T> {
      */
     void terminate(String agentId, PluginSettings settings) throws Exception;
 
+    /**
+     * Looks up the outcome of a recent termination of the agent instance.
+     *
+     * @param agentId the elastic agent id
+     * @return the tombstone of the agent, or <code>null</code> if it was not terminated recently
+     */
+    Tombstone findTombstone(String agentId);
+
+    /**
+     * Tells whether the agent instance is held idle in a warm pool. Warm agents are not assigned work, and must not be
+     * disabled or terminated for being idle.
+     *
+     * @param agentId the elastic agent id
+     */
+    boolean isWarm(String agentId);
+
+    /**
+     * This message is sent before work is assigned to an agent whose profile and environment match the job, so that
+     * agents which are reused for several jobs can take their last one.
+     *
+     * @param agentId the elastic agent id
+     * @return false if the agent must not take more jobs
+     */
+    boolean claimJob(String agentId);
+
+    /**
+     * Tells whether an idle agent is reused, and should be kept for more jobs instead of being disabled and terminated.
+     *
+     * @param agent the idle agent
+     */
+    boolean keepIdle(Agent agent);
+
+    /**
+     * @return the number of jobs claimed so far, to be passed to {@link #retire(String, long)}
+     */
+    long jobClaims();
+
+    /**
+     * Stops assigning work to an agent that is about to be disabled, unless it claimed a job since
+     * {@link #jobClaims()} was read. Agents are disabled and terminated by the same server ping, so an agent that
+     * took a job since they were listed must be left alone.
+     *
+     * @param agentId   the elastic agent id
+     * @param jobClaims the number of jobs claimed before the agents were listed
+     * @return false if the agent claimed a job since
+     */
+    boolean retire(String agentId, long jobClaims);
+
+    /**
+     * This message is sent from the {@link ServerPingRequestExecutor} with every listing of the agents, so that only
+     * warm agents the server has seen registered and idle are claimed.
+     *
+     * @param agents the list of all the agents
+     */
+    void agentsListed(Agents agents);
+
     /**
      * This message is sent from the {@link ServerPingRequestExecutor}
-     * to terminate instances that did not register with the server after a timeout. The timeout may be configurable and
-     * set via the {@link PluginSettings} instance that is passed in.
+     * to find instances that did not register with the server after a timeout, so that they can be terminated. The
+     * timeout may be configurable and set via the {@link PluginSettings} instance that is passed in.
      *
      * @param settings the plugin settings object
      * @param agents   the list of all the agents
+     * @return the instances that did not register in time
      */
-    void terminateUnregisteredInstances(PluginSettings settings, Agents agents) throws Exception;
+    List<T> instancesNotRegisteredAfterTimeout(PluginSettings settings, Agents agents);
 
     /**
-     * This message is sent from the {@link ServerPingRequestExecutor}
-     * to filter out any new agents, that have registered before the timeout period. The timeout may be configurable and
-     * set via the {@link PluginSettings} instance that is passed in.
+     * This message is sent from the {@link ServerPingRequestExecutor} for each idle agent, to tell whether it was
+     * created before the timeout period, and may be disabled. The timeout may be configurable and set via the
+     * {@link PluginSettings} instance that is passed in.
      *
+     * @param agentId  the elastic agent id
      * @param settings the plugin settings object
-     * @param agents   the list of all the agents
-     * @return a list of agent instances which were created after {@link PluginSettings#getAutoRegisterPeriod()} ago.
+     * @return true if the agent instance was created more than {@link PluginSettings#getAutoRegisterPeriod()} ago
      */
-    Agents instancesCreatedAfterTimeout(PluginSettings settings, Agents agents);
+    boolean isPastRegistrationDeadline(String agentId, PluginSettings settings);
 
     /**
-     * This message is sent after plugin initialization time so that the plugin may connect to the cloud provider
-     * and fetch a list of all instances that have been spun up by this plugin (before the server was shut down).
-     * This call should be should ideally remember if the agent instances are refreshed, and do nothing if instances
-     * were previously refreshed.
+     * This message is sent periodically, from a background thread, so that the plugin may connect to the cloud provider
+     * and reconcile its list of all instances that have been spun up by this plugin (including the ones created before
+     * the server was shut down). Request handlers only read the result of the last refresh.
      *
      * @param pluginRequest the plugin request object
      */
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.AGENT_IDLE_TIMEOUT;
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.MAX_JOBS_PER_AGENT;
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
+
+/**
+ * The jobs assigned to, and idle time of, the agents of profiles in reuse mode, i.e. with an
+ * {@link cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor#AGENT_IDLE_TIMEOUT idle timeout}. Such agents
+ * are kept when they go idle and take more jobs of their profile, until they have been idle for the timeout or have
+ * taken {@link cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor#MAX_JOBS_PER_AGENT their last job}.
+ * Agents of other profiles take a single job, as before.
+ */
+public class AgentReuse {
+    private final Map<String, Usage> usage = new ConcurrentHashMap<>();
+
+    /**
+     * @return the idle timeout of the profile, or <code>null</code> if its agents are not reused
+     */
+    static Period idleTimeout(Map<String, String> properties) {
+        int minutes = properties == null ? 0 : NumberUtils.toInt(stripToEmpty(properties.get(AGENT_IDLE_TIMEOUT.getKey())), 0);
+        return minutes > 0 ? Period.minutes(minutes) : null;
+    }
+
+    static int maxJobs(Map<String, String> properties) {
+        int maxJobs = properties == null ? 0 : NumberUtils.toInt(stripToEmpty(properties.get(MAX_JOBS_PER_AGENT.getKey())), 0);
+        return maxJobs > 0 ? maxJobs : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records a job being assigned to the instance's agent, unless it is used up.
+     *
+     * @return false if the agent must not take the job
+     */
+    public boolean claimJob(KubernetesInstance instance, DateTime now) {
+        Map<String, String> properties = instance.getInstanceProperties();
+        if (idleTimeout(properties) == null) {
+            return true;
+        }
+
+        Usage agent = usage.computeIfAbsent(instance.name(), name -> new Usage());
+        synchronized (agent) {
+            if (agent.isUsedUp(properties, now)) {
+                return false;
+            }
+            agent.jobs++;
+            agent.idleSince = null;
+            return true;
+        }
+    }
+
+    /**
+     * Called on every server ping an agent is idle.
+     *
+     * @return true if the agent should be kept for more jobs instead of being disabled
+     */
+    public boolean keepIdle(KubernetesInstance instance, DateTime now) {
+        Map<String, String> properties = instance.getInstanceProperties();
+        if (idleTimeout(properties) == null) {
+            return false;
+        }
+
+        Usage agent = usage.computeIfAbsent(instance.name(), name -> new Usage());
+        synchronized (agent) {
+            if (agent.idleSince == null) {
+                agent.idleSince = now;
+            }
+            return !agent.isUsedUp(properties, now);
+        }
+    }
+
+    public int jobsOf(String agentId) {
+        Usage agent = usage.get(agentId);
+        return agent == null ? 0 : agent.jobs;
+    }
+
+    void forget(String agentId) {
+        usage.remove(agentId);
+    }
+
+    private static class Usage {
+        private int jobs;
+        // since the first server ping that found the agent idle
+        private DateTime idleSince;
+
+        private boolean isUsedUp(Map<String, String> properties, DateTime now) {
+            return jobs >= maxJobs(properties) || (idleSince != null && !now.isBefore(idleSince.plus(idleTimeout(properties))));
+        }
+    }
+}
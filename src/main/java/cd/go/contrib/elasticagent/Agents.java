@@ -31,16 +31,14 @@ public class Agents {
     private static final Predicate<Agent> AGENT_IDLE_PREDICATE = new Predicate<Agent>() {
         @Override
         public boolean apply(Agent metadata) {
-            Agent.AgentState agentState = metadata.agentState();
-            return metadata.configState().equals(Agent.ConfigState.Enabled) && (agentState.equals(Agent.AgentState.Idle) || agentState.equals(Agent.AgentState.Missing) || agentState.equals(Agent.AgentState.LostContact));
+            return metadata.configState().equals(Agent.ConfigState.Enabled) && metadata.isIdleOrUnreachable();
         }
     };
     // Filter for agents that can be terminated safely
     private static final Predicate<Agent> AGENT_DISABLED_PREDICATE = new Predicate<Agent>() {
         @Override
         public boolean apply(Agent metadata) {
-            Agent.AgentState agentState = metadata.agentState();
-            return metadata.configState().equals(Agent.ConfigState.Disabled) && (agentState.equals(Agent.AgentState.Idle) || agentState.equals(Agent.AgentState.Missing) || agentState.equals(Agent.AgentState.LostContact));
+            return metadata.configState().equals(Agent.ConfigState.Disabled) && metadata.isIdleOrUnreachable();
         }
     };
     private final Map<String, Agent> agents = new HashMap<>();
@@ -74,6 +72,10 @@ public class Agents {
         return new LinkedHashSet<>(agents.keySet());
     }
 
+    public Agent find(String agentId) {
+        return agents.get(agentId);
+    }
+
     public boolean containsAgentWithId(String agentId) {
         return agents.containsKey(agentId);
     }
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.Size;
+import cd.go.contrib.elasticagent.utils.Util;
+import io.fabric8.kubernetes.api.model.*;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.*;
+
+/**
+ * Dependency caches shared by the agent pods of elastic profiles, such as <code>~/.m2</code> or <code>~/.gradle</code>.
+ * A profile lists its caches one per line as <code>name:mountPath</code>; profiles naming the same cache share it.
+ * <p>
+ * A cache is either a directory under {@link #HOST_PATH_ROOT} on each node, or a ReadWriteMany claim named
+ * {@link #CLAIM_PREFIX}<code>name</code> that the plugin creates if it does not exist. Each profile gets its own
+ * directory of a cache, named after its fingerprint, so profiles do not see each other's files.
+ * <p>
+ * Before the agent starts, an init container running the agent image as the agent's user, at most once a day per
+ * cache, deletes the files not modified for the retention period, and the files not modified for a day while the
+ * cache is over its size. Pods starting together on a node take turns through a lock directory. Claims are made
+ * writable by the pod's fsGroup; host path directories, which the kubelet creates owned by root, are handed to the
+ * agent's user by an init container that may only change file ownership.
+ * <p>
+ * Host path caches are only warm on the nodes that ran them, so pods prefer the {@link #MAX_WARM_NODES} nodes that
+ * most recently ran their caches within the retention period.
+ */
+public class CacheVolumes {
+    public static final String HOST_PATH = "HostPath";
+    public static final String PERSISTENT_VOLUME_CLAIM = "PersistentVolumeClaim";
+    static final String HOST_PATH_ROOT = "/var/cache/gocd-elastic-agent";
+    static final String CLAIM_PREFIX = "gocd-cache-";
+    static final String OWN_CONTAINER = "own-caches";
+    static final String PRUNE_CONTAINER = "prune-caches";
+    static final String STAMP_FILE = ".gocd-cache-pruned";
+    static final String LOCK_DIRECTORY = ".gocd-cache-pruning";
+    // the go user of the GoCD agent images
+    static final long AGENT_USER_ID = 1000L;
+    static final long AGENT_GROUP_ID = 1000L;
+    // a lock left behind by a pod that was killed while pruning
+    private static final int STALE_LOCK_MINUTES = 60;
+    private static final int PROFILE_DIRECTORY_LENGTH = 16;
+    static final String DEFAULT_SIZE = "10G";
+    static final int DEFAULT_RETENTION_DAYS = 7;
+    static final int MAX_WARM_NODES = 10;
+    static final int AFFINITY_WEIGHT = 50;
+    private static final Pattern NAME = Pattern.compile("[a-z0-9]([-a-z0-9]*[a-z0-9])?");
+
+    // claims known to exist, keyed on cluster, namespace and name
+    private final Set<String> claims = ConcurrentHashMap.newKeySet();
+    // when each host path cache was last used on a node, keyed on cluster, cache name and profile directory
+    private final Map<String, Map<String, DateTime>> warmNodes = new ConcurrentHashMap<>();
+
+    public static class Cache {
+        private final String name;
+        private final String mountPath;
+
+        Cache(String name, String mountPath) {
+            this.name = name;
+            this.mountPath = mountPath;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public String mountPath() {
+            return mountPath;
+        }
+
+        String volumeName() {
+            return CLAIM_PREFIX + name;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if a line is not a valid <code>name:mountPath</code>
+     */
+    public static List<Cache> parse(String caches) {
+        List<Cache> parsed = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line : StringUtils.split(StringUtils.defaultString(caches), "\r\n")) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            String[] parts = line.trim().split(":", 2);
+            if (parts.length != 2 || !NAME.matcher(parts[0].trim()).matches() || parts[0].trim().length() > 50) {
+                throw new IllegalArgumentException(String.format("`%s` must be a cache name of lowercase letters, digits and dashes, followed by `:` and a mount path.", line.trim()));
+            }
+            String name = parts[0].trim();
+            String mountPath = parts[1].trim();
+            if (!mountPath.startsWith("/") || mountPath.contains("'")) {
+                throw new IllegalArgumentException(String.format("The mount path of cache `%s` must be absolute and must not contain quotes.", name));
+            }
+            if (!names.add(name)) {
+                throw new IllegalArgumentException(String.format("Cache `%s` is listed more than once.", name));
+            }
+            parsed.add(new Cache(name, mountPath));
+        }
+        return parsed;
+    }
+
+    static boolean hasCaches(Map<String, String> properties) {
+        return properties != null && !Boolean.valueOf(properties.get(SPECIFIED_USING_POD_CONFIGURATION.getKey()))
+                && StringUtils.isNotBlank(properties.get(CACHE_VOLUMES.getKey()));
+    }
+
+    public static boolean isHostPath(Map<String, String> properties) {
+        return !PERSISTENT_VOLUME_CLAIM.equals(StringUtils.trim(properties.get(CACHE_VOLUME_TYPE.getKey())));
+    }
+
+    /**
+     * @return the directory of a cache that belongs to the profile, within the host path or claim of the cache
+     */
+    static String profileDirectory(Map<String, String> properties) {
+        return Util.fingerprint(properties).substring(0, PROFILE_DIRECTORY_LENGTH);
+    }
+
+    /**
+     * Mounts the caches of the profile into the agent container and adds the init container that prepares them.
+     */
+    static void addTo(Pod pod, Map<String, String> properties) {
+        List<Cache> caches = parse(properties.get(CACHE_VOLUMES.getKey()));
+        if (caches.isEmpty()) {
+            return;
+        }
+
+        boolean hostPath = isHostPath(properties);
+        String profileDirectory = profileDirectory(properties);
+        List<Volume> volumes = new ArrayList<>();
+        List<VolumeMount> mounts = new ArrayList<>();
+        for (Cache cache : caches) {
+            Volume volume = new Volume();
+            volume.setName(cache.volumeName());
+            if (hostPath) {
+                HostPathVolumeSource source = new HostPathVolumeSource(HOST_PATH_ROOT + "/" + cache.name() + "/" + profileDirectory);
+                // not modelled by this version of the client
+                source.setAdditionalProperty("type", "DirectoryOrCreate");
+                volume.setHostPath(source);
+                mounts.add(new VolumeMount(cache.mountPath(), cache.volumeName(), false, null));
+            } else {
+                volume.setPersistentVolumeClaim(new PersistentVolumeClaimVolumeSource(cache.volumeName(), false));
+                mounts.add(new VolumeMount(cache.mountPath(), cache.volumeName(), false, profileDirectory));
+            }
+            volumes.add(volume);
+        }
+
+        PodSpec spec = pod.getSpec();
+        spec.setVolumes(volumes);
+        if (spec.getSecurityContext() == null) {
+            spec.setSecurityContext(new PodSecurityContextBuilder().withFsGroup(AGENT_GROUP_ID).build());
+        }
+        Container agent = spec.getContainers().get(0);
+        agent.setVolumeMounts(mounts);
+
+        List<Container> initContainers = new ArrayList<>();
+        if (hostPath) {
+            initContainers.add(new ContainerBuilder()
+                    .withName(OWN_CONTAINER)
+                    .withImage(agent.getImage())
+                    .withImagePullPolicy(agent.getImagePullPolicy())
+                    .withCommand("sh", "-c", ownScript(caches))
+                    .withVolumeMounts(mounts)
+                    .withNewSecurityContext()
+                    .withRunAsUser(0L)
+                    .withNewCapabilities().withDrop("ALL").withAdd("CHOWN").endCapabilities()
+                    .endSecurityContext()
+                    .build());
+        }
+        initContainers.add(new ContainerBuilder()
+                .withName(PRUNE_CONTAINER)
+                .withImage(agent.getImage())
+                .withImagePullPolicy(agent.getImagePullPolicy())
+                .withCommand("sh", "-c", pruneScript(caches, properties))
+                .withVolumeMounts(mounts)
+                .withNewSecurityContext().withRunAsUser(AGENT_USER_ID).endSecurityContext()
+                .build());
+        spec.setAdditionalProperty("initContainers", initContainers);
+    }
+
+    /**
+     * Hands the host path directories of the caches, which the kubelet creates owned by root, to the agent's user.
+     */
+    static String ownScript(List<Cache> caches) {
+        StringBuilder script = new StringBuilder("chown ").append(AGENT_USER_ID).append(":").append(AGENT_GROUP_ID);
+        for (Cache cache : caches) {
+            script.append(" '").append(cache.mountPath()).append("'");
+        }
+        // a failed chown must not keep the agent from starting
+        return script.append("; exit 0").toString();
+    }
+
+    static String pruneScript(List<Cache> caches, Map<String, String> properties) {
+        long sizeInMegabytes = size(properties).toMegabytes();
+        int retentionDays = retentionDays(properties);
+
+        StringBuilder script = new StringBuilder();
+        for (Cache cache : caches) {
+            String dir = "'" + cache.mountPath() + "'";
+            String stamp = "'" + cache.mountPath() + "/" + STAMP_FILE + "'";
+            String lock = "'" + cache.mountPath() + "/" + LOCK_DIRECTORY + "'";
+            script.append("find ").append(lock).append(" -maxdepth 0 -mmin +").append(STALE_LOCK_MINUTES).append(" -exec rmdir {} \\; 2>/dev/null; ")
+                    .append("if [ -z \"$(find ").append(stamp).append(" -mmin -1440 2>/dev/null)\" ] && mkdir ").append(lock).append(" 2>/dev/null; then ")
+                    .append("touch ").append(stamp).append("; ")
+                    .append("find ").append(dir).append(" -mindepth 1 -type f -mtime +").append(retentionDays - 1).append(" ! -name ").append(STAMP_FILE).append(" -delete; ")
+                    .append("if [ \"$(du -sm ").append(dir).append(" | cut -f1)\" -gt ").append(sizeInMegabytes).append(" ]; then ")
+                    .append("find ").append(dir).append(" -mindepth 1 -type f -mtime +0 ! -name ").append(STAMP_FILE).append(" -delete; ")
+                    .append("fi; ")
+                    .append("find ").append(dir).append(" -mindepth 1 -type d -empty ! -name ").append(LOCK_DIRECTORY).append(" -delete; ")
+                    .append("rmdir ").append(lock).append("; ")
+                    .append("fi; ");
+        }
+        // a failed prune must not keep the agent from starting
+        return script.append("exit 0").toString();
+    }
+
+    private static Size size(Map<String, String> properties) {
+        String size = properties.get(CACHE_SIZE.getKey());
+        return Size.parse(StringUtils.isBlank(size) ? DEFAULT_SIZE : size.trim());
+    }
+
+    private static int retentionDays(Map<String, String> properties) {
+        String days = properties.get(CACHE_RETENTION_DAYS.getKey());
+        return StringUtils.isBlank(days) ? DEFAULT_RETENTION_DAYS : Integer.parseInt(days.trim());
+    }
+
+    /**
+     * Creates the claims of the profile's caches that do not exist yet in the namespace. Claims are never deleted by the
+     * plugin, so that caches outlive the pods and profiles that use them.
+     */
+    void ensureClaims(KubernetesClient client, String cluster, String namespace, Map<String, String> properties) {
+        if (!hasCaches(properties) || isHostPath(properties)) {
+            return;
+        }
+
+        for (Cache cache : parse(properties.get(CACHE_VOLUMES.getKey()))) {
+            String key = cluster + "/" + namespace + "/" + cache.volumeName();
+            if (claims.contains(key)) {
+                continue;
+            }
+            if (client.persistentVolumeClaims().inNamespace(namespace).withName(cache.volumeName()).get() == null) {
+                client.persistentVolumeClaims().inNamespace(namespace).create(claim(namespace, cache, properties));
+                LOG.info(String.format("[Cache Volumes] Created claim %s in namespace %s of cluster %s.", cache.volumeName(), namespace, cluster));
+            }
+            claims.add(key);
+        }
+    }
+
+    static PersistentVolumeClaim claim(String namespace, Cache cache, Map<String, String> properties) {
+        String storageClass = StringUtils.trimToNull(properties.get(CACHE_STORAGE_CLASS.getKey()));
+        return new PersistentVolumeClaimBuilder()
+                .withNewMetadata()
+                .withName(cache.volumeName())
+                .withNamespace(namespace)
+                .withLabels(Collections.singletonMap(Constants.CREATED_BY_LABEL_KEY, Constants.PLUGIN_ID))
+                .withAnnotations(storageClass == null ? Collections.emptyMap() : Collections.singletonMap("volume.beta.kubernetes.io/storage-class", storageClass))
+                .endMetadata()
+                .withNewSpec()
+                .withAccessModes("ReadWriteMany")
+                .withNewResources().withRequests(Collections.singletonMap("storage", new Quantity(size(properties).toMegabytes() + "Mi"))).endResources()
+                .endSpec()
+                .build();
+    }
+
+    /**
+     * Records that a pod with the host path caches of <code>properties</code> runs on <code>node</code>.
+     */
+    void usedOn(String cluster, String node, Map<String, String> properties, DateTime at) {
+        if (StringUtils.isBlank(node) || !hasCaches(properties) || !isHostPath(properties)) {
+            return;
+        }
+
+        try {
+            for (Cache cache : parse(properties.get(CACHE_VOLUMES.getKey()))) {
+                warmNodes.computeIfAbsent(warmNodesKey(cluster, cache, properties), key -> new ConcurrentHashMap<>()).merge(node, at, (previous, latest) -> latest.isAfter(previous) ? latest : previous);
+            }
+        } catch (IllegalArgumentException e) {
+            // reported by the profile validation
+        }
+    }
+
+    /**
+     * Adds a soft node affinity towards the nodes the pod's host path caches are warm on.
+     */
+    void preferWarmNodes(Pod pod, String cluster, Map<String, String> properties, DateTime now) {
+        if (!hasCaches(properties) || !isHostPath(properties)) {
+            return;
+        }
+
+        DateTime pruneBefore = now.minusDays(retentionDays(properties));
+        Map<String, DateTime> lastUsed = new HashMap<>();
+        for (Cache cache : parse(properties.get(CACHE_VOLUMES.getKey()))) {
+            Map<String, DateTime> nodes = warmNodes.getOrDefault(warmNodesKey(cluster, cache, properties), Collections.emptyMap());
+            // files older than the retention period are pruned, and nodes may have been removed
+            nodes.values().removeIf(at -> at.isBefore(pruneBefore));
+            for (Map.Entry<String, DateTime> entry : nodes.entrySet()) {
+                lastUsed.merge(entry.getKey(), entry.getValue(), (previous, latest) -> latest.isAfter(previous) ? latest : previous);
+            }
+        }
+
+        List<String> nodes = new ArrayList<>(lastUsed.keySet());
+        nodes.sort(Comparator.comparing(lastUsed::get, Comparator.reverseOrder()));
+        KubernetesInstance.preferNodes(pod, nodes.subList(0, Math.min(MAX_WARM_NODES, nodes.size())), AFFINITY_WEIGHT);
+    }
+
+    private static String warmNodesKey(String cluster, Cache cache, Map<String, String> properties) {
+        return cluster + "/" + cache.name() + "/" + profileDirectory(properties);
+    }
+}
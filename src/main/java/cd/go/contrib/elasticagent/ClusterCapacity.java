@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.NodeCondition;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * The pod slots a cluster can allocate, summed over its ready and schedulable nodes, and how many of them are free
+ * once the pods of other workloads on those nodes are accounted for. It is only needed to route new agents between
+ * clusters, so it is read when more than one cluster is configured, and at most every {@link #REFRESH_PERIOD}: it
+ * lists the nodes and the pods of every namespace, which takes cluster-wide list permissions.
+ */
+public class ClusterCapacity {
+    private static final String SUCCEEDED = "Succeeded";
+    private static final String FAILED = "Failed";
+    static final Period REFRESH_PERIOD = Period.minutes(5);
+    private final int allocatablePods;
+    private final int otherPods;
+    private final int freePods;
+    private final DateTime observedAt;
+
+    ClusterCapacity(int allocatablePods, int otherPods, int freePods, DateTime observedAt) {
+        this.allocatablePods = allocatablePods;
+        this.otherPods = otherPods;
+        this.freePods = freePods;
+        this.observedAt = observedAt;
+    }
+
+    /**
+     * Lists the nodes, and the pods of all namespaces that hold a slot in pages, skipping the elastic agent pods: the
+     * registry accounts for those itself. Should the plugin not be allowed to list the pods of all namespaces, the
+     * slots of other workloads are not accounted for.
+     */
+    static ClusterCapacity of(KubernetesClient client, DateTime now) {
+        Map<String, Integer> slotsByNode = new HashMap<>();
+        int allocatablePods = 0;
+        for (Node node : client.nodes().list().getItems()) {
+            if (isSchedulable(node)) {
+                Quantity pods = node.getStatus().getAllocatable().get("pods");
+                int slots = pods == null ? 0 : Integer.parseInt(pods.getAmount());
+                slotsByNode.put(node.getMetadata().getName(), slots);
+                allocatablePods += slots;
+            }
+        }
+
+        Map<String, Integer> otherPodsByNode = new HashMap<>();
+        try {
+            new PagedPodLister(client).excludingPhases(SUCCEEDED, FAILED).list(null, Collections.emptyMap(), Collections.emptyMap(), page -> {
+                for (Pod pod : page.getItems()) {
+                    String nodeName = pod.getSpec() == null ? null : pod.getSpec().getNodeName();
+                    if (slotsByNode.containsKey(nodeName) && isOtherWorkload(pod)) {
+                        otherPodsByNode.merge(nodeName, 1, Integer::sum);
+                    }
+                }
+            });
+        } catch (KubernetesClientException e) {
+            if (e.getCode() != HttpURLConnection.HTTP_FORBIDDEN) {
+                throw e;
+            }
+            LOG.debug("Not allowed to list the pods of all namespaces, leaving other workloads out of the capacity.");
+            otherPodsByNode.clear();
+        }
+
+        int otherPods = 0;
+        int freePods = 0;
+        for (Map.Entry<String, Integer> node : slotsByNode.entrySet()) {
+            int others = otherPodsByNode.getOrDefault(node.getKey(), 0);
+            otherPods += others;
+            freePods += Math.max(0, node.getValue() - others);
+        }
+        return new ClusterCapacity(allocatablePods, otherPods, freePods, now);
+    }
+
+    /**
+     * @return true for pods that hold a slot of their node and are not elastic agents
+     */
+    private static boolean isOtherWorkload(Pod pod) {
+        Map<String, String> labels = pod.getMetadata() == null ? null : pod.getMetadata().getLabels();
+        if (labels != null && Constants.PLUGIN_ID.equals(labels.get(Constants.CREATED_BY_LABEL_KEY))
+                && Constants.KUBERNETES_POD_KIND_LABEL_VALUE.equals(labels.get(Constants.KUBERNETES_POD_KIND_LABEL_KEY))) {
+            return false;
+        }
+        String phase = pod.getStatus() == null ? null : pod.getStatus().getPhase();
+        return !SUCCEEDED.equals(phase) && !FAILED.equals(phase);
+    }
+
+    private static boolean isSchedulable(Node node) {
+        if (node.getSpec() != null && Boolean.TRUE.equals(node.getSpec().getUnschedulable())) {
+            return false;
+        }
+        if (node.getStatus() == null || node.getStatus().getAllocatable() == null) {
+            return false;
+        }
+        if (node.getStatus().getConditions() == null) {
+            // still registering
+            return false;
+        }
+        for (NodeCondition condition : node.getStatus().getConditions()) {
+            if ("Ready".equals(condition.getType())) {
+                return "True".equals(condition.getStatus());
+            }
+        }
+        return false;
+    }
+
+    public int allocatablePods() {
+        return allocatablePods;
+    }
+
+    /**
+     * @return the pods of other workloads on the schedulable nodes
+     */
+    public int otherPods() {
+        return otherPods;
+    }
+
+    /**
+     * @return the pod slots of the schedulable nodes that other workloads leave to the agents
+     */
+    public int freePods() {
+        return freePods;
+    }
+
+    public DateTime observedAt() {
+        return observedAt;
+    }
+
+    boolean isStale(DateTime now) {
+        return !observedAt.plus(REFRESH_PERIOD).isAfter(now);
+    }
+
+    @Override
+    public String toString() {
+        return freePods + " of " + allocatablePods + " allocatable pod(s) free of other workloads as of " + observedAt;
+    }
+}
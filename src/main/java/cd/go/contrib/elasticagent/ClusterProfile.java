@@ -0,0 +1,102 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+import java.util.Objects;
+
+/**
+ * The API server and credentials of one Kubernetes cluster agents can be created in. The cluster configured through
+ * the <code>kubernetes_cluster_*</code> settings is named {@link #PRIMARY}; additional clusters are configured as a
+ * JSON list in the <code>additional_clusters</code> setting.
+ */
+public class ClusterProfile {
+    public static final String PRIMARY = "primary";
+
+    @Expose
+    @SerializedName("name")
+    private String name;
+
+    @Expose
+    @SerializedName("kubernetes_cluster_url")
+    private String clusterUrl;
+
+    @Expose
+    @SerializedName("kubernetes_cluster_username")
+    private String username;
+
+    @Expose
+    @SerializedName("kubernetes_cluster_password")
+    private String password;
+
+    @Expose
+    @SerializedName("kubernetes_cluster_ca_cert")
+    private String caCert;
+
+    public ClusterProfile(String name, String clusterUrl, String username, String password, String caCert) {
+        this.name = name;
+        this.clusterUrl = clusterUrl;
+        this.username = username;
+        this.password = password;
+        this.caCert = caCert;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getClusterUrl() {
+        return clusterUrl;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getCaCert() {
+        return caCert;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ClusterProfile)) return false;
+
+        ClusterProfile that = (ClusterProfile) o;
+        return Objects.equals(name, that.name) &&
+                Objects.equals(clusterUrl, that.clusterUrl) &&
+                Objects.equals(username, that.username) &&
+                Objects.equals(password, that.password) &&
+                Objects.equals(caCert, that.caCert);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(name, clusterUrl, username, password, caCert);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + clusterUrl + ")";
+    }
+}
@@ -17,9 +17,11 @@
 package cd.go.contrib.elasticagent;
 
 import cd.go.contrib.elasticagent.utils.Util;
+import com.google.common.collect.ImmutableMap;
 import com.thoughtworks.go.plugin.api.GoPluginIdentifier;
 
 import java.util.Collections;
+import java.util.Map;
 
 public interface Constants {
     String PLUGIN_ID = Util.pluginId();
@@ -45,11 +47,17 @@ public interface Constants {
     // internal use only
     String CREATED_BY_LABEL_KEY = "Elastic-Agent-Created-By";
     String ENVIRONMENT_LABEL_KEY = "Elastic-Agent-Environment-Name";
+    String POD_NAME_LABEL_KEY = "Elastic-Agent-Pod-Name";
     String KUBERNETES_NAMESPACE_KEY = "default";
     String KUBERNETES_POD_KIND_LABEL_KEY = "kind";
     String KUBERNETES_POD_KIND_LABEL_VALUE = "kubernetes-elastic-agent";
     String KUBERNETES_POD_NAME = "kubernetes-elastic-agent";
     String KUBERNETES_POD_CREATION_TIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+    String KUBERNETES_POD_PHASE_PENDING = "Pending";
+    String KUBERNETES_POD_PHASE_RUNNING = "Running";
+    Map<String, String> ELASTIC_AGENT_POD_SELECTOR = ImmutableMap.of(
+            KUBERNETES_POD_KIND_LABEL_KEY, KUBERNETES_POD_KIND_LABEL_VALUE,
+            CREATED_BY_LABEL_KEY, PLUGIN_ID);
 
     String POD_POSTFIX = "POD_POSTFIX";
     String CONTAINER_POSTFIX = "CONTAINER_POSTFIX";
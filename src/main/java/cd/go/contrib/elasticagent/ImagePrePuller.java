@@ -0,0 +1,276 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.Util;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import io.fabric8.kubernetes.api.model.Container;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.URLUtils;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.*;
+
+/**
+ * Keeps the images of the elastic profiles cached on every node of a cluster, including nodes added later, by running
+ * a DaemonSet with a container per image next to a pause container. The image containers only sleep in
+ * <code>sh</code>, which GoCD agent images provide, so they cost next to nothing once the images are pulled. Each image
+ * is pulled by its own container, so an image that cannot be pulled does not hold up the others.
+ * <p>
+ * GoCD does not list elastic profiles, so the images are derived on each reconciliation from the profiles of the
+ * current agents, and from the profiles validated or requested within the last {@link #RETENTION}; images of profiles
+ * that are no longer used drop out after that. The images are recorded on the DaemonSet, so that a restarted plugin
+ * picks them up again.
+ * <p>
+ * DaemonSets are managed through <code>apps/v1</code>, which this version of the client does not model, with its
+ * HTTP client.
+ */
+public class ImagePrePuller {
+    public static final String NAME = "gocd-elastic-agent-image-prepuller";
+    static final String IMAGES_ANNOTATION = "Elastic-Agent-Prepulled-Images";
+    static final String PAUSE_IMAGE_ANNOTATION = "Elastic-Agent-Prepull-Pause-Image";
+    // a multi-arch image
+    public static final String DEFAULT_PAUSE_IMAGE = "registry.k8s.io/pause:3.9";
+    static final Period RETENTION = Period.days(1);
+    private static final Map<String, String> LABELS = ImmutableMap.of("app", NAME, Constants.CREATED_BY_LABEL_KEY, Constants.PLUGIN_ID);
+    private static final Map<String, String> RESOURCES = ImmutableMap.of("cpu", "10m", "memory", "16Mi");
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    // when each image was last seen in a profile
+    private final Map<String, DateTime> images = new ConcurrentSkipListMap<>();
+    // the images, and the pause image, last applied to the DaemonSet of each cluster
+    private final Map<String, String> applied = new HashMap<>();
+    private final Set<String> removed = new HashSet<>();
+    /**
+     * @return true if any of the images was not known yet
+     */
+    public boolean learn(Collection<String> images, DateTime seenAt) {
+        boolean learned = false;
+        for (String image : images) {
+            if (this.images.put(image, seenAt) == null) {
+                LOG.info(String.format("[Image Pre-Puller] Learned image %s.", image));
+                learned = true;
+            }
+        }
+        return learned;
+    }
+
+    public Set<String> images() {
+        return Collections.unmodifiableSet(images.keySet());
+    }
+
+    /**
+     * The images the pods of an elastic profile run, or none if they cannot be told.
+     */
+    public static Set<String> imagesOf(Map<String, String> properties) {
+        Set<String> images = new TreeSet<>();
+        if (properties == null) {
+            return images;
+        }
+
+        if (Boolean.valueOf(properties.get(SPECIFIED_USING_POD_CONFIGURATION.getKey()))) {
+            String podYaml = properties.get(POD_CONFIGURATION.getKey());
+            if (StringUtils.isBlank(podYaml)) {
+                return images;
+            }
+            try {
+                Pod pod = KubernetesInstance.POD_TEMPLATES.podFor(podYaml);
+                if (pod.getSpec() != null && pod.getSpec().getContainers() != null) {
+                    for (Container container : pod.getSpec().getContainers()) {
+                        if (StringUtils.isNotBlank(container.getImage())) {
+                            images.add(container.getImage().trim());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                LOG.debug("[Image Pre-Puller] Ignoring invalid pod yaml.", e);
+            }
+        } else if (StringUtils.isNotBlank(properties.get(IMAGE.getKey()))) {
+            images.add(properties.get(IMAGE.getKey()).trim());
+        }
+        return images;
+    }
+
+    /**
+     * Creates or updates the DaemonSet of a cluster to pull the images in use, or removes it if pre-pulling is off.
+     * There is one DaemonSet per cluster, in the first of the configured namespaces: its pods run on every node
+     * whatever their namespace.
+     *
+     * @param inUse the images of the profiles of the current agents
+     */
+    public synchronized void sync(String cluster, KubernetesClient client, String namespace, boolean enabled, String pauseImage, Collection<String> inUse, DateTime now) throws IOException {
+        if (!(client instanceof HttpClientAware)) {
+            LOG.warn(String.format("[Image Pre-Puller] Cannot manage the DaemonSet of cluster %s with this client.", cluster));
+            return;
+        }
+        OkHttpClient http = ((HttpClientAware) client).getHttpClient();
+        String url = URLUtils.join(client.getMasterUrl().toString(), "apis", "apps", "v1", "namespaces", namespace, "daemonsets");
+
+        if (!enabled) {
+            applied.remove(cluster);
+            if (!removed.contains(cluster)) {
+                if (delete(http, URLUtils.join(url, NAME))) {
+                    LOG.info(String.format("[Image Pre-Puller] Image pre-pulling is disabled, removed DaemonSet %s from cluster %s.", NAME, cluster));
+                }
+                removed.add(cluster);
+            }
+            return;
+        }
+        removed.remove(cluster);
+
+        if (!applied.containsKey(cluster)) {
+            Map<String, String> annotations = existingAnnotations(http, URLUtils.join(url, NAME));
+            List<String> existingImages = Arrays.asList(StringUtils.split(StringUtils.defaultString(annotations.get(IMAGES_ANNOTATION)), ','));
+            learn(existingImages, now);
+            applied.put(cluster, describe(annotations.get(PAUSE_IMAGE_ANNOTATION), existingImages));
+        }
+
+        learn(inUse, now);
+        images.values().removeIf(seenAt -> seenAt.plus(RETENTION).isBefore(now));
+
+        Set<String> wanted = new TreeSet<>(images.keySet());
+        String description = describe(pauseImage, wanted);
+        if (description.equals(applied.get(cluster))) {
+            return;
+        }
+        apply(http, url, daemonSet(namespace, pauseImage, wanted));
+        applied.put(cluster, description);
+        LOG.info(String.format("[Image Pre-Puller] Pre-pulling %d image(s) on the nodes of cluster %s: %s.", wanted.size(), cluster, String.join(",", wanted)));
+    }
+
+    /**
+     * @return an empty string if there are no images to pull, as the DaemonSet is not created before there are any
+     */
+    private static String describe(String pauseImage, Collection<String> images) {
+        return images.isEmpty() ? "" : pauseImage + " " + String.join(",", images);
+    }
+
+    /**
+     * @return the annotations of the DaemonSet, or none if there is none
+     */
+    private static Map<String, String> existingAnnotations(OkHttpClient http, String url) throws IOException {
+        Map<String, String> existing = new HashMap<>();
+        try (Response response = http.newCall(new Request.Builder().url(url).get().build()).execute()) {
+            if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return existing;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException(String.format("Failed to read DaemonSet %s: HTTP %d.", NAME, response.code()));
+            }
+            JsonElement annotations = new JsonParser().parse(response.body().charStream()).getAsJsonObject().getAsJsonObject("metadata").get("annotations");
+            if (annotations != null && annotations.isJsonObject()) {
+                for (Map.Entry<String, JsonElement> annotation : annotations.getAsJsonObject().entrySet()) {
+                    existing.put(annotation.getKey(), annotation.getValue().getAsString());
+                }
+            }
+            return existing;
+        } catch (RuntimeException e) {
+            throw new IOException(String.format("Failed to read DaemonSet %s.", NAME), e);
+        }
+    }
+
+    private static void apply(OkHttpClient http, String url, Map<String, Object> daemonSet) throws IOException {
+        RequestBody body = RequestBody.create(JSON, Util.GSON.toJson(daemonSet));
+        try (Response replaced = http.newCall(new Request.Builder().url(URLUtils.join(url, NAME)).put(body).build()).execute()) {
+            if (replaced.isSuccessful()) {
+                return;
+            }
+            if (replaced.code() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new IOException(String.format("Failed to update DaemonSet %s: HTTP %d.", NAME, replaced.code()));
+            }
+        }
+        try (Response created = http.newCall(new Request.Builder().url(url).post(body).build()).execute()) {
+            if (!created.isSuccessful()) {
+                throw new IOException(String.format("Failed to create DaemonSet %s: HTTP %d.", NAME, created.code()));
+            }
+        }
+    }
+
+    /**
+     * @return true if the DaemonSet was deleted, false if there was none
+     */
+    private static boolean delete(OkHttpClient http, String url) throws IOException {
+        try (Response response = http.newCall(new Request.Builder().url(url).delete().build()).execute()) {
+            if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException(String.format("Failed to delete DaemonSet %s: HTTP %d.", NAME, response.code()));
+            }
+            return true;
+        }
+    }
+
+    static Map<String, Object> daemonSet(String namespace, String pauseImage, Collection<String> images) {
+        List<Map<String, Object>> containers = new ArrayList<>();
+        containers.add(container("pause", pauseImage, null));
+        for (String image : images) {
+            containers.add(container("prepull-" + (containers.size() - 1), image, Arrays.asList("sh", "-c", "while true; do sleep 3600; done")));
+        }
+
+        Map<String, Object> podSpec = new LinkedHashMap<>();
+        podSpec.put("containers", containers);
+        podSpec.put("terminationGracePeriodSeconds", 0);
+
+        Map<String, Object> spec = new LinkedHashMap<>();
+        spec.put("selector", Collections.singletonMap("matchLabels", LABELS));
+        spec.put("template", ImmutableMap.of("metadata", Collections.singletonMap("labels", LABELS), "spec", podSpec));
+        spec.put("updateStrategy", Collections.singletonMap("type", "RollingUpdate"));
+
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("name", NAME);
+        metadata.put("namespace", namespace);
+        metadata.put("labels", LABELS);
+        metadata.put("annotations", ImmutableMap.of(IMAGES_ANNOTATION, String.join(",", images), PAUSE_IMAGE_ANNOTATION, pauseImage));
+
+        Map<String, Object> daemonSet = new LinkedHashMap<>();
+        daemonSet.put("apiVersion", "apps/v1");
+        daemonSet.put("kind", "DaemonSet");
+        daemonSet.put("metadata", metadata);
+        daemonSet.put("spec", spec);
+        return daemonSet;
+    }
+
+    private static Map<String, Object> container(String name, String image, List<String> command) {
+        Map<String, Object> container = new LinkedHashMap<>();
+        container.put("name", name);
+        container.put("image", image);
+        if (command != null) {
+            container.put("command", command);
+        }
+        container.put("resources", ImmutableMap.of("requests", RESOURCES, "limits", RESOURCES));
+        return container;
+    }
+}
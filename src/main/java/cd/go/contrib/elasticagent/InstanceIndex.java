@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
+
+/**
+ * A secondary index of {@link KubernetesAgentInstances}, mapping an attribute of an instance to the names of the
+ * instances having that attribute. Blank attributes are indexed under the empty string.
+ * <p>
+ * Writes are serialized by the owning registry; reads are lock free.
+ */
+class InstanceIndex {
+    private final ConcurrentHashMap<String, Set<String>> entries = new ConcurrentHashMap<>();
+    private final Function<KubernetesInstance, String> attribute;
+
+    InstanceIndex(Function<KubernetesInstance, String> attribute) {
+        this.attribute = attribute;
+    }
+
+    void add(KubernetesInstance instance) {
+        entries.computeIfAbsent(keyOf(instance), key -> ConcurrentHashMap.newKeySet()).add(instance.name());
+    }
+
+    void remove(KubernetesInstance instance) {
+        entries.computeIfPresent(keyOf(instance), (key, names) -> {
+            names.remove(instance.name());
+            return names.isEmpty() ? null : names;
+        });
+    }
+
+    Set<String> keys() {
+        Set<String> keys = new HashSet<>(entries.keySet());
+        keys.remove("");
+        return keys;
+    }
+
+    Set<String> get(String key) {
+        Set<String> names = entries.get(stripToEmpty(key));
+        return names == null ? Collections.emptySet() : Collections.unmodifiableSet(names);
+    }
+
+    private String keyOf(KubernetesInstance instance) {
+        return stripToEmpty(attribute.apply(instance));
+    }
+}
@@ -17,115 +17,940 @@
 package cd.go.contrib.elasticagent;
 
 import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
+import cd.go.contrib.elasticagent.utils.HashedTimingWheel;
+import cd.go.contrib.elasticagent.utils.Util;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Sets;
 import io.fabric8.kubernetes.api.model.Pod;
-import io.fabric8.kubernetes.api.model.PodList;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
-import org.joda.time.Period;
 
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.Map;
+import java.net.HttpURLConnection;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static cd.go.contrib.elasticagent.Constants.KUBERNETES_POD_PHASE_PENDING;
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.NAMESPACE;
 import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.SPECIFIED_USING_POD_CONFIGURATION;
-import static cd.go.contrib.elasticagent.utils.Util.getSimpleDateFormat;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
 
 public class KubernetesAgentInstances implements AgentInstances<KubernetesInstance> {
+    private static final int MAX_TOMBSTONES = 10_000;
+    private static final int TOMBSTONE_TTL_MINUTES = 30;
     private final ConcurrentHashMap<String, KubernetesInstance> instances = new ConcurrentHashMap<>();
+    private final InstanceIndex byEnvironment = new InstanceIndex(instance -> lowerCase(instance.environment()));
+    private final InstanceIndex byProfile = new InstanceIndex(KubernetesInstance::profileFingerprint);
+    // node names are only unique within a cluster, see nodeKey()
+    private final InstanceIndex byNode = new InstanceIndex(instance -> nodeKey(instance.cluster(), instance.nodeName()));
+    private final InstanceIndex byPhase = new InstanceIndex(KubernetesInstance::phase);
+    private final InstanceIndex byNamespace = new InstanceIndex(KubernetesInstance::namespace);
+    private final InstanceIndex byCluster = new InstanceIndex(KubernetesInstance::cluster);
+    private final List<InstanceIndex> indexes = Arrays.asList(byEnvironment, byProfile, byNode, byPhase, byNamespace, byCluster);
+    private final Object writeLock = new Object();
+    // keyed on createdAt: advancing it to (now - autoRegisterPeriod) expires the instances whose deadline passed
+    private final HashedTimingWheel<String> registrationDeadlines = new HashedTimingWheel<>(1000, 1024);
+    // the instances past their deadline whose agents were not seen registered yet
+    private final Set<String> pastRegistrationDeadline = ConcurrentHashMap.newKeySet();
+    private final Cache<String, Tombstone> tombstones = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TOMBSTONES)
+            .expireAfterWrite(TOMBSTONE_TTL_MINUTES, TimeUnit.MINUTES)
+            .build();
     public Clock clock = Clock.DEFAULT;
-    private boolean refreshed;
+    private volatile DateTime lastSyncedAt;
     private KubernetesClientFactory factory;
+    private final PodCreationQueue podCreationQueue;
+    private final PodTerminationQueue podTerminationQueue;
+    // keyed on cluster and namespace, see watchKey()
+    private final Map<String, KubernetesPodWatcher> podWatchers = new HashMap<>();
+    private final Map<String, String> restoredResourceVersions = new HashMap<>();
+    private final Map<String, ClusterCapacity> capacities = new ConcurrentHashMap<>();
+    // the clusters whose capacity the plugin is not allowed to read, and since when, so that this is logged once
+    private final Map<String, DateTime> capacityForbidden = new ConcurrentHashMap<>();
+    private final Map<String, WarmPool> warmPools = new ConcurrentHashMap<>();
+    private final Object coalescingLock = new Object();
+    private final AdmissionControl admissionControl = new AdmissionControl();
+    private final ImagePrePuller imagePrePuller = new ImagePrePuller();
+    private final CacheVolumes cacheVolumes = new CacheVolumes();
+    private final PlacementHistory placementHistory = new PlacementHistory();
+    private final PriorityClasses priorityClasses = new PriorityClasses();
+    private final AgentReuse agentReuse = new AgentReuse();
+    private final StartBackOff startBackOff = new StartBackOff();
+    private final Object claimLock = new Object();
+    private final AtomicLong jobClaims = new AtomicLong();
+    // the value of jobClaims after the last job claimed by each agent
+    private final Map<String, Long> lastJobClaims = new ConcurrentHashMap<>();
+    private final Set<String> retiring = ConcurrentHashMap.newKeySet();
+    // warm agents handed out by create(), by when, until they claim their job
+    private final Map<String, DateTime> claimedWarm = new ConcurrentHashMap<>();
+    // agents the last server ping listed as registered and idle
+    private final Set<String> seenIdle = ConcurrentHashMap.newKeySet();
+    // the settings of the last request, for the deletions queued by the pod watchers
+    private volatile PluginSettings lastSettings;
 
     public KubernetesAgentInstances() {
-        this(KubernetesClientFactory.instance());
+        this(KubernetesClientFactory.instance(), new PodCreationQueue(PodCreationQueue.DEFAULT_WORKERS), new PodTerminationQueue(PodTerminationQueue.DEFAULT_WORKERS));
     }
 
+    /**
+     * A registry that creates and deletes pods on the requesting thread.
+     */
     public KubernetesAgentInstances(KubernetesClientFactory factory) {
+        this(factory, new PodCreationQueue());
+    }
+
+    public KubernetesAgentInstances(KubernetesClientFactory factory, PodCreationQueue podCreationQueue) {
+        this(factory, podCreationQueue, new PodTerminationQueue());
+    }
+
+    public KubernetesAgentInstances(KubernetesClientFactory factory, PodCreationQueue podCreationQueue, PodTerminationQueue podTerminationQueue) {
         this.factory = factory;
+        this.podCreationQueue = podCreationQueue;
+        this.podTerminationQueue = podTerminationQueue;
     }
 
+    /**
+     * Claims an agent from the {@link WarmPool} of the request's profile, if it has one ready. Otherwise registers a
+     * new instance as {@link KubernetesInstance.CreationState#PENDING} and queues the creation of its pod. Should the
+     * creation fail, the instance is marked {@link KubernetesInstance.CreationState#FAILED} and removed by the next
+     * relist. Creations are queued once no lock is held, so a request never waits for another request's creation.
+     *
+     * @return the claimed or created instance, or <code>null</code> while pods of the profile recently failed to start,
+     * see {@link StartBackOff}, or while the {@link PodCreationQueue} is full
+     */
     @Override
     public KubernetesInstance create(CreateAgentRequest request, PluginSettings settings, PluginRequest pluginRequest) throws Exception {
-        KubernetesClient client = factory.kubernetes(settings);
-        KubernetesInstance instance;
+        lastSettings = settings;
+        // the DaemonSets pick up new images on the next reconciliation
+        imagePrePuller.learn(ImagePrePuller.imagesOf(request.properties()), clock.now());
+
+        List<Runnable> creations = new ArrayList<>();
+        try {
+            if (WarmPool.sizeOf(request) > 0) {
+                WarmPool pool = warmPools.computeIfAbsent(WarmPool.keyOf(request), key -> new WarmPool(request, clock.now()));
+                pool.requested(request, clock.now());
+                KubernetesInstance claimed = claim(pool);
+                refill(pool, settings, pluginRequest, creations);
+                if (claimed != null) {
+                    return claimed;
+                }
+            }
+
+            DateTime heldUntil = startBackOff.heldUntil(Util.fingerprint(request.properties()), clock.now());
+            if (heldUntil != null) {
+                LOG.warn(String.format("[Create Agent] Pods of this profile failed to start recently, not creating another before %s.", heldUntil));
+                return null;
+            }
+            if (podCreationQueue.isFull()) {
+                LOG.warn(String.format("[Create Agent] %d pod creations are waiting for a worker, not creating another.", podCreationQueue.backlog()));
+                return null;
+            }
+
+            Integer maxPending = settings.getMaxPendingPodsPerProfile();
+            if (maxPending == null) {
+                return createInstance(request, settings, pluginRequest, creations);
+            }
+            synchronized (coalescingLock) {
+                List<KubernetesInstance> starting = startingFor(request);
+                if (starting.size() >= maxPending) {
+                    KubernetesInstance youngest = Collections.max(starting, Comparator.comparing(KubernetesInstance::createdAt));
+                    LOG.info(String.format("[Create Agent] %d pod(s) of this profile are still starting, waiting for them instead of creating another. Youngest: %s.", starting.size(), youngest.name()));
+                    return youngest;
+                }
+                return createInstance(request, settings, pluginRequest, creations);
+            }
+        } finally {
+            submit(creations);
+        }
+    }
+
+    /**
+     * The instances of the profile and environment of <code>request</code> whose pods are not running yet. GoCD repeats
+     * its request for a pending job on every scheduling cycle, so these may well have been created for the same job.
+     * Warm agents are not counted, they are kept for the requests to come.
+     */
+    private List<KubernetesInstance> startingFor(CreateAgentRequest request) {
+        List<KubernetesInstance> starting = new ArrayList<>();
+        for (KubernetesInstance instance : lookup(byProfile, Util.fingerprint(request.properties()))) {
+            if (instance.isStarting() && !isWarm(instance.name()) && StringUtils.equalsIgnoreCase(stripToEmpty(instance.environment()), stripToEmpty(request.environment()))) {
+                starting.add(instance);
+            }
+        }
+        return starting;
+    }
+
+    /**
+     * The claimed agent is idle, and usually past its auto-register timeout. It is kept for
+     * {@link WarmPool#CLAIM_GRACE_PERIOD} or until it claims a job, whichever comes first, so that the server ping
+     * does not disable it before GoCD assigns it the job it was claimed for.
+     * <p>
+     * Only members the last server ping listed as registered and idle are claimed: a member whose pod is still
+     * starting, or whose agent never registered, would leave the job waiting longer than a fresh creation.
+     *
+     * @return the oldest idle agent of the pool, no longer held warm, or <code>null</code> if none is ready
+     */
+    private KubernetesInstance claim(WarmPool pool) {
+        while (true) {
+            KubernetesInstance oldest = null;
+            for (String name : pool.members()) {
+                KubernetesInstance instance = instances.get(name);
+                if (instance != null && instance.creationState() == KubernetesInstance.CreationState.CREATED
+                        && seenIdle.contains(name) && (oldest == null || instance.createdAt().isBefore(oldest.createdAt()))) {
+                    oldest = instance;
+                }
+            }
+            if (oldest == null) {
+                return null;
+            }
+            // another request may have claimed it first
+            if (pool.members().remove(oldest.name())) {
+                seenIdle.remove(oldest.name());
+                claimedWarm.put(oldest.name(), clock.now());
+                LOG.info(String.format("[Warm Pool] Claimed agent %s, %s.", oldest.name(), pool));
+                return oldest;
+            }
+        }
+    }
+
+    private void refill(WarmPool pool, PluginSettings settings, PluginRequest pluginRequest, List<Runnable> creations) throws Exception {
+        synchronized (pool) {
+            pool.members().removeIf(name -> {
+                KubernetesInstance instance = instances.get(name);
+                return instance == null || instance.creationState() == KubernetesInstance.CreationState.FAILED;
+            });
+            String profileFingerprint = Util.fingerprint(pool.template().properties());
+            while (pool.members().size() < pool.size() && startBackOff.heldUntil(profileFingerprint, clock.now()) == null) {
+                KubernetesInstance instance = createInstance(pool.template(), settings, pluginRequest, creations);
+                pool.members().add(instance.name());
+                LOG.debug(String.format("[Warm Pool] Creating warm agent %s, %s.", instance.name(), pool));
+            }
+        }
+    }
+
+    private void refreshWarmPools(PluginSettings settings, PluginRequest pluginRequest, List<Runnable> creations) {
+        for (WarmPool pool : warmPools.values()) {
+            if (pool.isIdle(clock.now())) {
+                LOG.info(String.format("[Warm Pool] No agent was requested for %s, releasing %s.", WarmPool.IDLE_TIMEOUT, pool));
+                warmPools.remove(pool.key());
+                continue;
+            }
+            try {
+                refill(pool, settings, pluginRequest, creations);
+            } catch (Exception e) {
+                LOG.error(String.format("[Warm Pool] Failed to refill %s.", pool), e);
+            }
+        }
+    }
+
+    private void syncImagePrePuller(ClusterProfile cluster, KubernetesClient client, PluginSettings settings, Set<String> imagesInUse) {
+        try {
+            imagePrePuller.sync(cluster.getName(), client, settings.getNamespaces().get(0), settings.isPrepullImages(), settings.getPrepullPauseImage(), imagesInUse, clock.now());
+        } catch (Exception e) {
+            LOG.warn(String.format("[Image Pre-Puller] Failed to update the image pre-puller of cluster %s.", cluster.getName()), e);
+        }
+    }
+
+    private void ensurePriorityClasses(String cluster, KubernetesClient client) {
+        try {
+            priorityClasses.ensure(cluster, client);
+        } catch (Exception e) {
+            LOG.warn(String.format("[Priority Classes] Failed to create the agent priority classes in cluster %s.", cluster), e);
+        }
+    }
+
+    /**
+     * @return the images of the profiles of the current agents, each profile looked at once
+     */
+    private Set<String> imagesInUse() {
+        Map<String, Map<String, String>> profiles = new HashMap<>();
+        for (KubernetesInstance instance : instances.values()) {
+            profiles.putIfAbsent(instance.profileFingerprint(), instance.getInstanceProperties());
+        }
+        Set<String> images = new TreeSet<>();
+        for (Map<String, String> properties : profiles.values()) {
+            images.addAll(ImagePrePuller.imagesOf(properties));
+        }
+        return images;
+    }
+
+    public ImagePrePuller imagePrePuller() {
+        return imagePrePuller;
+    }
+
+    public PlacementHistory placementHistory() {
+        return placementHistory;
+    }
+
+    @Override
+    public boolean claimJob(String agentId) {
+        KubernetesInstance instance = instances.get(agentId);
+        if (instance == null) {
+            return false;
+        }
+        synchronized (claimLock) {
+            if (retiring.contains(agentId) || !agentReuse.claimJob(instance, clock.now())) {
+                return false;
+            }
+            lastJobClaims.put(agentId, jobClaims.incrementAndGet());
+            claimedWarm.remove(agentId);
+            return true;
+        }
+    }
+
+    @Override
+    public long jobClaims() {
+        return jobClaims.get();
+    }
+
+    @Override
+    public boolean retire(String agentId, long jobClaims) {
+        synchronized (claimLock) {
+            Long lastJobClaim = lastJobClaims.get(agentId);
+            if (lastJobClaim != null && lastJobClaim > jobClaims) {
+                return false;
+            }
+            retiring.add(agentId);
+            return true;
+        }
+    }
+
+    @Override
+    public void agentsListed(Agents agents) {
+        Set<String> idle = new HashSet<>();
+        for (Agent agent : agents.agents()) {
+            if (agent.agentState() == Agent.AgentState.Idle && agent.configState() == Agent.ConfigState.Enabled
+                    && instances.containsKey(agent.elasticAgentId())) {
+                idle.add(agent.elasticAgentId());
+            }
+        }
+        seenIdle.retainAll(idle);
+        seenIdle.addAll(idle);
+    }
+
+    @Override
+    public boolean keepIdle(Agent agent) {
+        KubernetesInstance instance = instances.get(agent.elasticAgentId());
+        if (instance == null || agent.agentState() != Agent.AgentState.Idle) {
+            return false;
+        }
+        DateTime claimedAt = claimedWarm.get(agent.elasticAgentId());
+        if (claimedAt != null) {
+            if (clock.now().isBefore(claimedAt.plus(WarmPool.CLAIM_GRACE_PERIOD))) {
+                return true;
+            }
+            LOG.info(String.format("[Warm Pool] Agent %s was not assigned a job within %s of being claimed.", agent.elasticAgentId(), WarmPool.CLAIM_GRACE_PERIOD));
+            claimedWarm.remove(agent.elasticAgentId());
+        }
+        return agentReuse.keepIdle(instance, clock.now());
+    }
+
+    public AgentReuse agentReuse() {
+        return agentReuse;
+    }
+
+    @Override
+    public boolean isWarm(String agentId) {
+        for (WarmPool pool : warmPools.values()) {
+            if (pool.members().contains(agentId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Registers a pending instance for the request, and adds the creation of its pod to <code>creations</code>, to be
+     * {@link #submit(List) submitted} by the caller once it no longer holds any lock.
+     */
+    private KubernetesInstance createInstance(CreateAgentRequest request, PluginSettings settings, PluginRequest pluginRequest, List<Runnable> creations) throws Exception {
+        ClusterProfile cluster = clusterFor(settings);
+        KubernetesClient client = factory.kubernetes(cluster);
+        String namespace = namespaceFor(request, settings, cluster.getName());
+        Pod pod;
         if(isUsingPodYaml(request)) {
-            instance = KubernetesInstance.createUsingPodYaml(request, settings, client, pluginRequest);
+            pod = KubernetesInstance.podFromYaml(request, settings, pluginRequest, namespace);
         } else {
-            instance = KubernetesInstance.create(request, settings, client, pluginRequest);
+            pod = KubernetesInstance.podFor(request, settings, pluginRequest, namespace);
+            cacheVolumes.preferWarmNodes(pod, cluster.getName(), request.properties(), clock.now());
         }
+        placementHistory.preferNodes(pod, cluster.getName(), request.properties(), Util.fingerprint(request.properties()), node -> byNode.get(nodeKey(cluster.getName(), node)).size(), clock.now());
 
+        KubernetesInstance instance = KubernetesInstance.pending(pod, cluster.getName());
         register(instance);
+        creations.add(() -> queueCreation(instance, () -> createPod(client, pod, instance, settings)));
 
         return instance;
     }
 
+    private void submit(List<Runnable> creations) {
+        for (Runnable creation : creations) {
+            creation.run();
+        }
+    }
+
+    /**
+     * Should the {@link PodCreationQueue} be full, the creation is given up, and the instance removed by the next
+     * relist.
+     */
+    private void queueCreation(KubernetesInstance instance, Runnable creation) {
+        try {
+            podCreationQueue.execute(creation);
+        } catch (RejectedExecutionException e) {
+            LOG.warn(String.format("[Create Agent] %d pod creations are waiting for a worker, not creating pod %s.", podCreationQueue.backlog(), instance.name()));
+            completeCreation(instance.name(), KubernetesInstance.CreationState.FAILED);
+        }
+    }
+
+    /**
+     * Should the cluster have too many pending pods, the creation is parked by {@link AdmissionControl} and queued again
+     * by {@link #releaseParkedCreations(String)}, unless the instance was terminated in the meantime. Should too many
+     * creations be parked already, the creation is given up.
+     */
+    private void createPod(KubernetesClient client, Pod pod, KubernetesInstance instance, PluginSettings settings) {
+        try {
+            Runnable retry = () -> queueCreation(instance, () -> {
+                if (isCreationPending(instance.name())) {
+                    createPod(client, pod, instance, settings);
+                }
+            });
+            if (!admissionControl.admitCreate(instance.cluster(), instance.profileFingerprint(), settings, () -> pendingPods(instance.cluster()), retry)) {
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            LOG.warn(String.format("[Create Agent] Not creating pod %s: %s", instance.name(), e.getMessage()));
+            completeCreation(instance.name(), KubernetesInstance.CreationState.FAILED);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error(String.format("[Create Agent] Interrupted while waiting to create pod %s.", instance.name()), e);
+            completeCreation(instance.name(), KubernetesInstance.CreationState.FAILED);
+            return;
+        }
+
+        boolean created = false;
+        boolean stillPending = false;
+        try {
+            cacheVolumes.ensureClaims(client, instance.cluster(), instance.namespace(), instance.getInstanceProperties());
+            KubernetesInstance.createKubernetesPod(client, pod);
+            created = true;
+            stillPending = completeCreation(instance.name(), KubernetesInstance.CreationState.CREATED);
+        } catch (Exception e) {
+            LOG.error(String.format("[Create Agent] Failed to create pod %s in namespace %s of cluster %s.", instance.name(), instance.namespace(), instance.cluster()), e);
+            completeCreation(instance.name(), KubernetesInstance.CreationState.FAILED);
+        } finally {
+            // the pod now counts as pending, if it was created
+            admissionControl.createFinished(instance.cluster());
+        }
+
+        if (!created) {
+            // makes room for a parked creation
+            releaseParkedCreations(instance.cluster());
+            return;
+        }
+        Tombstone tombstone = findTombstone(instance.name());
+        if (!stillPending && tombstone != null) {
+            LOG.info(String.format("[Create Agent] Instance %s was terminated while its pod was being created, deleting the pod.", instance.name()));
+            // the deletion queued by the termination found no pod yet
+            tombstone.complete(Tombstone.Outcome.DELETE_QUEUED);
+            queueDeletion(client, instance, settings, tombstone);
+        }
+    }
+
+    /**
+     * Queues the creations parked by {@link AdmissionControl} that the cluster now has room for. Called when the
+     * watch reports pods that started or went away, and after every refresh.
+     */
+    void releaseParkedCreations(String cluster) {
+        for (Runnable creation : admissionControl.releaseParked(cluster, () -> pendingPods(cluster))) {
+            creation.run();
+        }
+    }
+
+    private boolean isCreationPending(String agentId) {
+        KubernetesInstance current = instances.get(agentId);
+        return current != null && current.creationState() == KubernetesInstance.CreationState.PENDING;
+    }
+
+    /**
+     * The pods of a cluster that were created, but are not running yet.
+     */
+    private int pendingPods(String cluster) {
+        int pending = 0;
+        for (KubernetesInstance instance : lookup(byCluster, cluster)) {
+            if (instance.creationState() == KubernetesInstance.CreationState.CREATED && instance.isStarting()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * @return false if the instance is no longer pending, e.g. because it was terminated in the meantime
+     */
+    private boolean completeCreation(String agentId, KubernetesInstance.CreationState state) {
+        synchronized (writeLock) {
+            KubernetesInstance current = instances.get(agentId);
+            if (current == null || current.creationState() != KubernetesInstance.CreationState.PENDING) {
+                return current != null;
+            }
+            // the indexed attributes do not change
+            instances.put(agentId, current.withCreationState(state));
+            return true;
+        }
+    }
+
+    /**
+     * The configured cluster with the most {@link #headroom(String) headroom}, or the primary cluster if it is the only one.
+     */
+    private ClusterProfile clusterFor(PluginSettings settings) {
+        List<ClusterProfile> clusters = settings.getClusters();
+        if (clusters.size() == 1) {
+            return clusters.get(0);
+        }
+
+        ClusterProfile best = null;
+        int bestHeadroom = Integer.MIN_VALUE;
+        for (ClusterProfile cluster : clusters) {
+            int headroom = headroom(cluster.getName());
+            if (headroom > bestHeadroom) {
+                best = cluster;
+                bestHeadroom = headroom;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The pod slots of a cluster that other workloads left free as of its last reconciliation, less the agents
+     * registered in it and, once more, its pending agents: a backlog of unscheduled pods means its scheduler is not
+     * keeping up.
+     */
+    public int headroom(String cluster) {
+        ClusterCapacity capacity = capacities.get(cluster);
+        int allocatable = capacity == null ? 0 : capacity.freePods();
+        Set<String> instancesInCluster = byCluster.get(cluster);
+        int pending = Sets.intersection(byPhase.get(KUBERNETES_POD_PHASE_PENDING), instancesInCluster).size();
+        return allocatable - instancesInCluster.size() - pending;
+    }
+
+    /**
+     * The namespace from the elastic profile, or else the configured namespace running the fewest instances in the cluster.
+     */
+    private String namespaceFor(CreateAgentRequest request, PluginSettings settings, String cluster) {
+        String namespace = request.properties().get(NAMESPACE.getKey());
+        if (StringUtils.isNotBlank(namespace)) {
+            return namespace.trim();
+        }
+
+        String leastLoaded = null;
+        int fewestInstances = Integer.MAX_VALUE;
+        for (String candidate : settings.getNamespaces()) {
+            int count = Sets.intersection(byNamespace.get(candidate), byCluster.get(cluster)).size();
+            if (count < fewestInstances) {
+                leastLoaded = candidate;
+                fewestInstances = count;
+            }
+        }
+        return leastLoaded;
+    }
+
     private boolean isUsingPodYaml(CreateAgentRequest request) {
         return Boolean.valueOf(request.properties().get(SPECIFIED_USING_POD_CONFIGURATION.getKey()));
     }
 
+    /**
+     * Deregisters the instance and queues the deletion of its pod. Its tombstone says
+     * {@link Tombstone.Outcome#DELETE_QUEUED} until the {@link PodTerminationQueue} completes it. Should the deletion
+     * fail, the pod is registered again by the next relist and terminated again as its agent is gone.
+     */
     @Override
     public void terminate(String agentId, PluginSettings settings) throws Exception {
+        lastSettings = settings;
         KubernetesInstance instance = instances.get(agentId);
-        if (instance != null) {
-            KubernetesClient client = factory.kubernetes(settings);
-            instance.terminate(client);
-        } else {
-            LOG.warn("Requested to terminate an instance that does not exist " + agentId);
+        if (instance == null) {
+            // the tombstone of a concurrent termination is kept
+            if (tombstones.asMap().putIfAbsent(agentId, new Tombstone(clock.now(), Tombstone.Outcome.POD_NOT_FOUND)) == null) {
+                LOG.warn("Requested to terminate an instance that does not exist " + agentId);
+            }
+            deregister(agentId);
+            return;
+        }
+
+        KubernetesClient client;
+        try {
+            client = clientFor(instance, settings);
+        } catch (Exception e) {
+            bury(agentId, Tombstone.Outcome.FAILED);
+            throw e;
+        }
+        Tombstone tombstone;
+        synchronized (writeLock) {
+            // only the termination that deregisters the instance deletes its pod
+            if (!deregister(agentId)) {
+                LOG.debug(String.format("Instance %s is already being terminated.", agentId));
+                return;
+            }
+            tombstone = bury(agentId, Tombstone.Outcome.DELETE_QUEUED);
         }
-        instances.remove(agentId);
+        queueDeletion(client, instance, settings, tombstone);
     }
 
-    @Override
-    public void terminateUnregisteredInstances(PluginSettings settings, Agents agents) throws Exception {
-        KubernetesAgentInstances toTerminate = unregisteredAfterTimeout(settings, agents);
-        if (toTerminate.instances.isEmpty()) {
-            return;
+    /**
+     * Queues the deletion of a pod the cluster evicted or that failed, the way {@link #terminate(String, PluginSettings)}
+     * does, unless its deletion is queued or went through already. The tombstone keeps why the pod went away.
+     */
+    void deletePod(KubernetesInstance instance, KubernetesClient client) {
+        Tombstone tombstone;
+        synchronized (writeLock) {
+            tombstone = findTombstone(instance.name());
+            if (tombstone == null) {
+                tombstone = bury(instance.name(), Tombstone.Outcome.DELETE_QUEUED);
+            } else if (tombstone.isDeletionQueued()) {
+                return;
+            } else {
+                tombstone.complete(Tombstone.Outcome.DELETE_QUEUED);
+            }
         }
+        PluginSettings settings = lastSettings;
+        queueDeletion(client, instance, settings == null ? new PluginSettings() : settings, tombstone);
+    }
+
+    private void queueDeletion(KubernetesClient client, KubernetesInstance instance, PluginSettings settings, Tombstone tombstone) {
+        podTerminationQueue.delete(client, instance, settings, admissionControl, (name, outcome) -> tombstone.complete(outcome));
+    }
 
-        LOG.warn("Terminating instances that did not register " + toTerminate.instances.keySet());
-        for (KubernetesInstance container : toTerminate.instances.values()) {
-            terminate(container.name(), settings);
+    private KubernetesClient clientFor(KubernetesInstance instance, PluginSettings settings) throws Exception {
+        ClusterProfile cluster = settings.getCluster(instance.cluster());
+        if (cluster == null) {
+            throw new IllegalStateException(String.format("Cluster %s of instance %s is not configured.", instance.cluster(), instance.name()));
         }
+        return factory.kubernetes(cluster);
     }
 
     @Override
-    public Agents instancesCreatedAfterTimeout(PluginSettings settings, Agents agents) {
-        ArrayList<Agent> oldAgents = new ArrayList<>();
-        for (Agent agent : agents.agents()) {
-            KubernetesInstance instance = instances.get(agent.elasticAgentId());
-            if (instance == null) {
-                continue;
+    public Tombstone findTombstone(String agentId) {
+        return tombstones.getIfPresent(agentId);
+    }
+
+    private Tombstone bury(String agentId, Tombstone.Outcome outcome) {
+        Tombstone tombstone = new Tombstone(clock.now(), outcome);
+        tombstones.put(agentId, tombstone);
+        return tombstone;
+    }
+
+    /**
+     * Removes an agent whose pod the cluster evicted, preempted or otherwise deleted, and records why, so that the
+     * next server ping disables and deletes its agent. Pods the plugin terminated itself are only deregistered.
+     */
+    public void evicted(String agentId, String reason) {
+        synchronized (writeLock) {
+            if (findTombstone(agentId) == null && hasInstance(agentId)) {
+                LOG.warn(String.format("[Eviction] Pod %s was removed by the cluster: %s. Deregistering its agent.", agentId, reason));
+                tombstones.put(agentId, new Tombstone(clock.now(), Tombstone.Outcome.EVICTED, reason));
+            }
+            deregister(agentId);
+        }
+    }
+
+    /**
+     * Removes an agent whose pod cannot start or failed, such as one stuck pulling its image or crashing on boot, and
+     * records why, rather than waiting for its registration to time out. The pod need not be registered, as after a
+     * restart without a snapshot. New pods of its profile are held back by the {@link StartBackOff}.
+     */
+    public void failedToStart(KubernetesInstance instance, String reason) {
+        synchronized (writeLock) {
+            if (findTombstone(instance.name()) == null) {
+                LOG.warn(String.format("[Failed Pod] Pod %s cannot run its agent: %s. Terminating it.", instance.name(), reason));
+                tombstones.put(instance.name(), new Tombstone(clock.now(), Tombstone.Outcome.FAILED_TO_START, reason));
+                startBackOff.failed(instance.profileFingerprint(), clock.now());
             }
+            deregister(instance.name());
+        }
+    }
 
-            if (clock.now().isAfter(instance.createdAt().plus(settings.getAutoRegisterPeriod()))) {
-                oldAgents.add(agent);
+    /**
+     * Removes an agent whose pod failed after the agent started, such as one killed for running out of memory during a
+     * job. Unlike {@link #failedToStart}, new pods of its profile are not held back.
+     */
+    public void failed(KubernetesInstance instance, String reason) {
+        synchronized (writeLock) {
+            if (findTombstone(instance.name()) == null) {
+                LOG.warn(String.format("[Failed Pod] Pod %s failed: %s. Terminating it.", instance.name(), reason));
+                tombstones.put(instance.name(), new Tombstone(clock.now(), Tombstone.Outcome.POD_FAILED, reason));
             }
+            deregister(instance.name());
         }
-        return new Agents(oldAgents);
+    }
+
+    /**
+     * @return true if the agent got as far as running: its pod was last seen running, or the agent claimed a job
+     */
+    public boolean hasStarted(String agentId) {
+        KubernetesInstance instance = instances.get(agentId);
+        return lastJobClaims.containsKey(agentId) || (instance != null && Constants.KUBERNETES_POD_PHASE_RUNNING.equals(instance.phase()));
+    }
+
+    /**
+     * @return the pods recently deleted because they {@link Tombstone.Outcome#FAILED_TO_START failed to start}, by
+     * name, the most recent first
+     */
+    public Map<String, Tombstone> startFailures() {
+        Map<String, Tombstone> failures = new LinkedHashMap<>();
+        tombstones.asMap().entrySet().stream()
+                .filter(entry -> entry.getValue().outcome() == Tombstone.Outcome.FAILED_TO_START)
+                .sorted(Comparator.comparing((Map.Entry<String, Tombstone> entry) -> entry.getValue().terminatedAt()).reversed())
+                .forEach(entry -> failures.put(entry.getKey(), entry.getValue()));
+        return failures;
+    }
+
+    @Override
+    public List<KubernetesInstance> instancesNotRegisteredAfterTimeout(PluginSettings settings, Agents agents) {
+        List<KubernetesInstance> unregistered = new ArrayList<>();
+        for (String name : unregisteredAfterTimeout(settings, agents)) {
+            KubernetesInstance instance = instances.get(name);
+            if (instance != null) {
+                unregistered.add(instance);
+            }
+        }
+        return unregistered;
+    }
+
+    @Override
+    public boolean isPastRegistrationDeadline(String agentId, PluginSettings settings) {
+        KubernetesInstance instance = instances.get(agentId);
+        return instance != null && clock.now().isAfter(instance.createdAt().plus(settings.getAutoRegisterPeriod()));
     }
 
     @Override
     public void refreshAll(PluginRequest pluginRequest) throws Exception {
+        PluginSettings settings = pluginRequest.getPluginSettings();
+        lastSettings = settings;
+
         LOG.debug("Refreshing Elastic agents.");
-        KubernetesClient client = factory.kubernetes(pluginRequest.getPluginSettings());
-        PodList list = client.pods().inNamespace(Constants.KUBERNETES_NAMESPACE_KEY).list();
-
-        if (!refreshed) {
-            LOG.debug("Syncing k8s elastic agent pod information");
-            for (Pod pod : list.getItems()) {
-                Map<String, String> podLabels = pod.getMetadata().getLabels();
-                if (podLabels != null) {
-                    if (StringUtils.equals(Constants.KUBERNETES_POD_KIND_LABEL_VALUE, podLabels.get(Constants.KUBERNETES_POD_KIND_LABEL_KEY))) {
-                        register(KubernetesInstance.fromInstanceInfo(pod));
+        List<Runnable> creations = new ArrayList<>();
+        try {
+            refreshClusters(settings, pluginRequest, creations);
+        } finally {
+            submit(creations);
+            for (ClusterProfile cluster : settings.getClusters()) {
+                releaseParkedCreations(cluster.getName());
+            }
+        }
+    }
+
+    private synchronized void refreshClusters(PluginSettings settings, PluginRequest pluginRequest, List<Runnable> creations) throws Exception {
+        podCreationQueue.resize(settings.getPodCreationWorkers());
+        podTerminationQueue.resize(settings.getPodDeletionWorkers());
+
+        List<ClusterProfile> clusters = settings.getClusters();
+        forgetUnconfiguredClusters(clusters);
+
+        Map<String, Set<String>> namespacesByCluster = new LinkedHashMap<>();
+        for (ClusterProfile cluster : clusters) {
+            // namespaces removed from the settings stay watched until their last instance is gone
+            Set<String> namespaces = new LinkedHashSet<>(settings.getNamespaces());
+            for (KubernetesInstance instance : lookup(byCluster, cluster.getName())) {
+                namespaces.add(instance.namespace());
+            }
+            namespacesByCluster.put(cluster.getName(), namespaces);
+        }
+        stopWatchersExcept(namespacesByCluster);
+
+        Set<String> imagesInUse = settings.isPrepullImages() ? imagesInUse() : Collections.emptySet();
+        Exception failure = null;
+        for (ClusterProfile cluster : clusters) {
+            try {
+                KubernetesClient client = factory.kubernetes(cluster);
+                if (clusters.size() > 1) {
+                    refreshCapacity(cluster.getName(), client);
+                }
+                syncImagePrePuller(cluster, client, settings, imagesInUse);
+                if (settings.isManagePriorityClasses()) {
+                    ensurePriorityClasses(cluster.getName(), client);
+                }
+                for (String namespace : namespacesByCluster.get(cluster.getName())) {
+                    try {
+                        refresh(cluster.getName(), namespace, client);
+                    } catch (Exception e) {
+                        LOG.error(String.format("Failed to refresh elastic agents in namespace %s of cluster %s.", namespace, cluster.getName()), e);
+                        failure = failure == null ? e : failure;
                     }
                 }
+            } catch (Exception e) {
+                LOG.error(String.format("Failed to connect to cluster %s.", cluster), e);
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        lastSyncedAt = clock.now();
+        refreshWarmPools(settings, pluginRequest, creations);
+        logAdmissionBacklog(settings);
+    }
+
+    private void logAdmissionBacklog(PluginSettings settings) {
+        for (ClusterProfile cluster : settings.getClusters()) {
+            AdmissionControl.Stats stats = admissionControl.stats(cluster.getName());
+            if (stats.waiting() > 0) {
+                LOG.info(String.format("[Admission Control] %d pod creation(s) in cluster %s are waiting to be admitted, %d of them for pending pods to start, %d more are queued. So far %d creation(s) and %d deletion(s) were rate limited and %d creation(s) waited for pending pods.",
+                        stats.waiting(), cluster.getName(), stats.parked(), podCreationQueue.backlog(), stats.throttledCreates(), stats.throttledDeletes(), stats.pendingCapWaits()));
+            }
+        }
+    }
+
+    private void forgetUnconfiguredClusters(List<ClusterProfile> clusters) {
+        Set<String> configured = new HashSet<>();
+        for (ClusterProfile cluster : clusters) {
+            configured.add(cluster.getName());
+        }
+
+        for (String cluster : byCluster.keys()) {
+            if (!configured.contains(cluster)) {
+                LOG.warn(String.format("Cluster %s is no longer configured, removing its instances from the registry.", cluster));
+                for (String name : new ArrayList<>(byCluster.get(cluster))) {
+                    deregister(name);
+                }
+                capacities.remove(cluster);
+            }
+        }
+    }
+
+    private void stopWatchersExcept(Map<String, Set<String>> namespacesByCluster) {
+        for (Iterator<KubernetesPodWatcher> iterator = podWatchers.values().iterator(); iterator.hasNext(); ) {
+            KubernetesPodWatcher podWatcher = iterator.next();
+            Set<String> namespaces = namespacesByCluster.get(podWatcher.cluster());
+            if (namespaces == null || !namespaces.contains(podWatcher.namespace())) {
+                podWatcher.stop();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Reads the capacity of the cluster, unless it was read, or found not to be readable, less than
+     * {@link ClusterCapacity#REFRESH_PERIOD} ago.
+     */
+    void refreshCapacity(String cluster, KubernetesClient client) {
+        ClusterCapacity current = capacities.get(cluster);
+        if (current != null && !current.isStale(clock.now())) {
+            return;
+        }
+        DateTime forbiddenAt = capacityForbidden.get(cluster);
+        if (forbiddenAt != null && forbiddenAt.plus(ClusterCapacity.REFRESH_PERIOD).isAfter(clock.now())) {
+            return;
+        }
+        try {
+            capacities.put(cluster, ClusterCapacity.of(client, clock.now()));
+            capacityForbidden.remove(cluster);
+        } catch (KubernetesClientException e) {
+            if (e.getCode() != HttpURLConnection.HTTP_FORBIDDEN) {
+                LOG.warn(String.format("Failed to read the allocatable capacity of cluster %s, it will only receive new agents when no other cluster has room.", cluster), e);
+            } else if (capacityForbidden.put(cluster, clock.now()) == null) {
+                LOG.warn(String.format("Not allowed to list the nodes of cluster %s, it will only receive new agents when no other cluster has room. Grant the plugin list access to nodes to route agents by capacity.", cluster));
+            }
+            capacities.remove(cluster);
+        } catch (Exception e) {
+            LOG.warn(String.format("Failed to read the allocatable capacity of cluster %s, it will only receive new agents when no other cluster has room.", cluster), e);
+            capacities.remove(cluster);
+        }
+    }
+
+    private void refresh(String cluster, String namespace, KubernetesClient client) {
+        String key = watchKey(cluster, namespace);
+        KubernetesPodWatcher podWatcher = podWatchers.get(key);
+        if (podWatcher != null && podWatcher.isWatching(client)) {
+            podWatcher.resync();
+            return;
+        }
+
+        if (podWatcher != null) {
+            podWatcher.stop();
+        }
+        podWatcher = new KubernetesPodWatcher(this, client, cluster, namespace, restoredResourceVersions.remove(key));
+        podWatchers.put(key, podWatcher);
+        podWatcher.start();
+    }
+
+    private static String watchKey(String cluster, String namespace) {
+        return cluster + "/" + namespace;
+    }
+
+    private static String nodeKey(String cluster, String nodeName) {
+        return StringUtils.isBlank(nodeName) ? null : cluster + "/" + nodeName;
+    }
+
+    /**
+     * Seeds the registry from a snapshot taken before the plugin was restarted. The snapshot counts as a sync, so
+     * requests are answered from it right away; the next refresh resumes the pod watches from the snapshot's
+     * resourceVersions, and the relist that corrects any drift happens on the reconciliation thread. Creations that
+     * were still pending did not survive the restart, so their instances are restored as failed: the relist keeps
+     * those whose pod was created and removes the others.
+     */
+    public synchronized void restore(RegistrySnapshot snapshot) {
+        if (snapshot == null) {
+            return;
+        }
+        for (KubernetesInstance instance : snapshot.instances()) {
+            if (instance.creationState() == KubernetesInstance.CreationState.PENDING) {
+                instance = instance.withCreationState(KubernetesInstance.CreationState.FAILED);
             }
+            register(instance);
+        }
+        for (Map.Entry<String, Map<String, String>> cluster : snapshot.resourceVersions().entrySet()) {
+            for (Map.Entry<String, String> namespace : cluster.getValue().entrySet()) {
+                restoredResourceVersions.put(watchKey(cluster.getKey(), namespace.getKey()), namespace.getValue());
+            }
+        }
+        lastSyncedAt = clock.now();
+        LOG.info(String.format("Restored %d instance(s) from registry snapshot at resource versions %s.", snapshot.instances().size(), snapshot.resourceVersions()));
+    }
 
-            refreshed = true;
+    public synchronized RegistrySnapshot snapshot() {
+        Map<String, Map<String, String>> resourceVersions = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : restoredResourceVersions.entrySet()) {
+            String[] clusterAndNamespace = entry.getKey().split("/", 2);
+            resourceVersions.computeIfAbsent(clusterAndNamespace[0], cluster -> new LinkedHashMap<>()).put(clusterAndNamespace[1], entry.getValue());
+        }
+        for (KubernetesPodWatcher podWatcher : podWatchers.values()) {
+            if (podWatcher.resourceVersion() != null) {
+                resourceVersions.computeIfAbsent(podWatcher.cluster(), cluster -> new LinkedHashMap<>()).put(podWatcher.namespace(), podWatcher.resourceVersion());
+            }
         }
+        return new RegistrySnapshot(resourceVersions, instances.values());
+    }
+
+    public AdmissionControl admissionControl() {
+        return admissionControl;
+    }
+
+    public PodCreationQueue podCreationQueue() {
+        return podCreationQueue;
+    }
+
+    public PodTerminationQueue podTerminationQueue() {
+        return podTerminationQueue;
+    }
+
+    /**
+     * @return the capacity of each cluster as of the last reconciliation, for clusters it could be read from
+     */
+    public Map<String, ClusterCapacity> capacities() {
+        return Collections.unmodifiableMap(capacities);
+    }
+
+    /**
+     * @return the time at which the registry was last reconciled with the cluster, or <code>null</code> if it never was
+     */
+    public DateTime lastSyncedAt() {
+        return lastSyncedAt;
     }
 
     @Override
@@ -137,27 +962,117 @@ public class KubernetesAgentInstances implements AgentInstances<KubernetesInstan
         return instances.containsKey(agentId);
     }
 
-    private void register(KubernetesInstance instance) {
-        instances.put(instance.name(), instance);
+    public List<KubernetesInstance> findByEnvironment(String environment) {
+        return lookup(byEnvironment, lowerCase(environment));
     }
 
-    private KubernetesAgentInstances unregisteredAfterTimeout(PluginSettings settings, Agents knownAgents) throws Exception {
-        Period period = settings.getAutoRegisterPeriod();
-        KubernetesAgentInstances unregisteredInstances = new KubernetesAgentInstances();
-        KubernetesClient client = factory.kubernetes(settings);
+    public List<KubernetesInstance> findByProfile(String profileFingerprint) {
+        return lookup(byProfile, profileFingerprint);
+    }
 
-        for (String instanceName : instances.keySet()) {
-            if (knownAgents.containsAgentWithId(instanceName)) {
-                continue;
+    public List<KubernetesInstance> findByNode(String cluster, String nodeName) {
+        return lookup(byNode, nodeKey(cluster, nodeName));
+    }
+
+    public List<KubernetesInstance> findByPhase(String phase) {
+        return lookup(byPhase, phase);
+    }
+
+    public List<KubernetesInstance> findByNamespace(String namespace) {
+        return lookup(byNamespace, namespace);
+    }
+
+    public List<KubernetesInstance> findByCluster(String cluster) {
+        return lookup(byCluster, cluster);
+    }
+
+    private List<KubernetesInstance> lookup(InstanceIndex index, String key) {
+        List<KubernetesInstance> matches = new ArrayList<>();
+        for (String name : index.get(key)) {
+            KubernetesInstance instance = instances.get(name);
+            if (instance != null) {
+                matches.add(instance);
+            }
+        }
+        return matches;
+    }
+
+    void register(KubernetesInstance instance) {
+        synchronized (writeLock) {
+            // checked under the lock, so that a pod is never registered again once its termination deregistered it
+            Tombstone tombstone = findTombstone(instance.name());
+            if (tombstone != null && tombstone.isPodGone()) {
+                // a pod we deleted is still reported by the watch or a list until it is gone
+                return;
+            }
+
+            KubernetesInstance previous = instances.put(instance.name(), instance);
+            if (previous == null) {
+                registrationDeadlines.schedule(instance.name(), instance.createdAt());
             }
-            Pod pod = client.pods().inNamespace(Constants.KUBERNETES_NAMESPACE_KEY).withName(instanceName).get();
-            Date createdAt = getSimpleDateFormat().parse(pod.getMetadata().getCreationTimestamp());
-            DateTime dateTimeCreated = new DateTime(createdAt);
+            if (Constants.KUBERNETES_POD_PHASE_RUNNING.equals(instance.phase())) {
+                startBackOff.started(instance.profileFingerprint());
+            }
+            if (instance.nodeName() != null && (previous == null || previous.nodeName() == null)) {
+                cacheVolumes.usedOn(instance.cluster(), instance.nodeName(), instance.getInstanceProperties(), clock.now());
+                placementHistory.record(instance.cluster(), instance.nodeName(), instance.getInstanceProperties(), instance.profileFingerprint(), clock.now());
+            }
+            for (InstanceIndex index : indexes) {
+                if (previous != null) {
+                    index.remove(previous);
+                }
+                index.add(instance);
+            }
+        }
+    }
 
-            if (clock.now().isAfter(dateTimeCreated.plus(period))) {
-                unregisteredInstances.register(KubernetesInstance.fromInstanceInfo(pod));
+    /**
+     * @return false if the instance was not registered
+     */
+    boolean deregister(String agentId) {
+        synchronized (writeLock) {
+            KubernetesInstance previous = instances.remove(agentId);
+            agentReuse.forget(agentId);
+            lastJobClaims.remove(agentId);
+            retiring.remove(agentId);
+            claimedWarm.remove(agentId);
+            seenIdle.remove(agentId);
+            registrationDeadlines.cancel(agentId);
+            pastRegistrationDeadline.remove(agentId);
+            if (previous != null) {
+                for (InstanceIndex index : indexes) {
+                    index.remove(previous);
+                }
             }
+            return previous != null;
         }
-        return unregisteredInstances;
+    }
+
+    void deregisterAllExcept(String cluster, String namespace, Set<String> agentIds, DateTime createdBefore) {
+        for (KubernetesInstance instance : lookup(byNamespace, namespace)) {
+            if (instance.cluster().equals(cluster) && instance.creationState() != KubernetesInstance.CreationState.PENDING
+                    && !agentIds.contains(instance.name()) && instance.createdAt().isBefore(createdBefore)) {
+                LOG.debug(String.format("Pod %s no longer exists, removing it from the registry.", instance.name()));
+                deregister(instance.name());
+            }
+        }
+    }
+
+    private List<String> unregisteredAfterTimeout(PluginSettings settings, Agents knownAgents) {
+        expireRegistrationDeadlines(settings);
+        List<String> unregistered = new ArrayList<>();
+        for (String name : pastRegistrationDeadline) {
+            if (knownAgents.containsAgentWithId(name)) {
+                // registered, from now on the server ping checks its deadline with the agent
+                pastRegistrationDeadline.remove(name);
+            } else {
+                unregistered.add(name);
+            }
+        }
+        return unregistered;
+    }
+
+    private void expireRegistrationDeadlines(PluginSettings settings) {
+        pastRegistrationDeadline.addAll(registrationDeadlines.advance(clock.now().minus(settings.getAutoRegisterPeriod())));
     }
 }
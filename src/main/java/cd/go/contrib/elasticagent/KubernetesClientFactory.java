@@ -22,40 +22,64 @@ import io.fabric8.kubernetes.client.DefaultKubernetesClient;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import org.apache.commons.lang3.StringUtils;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
 public class KubernetesClientFactory {
     private static final KubernetesClientFactory KUBERNETES_CLIENT_FACTORY = new KubernetesClientFactory();
-    private KubernetesClient client;
-    private PluginSettings pluginSettings;
+    private final Map<String, ClusterProfile> profiles = new HashMap<>();
+    private final Map<String, KubernetesClient> clients = new HashMap<>();
 
     public static KubernetesClientFactory instance() {
         return KUBERNETES_CLIENT_FACTORY;
     }
 
-    private static KubernetesClient createClient(PluginSettings pluginSettings) throws Exception {
-        ConfigBuilder configBuilder = new ConfigBuilder().withMasterUrl(pluginSettings.getKubernetesClusterUrl());
-        if (StringUtils.isNotBlank(pluginSettings.getKubernetesClusterUsername())) {
-            configBuilder.withUsername(pluginSettings.getKubernetesClusterUsername());
+    private static KubernetesClient createClient(ClusterProfile cluster) throws Exception {
+        ConfigBuilder configBuilder = new ConfigBuilder().withMasterUrl(cluster.getClusterUrl());
+        if (StringUtils.isNotBlank(cluster.getUsername())) {
+            configBuilder.withUsername(cluster.getUsername());
         }
 
-        if (StringUtils.isNotBlank(pluginSettings.getKubernetesClusterPassword())) {
-            configBuilder.withPassword(pluginSettings.getKubernetesClusterPassword());
+        if (StringUtils.isNotBlank(cluster.getPassword())) {
+            configBuilder.withPassword(cluster.getPassword());
         }
 
-        if (StringUtils.isNotBlank(pluginSettings.getKubernetesClusterCACert())) {
-            configBuilder.withCaCertData(pluginSettings.getKubernetesClusterCACert());
+        if (StringUtils.isNotBlank(cluster.getCaCert())) {
+            configBuilder.withCaCertData(cluster.getCaCert());
         }
 
         Config build = configBuilder.build();
         return new DefaultKubernetesClient(build);
     }
 
-    public synchronized KubernetesClient kubernetes(PluginSettings pluginSettings) throws Exception {
-        if (pluginSettings.equals(this.pluginSettings) && this.client != null) {
-            return this.client;
+    public KubernetesClient kubernetes(PluginSettings pluginSettings) throws Exception {
+        return kubernetes(pluginSettings.getPrimaryCluster());
+    }
+
+    /**
+     * @return the client of the named cluster, recreated whenever the cluster's URL or credentials change. The client
+     * it replaces is closed, along with its connections and any watch still using it.
+     */
+    public synchronized KubernetesClient kubernetes(ClusterProfile cluster) throws Exception {
+        KubernetesClient client = clients.get(cluster.getName());
+        if (client != null && cluster.equals(profiles.get(cluster.getName()))) {
+            return client;
         }
 
-        this.pluginSettings = pluginSettings;
-        this.client = createClient(pluginSettings);
-        return this.client;
+        KubernetesClient replaced = client;
+        client = createClient(cluster);
+        profiles.put(cluster.getName(), cluster);
+        clients.put(cluster.getName(), client);
+        if (replaced != null) {
+            LOG.info(String.format("The settings of cluster %s changed, closing its previous client.", cluster.getName()));
+            try {
+                replaced.close();
+            } catch (Exception e) {
+                LOG.warn(String.format("Failed to close the previous client of cluster %s.", cluster.getName()), e);
+            }
+        }
+        return client;
     }
-}
\ No newline at end of file
+}
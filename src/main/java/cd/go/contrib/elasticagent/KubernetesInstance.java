@@ -19,11 +19,6 @@ package cd.go.contrib.elasticagent;
 import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
 import cd.go.contrib.elasticagent.utils.Size;
 import cd.go.contrib.elasticagent.utils.Util;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
-import com.github.mustachejava.DefaultMustacheFactory;
-import com.github.mustachejava.Mustache;
-import com.github.mustachejava.MustacheFactory;
 import io.fabric8.kubernetes.api.model.*;
 import io.fabric8.kubernetes.client.KubernetesClient;
 import org.apache.commons.lang3.StringUtils;
@@ -31,32 +26,68 @@ import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static cd.go.contrib.elasticagent.Constants.KUBERNETES_POD_CREATION_TIME_FORMAT;
+import static cd.go.contrib.elasticagent.Constants.KUBERNETES_POD_PHASE_PENDING;
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
-import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.POD_CONFIGURATION;
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.*;
 import static cd.go.contrib.elasticagent.utils.Util.getSimpleDateFormat;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
 public class KubernetesInstance {
+    /**
+     * Where the plugin's request to create the pod stands. Pods seen in the cluster are always {@link #CREATED}.
+     */
+    public enum CreationState {
+        PENDING,
+        CREATED,
+        FAILED
+    }
+
+    static final PodTemplateCache POD_TEMPLATES = new PodTemplateCache();
+
     private final DateTime createdAt;
     private final String environment;
     private final Map<String, String> properties;
+    private final String profileFingerprint;
+    private final String nodeName;
+    private final String phase;
+    private final String cluster;
+    private final String namespace;
+    private final CreationState creationState;
     private String name;
 
-    private KubernetesInstance(String name, Date createdAt, String environment, Map<String, String> properties) {
+    private KubernetesInstance(String name, String cluster, String namespace, Date createdAt, String environment, Map<String, String> properties, String nodeName, String phase) {
+        this(name, cluster, namespace, new DateTime(createdAt), environment, properties, Util.fingerprint(properties), nodeName, phase, CreationState.CREATED);
+    }
+
+    /**
+     * An instance restored from a {@link RegistrySnapshot}, as of when the snapshot was taken.
+     */
+    KubernetesInstance(String name, String cluster, String namespace, DateTime createdAt, String environment, Map<String, String> properties, String nodeName, String phase) {
+        this(name, cluster, namespace, createdAt, environment, properties, Util.fingerprint(properties), nodeName, phase, CreationState.CREATED);
+    }
+
+    private KubernetesInstance(String name, String cluster, String namespace, DateTime createdAt, String environment, Map<String, String> properties, String profileFingerprint, String nodeName, String phase, CreationState creationState) {
         this.name = name;
-        this.createdAt = new DateTime(createdAt).withZone(DateTimeZone.UTC);
+        this.cluster = StringUtils.isBlank(cluster) ? ClusterProfile.PRIMARY : cluster;
+        this.namespace = StringUtils.isBlank(namespace) ? Constants.KUBERNETES_NAMESPACE_KEY : namespace;
+        this.createdAt = createdAt.withZone(DateTimeZone.UTC);
         this.environment = environment;
         this.properties = properties;
+        this.profileFingerprint = profileFingerprint;
+        this.nodeName = nodeName;
+        this.phase = StringUtils.isBlank(phase) ? KUBERNETES_POD_PHASE_PENDING : phase;
+        this.creationState = creationState;
     }
 
-    public static KubernetesInstance create(CreateAgentRequest request, PluginSettings settings, KubernetesClient client, PluginRequest pluginRequest) {
+    /**
+     * @return the spec of a new elastic agent pod for the request, to be created in the given namespace
+     */
+    public static Pod podFor(CreateAgentRequest request, PluginSettings settings, PluginRequest pluginRequest, String namespace) {
         String containerName = Constants.KUBERNETES_POD_NAME + UUID.randomUUID().toString();
 
         Container container = new Container();
@@ -65,24 +96,13 @@ public class KubernetesInstance {
         container.setImagePullPolicy("IfNotPresent");
 
         ResourceRequirements resources = new ResourceRequirements();
-        resources.setLimits(new HashMap<String, Quantity>() {{
-            String maxMemory = request.properties().get("MaxMemory");
-            if (StringUtils.isNotBlank(maxMemory)) {
-                LOG.debug(String.format("[Create Agent] Setting memory resource limit on k8s pod:%s", maxMemory));
-                Size mem = Size.parse(maxMemory);
-                put("memory", new Quantity(String.valueOf(mem.toMegabytes()), "Mi"));
-            }
-
-            String maxCPU = request.properties().get("MaxCPU");
-            if (StringUtils.isNotBlank(maxCPU)) {
-                LOG.debug(String.format("[Create Agent] Setting cpu resource limit on k8s pod:%s", maxCPU));
-                put("cpu", new Quantity(maxCPU));
-            }
-        }});
+        resources.setLimits(resourceLimits(request.properties()));
+        resources.setRequests(resourceRequests(request.properties(), resources.getLimits()));
         container.setResources(resources);
 
         ObjectMeta podMetadata = new ObjectMeta();
         podMetadata.setName(containerName);
+        podMetadata.setNamespace(namespace);
 
         PodSpec podSpec = new PodSpec();
         podSpec.setContainers(Arrays.asList(container));
@@ -92,13 +112,102 @@ public class KubernetesInstance {
         setContainerEnvVariables(elasticAgentPod, request, settings, pluginRequest);
         setAnnotations(elasticAgentPod, request);
         setLabels(elasticAgentPod, request);
+        setPriorityClass(elasticAgentPod, request);
+        CacheVolumes.addTo(elasticAgentPod, request.properties());
+
+        return elasticAgentPod;
+    }
+
+    /**
+     * Adds a soft node affinity of the given weight (1-100) towards the nodes, keeping any affinity the pod already has.
+     */
+    @SuppressWarnings("unchecked")
+    static void preferNodes(Pod pod, Collection<String> nodes, int weight) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+
+        Map<String, Object> matchExpression = new LinkedHashMap<>();
+        matchExpression.put("key", "kubernetes.io/hostname");
+        matchExpression.put("operator", "In");
+        matchExpression.put("values", new ArrayList<>(nodes));
+        Map<String, Object> term = new LinkedHashMap<>();
+        term.put("weight", weight);
+        term.put("preference", Collections.singletonMap("matchExpressions", Collections.singletonList(matchExpression)));
+
+        // affinity is not modelled by this version of the client
+        Map<String, Object> additionalProperties = pod.getSpec().getAdditionalProperties();
+        Map<String, Object> affinity = (Map<String, Object>) additionalProperties.computeIfAbsent("affinity", key -> new LinkedHashMap<>());
+        Map<String, Object> nodeAffinity = (Map<String, Object>) affinity.computeIfAbsent("nodeAffinity", key -> new LinkedHashMap<>());
+        List<Object> preferred = (List<Object>) nodeAffinity.computeIfAbsent("preferredDuringSchedulingIgnoredDuringExecution", key -> new ArrayList<>());
+        preferred.add(term);
+    }
+
+    private static Map<String, Quantity> resourceLimits(Map<String, String> properties) {
+        Map<String, Quantity> limits = new HashMap<>();
+        String maxMemory = properties.get(MAX_MEMORY.getKey());
+        if (StringUtils.isNotBlank(maxMemory)) {
+            LOG.debug(String.format("[Create Agent] Setting memory resource limit on k8s pod:%s", maxMemory));
+            limits.put("memory", megabytes(maxMemory));
+        }
+
+        String maxCPU = properties.get(MAX_CPU.getKey());
+        if (StringUtils.isNotBlank(maxCPU)) {
+            LOG.debug(String.format("[Create Agent] Setting cpu resource limit on k8s pod:%s", maxCPU));
+            limits.put("cpu", new Quantity(maxCPU.trim()));
+        }
+
+        String maxEphemeralStorage = properties.get(MAX_EPHEMERAL_STORAGE.getKey());
+        if (StringUtils.isNotBlank(maxEphemeralStorage)) {
+            limits.put("ephemeral-storage", megabytes(maxEphemeralStorage));
+        }
+        return limits;
+    }
+
+    /**
+     * With Guaranteed QoS the memory and cpu requests are the limits, so the pod is the last to be evicted and is
+     * never throttled below its limit.
+     */
+    private static Map<String, Quantity> resourceRequests(Map<String, String> properties, Map<String, Quantity> limits) {
+        Map<String, Quantity> requests = new HashMap<>();
+        String minMemory = properties.get(MIN_MEMORY.getKey());
+        if (StringUtils.isNotBlank(minMemory)) {
+            requests.put("memory", megabytes(minMemory));
+        }
+
+        String minCPU = properties.get(MIN_CPU.getKey());
+        if (StringUtils.isNotBlank(minCPU)) {
+            requests.put("cpu", new Quantity(minCPU.trim()));
+        }
+
+        String minEphemeralStorage = properties.get(MIN_EPHEMERAL_STORAGE.getKey());
+        if (StringUtils.isNotBlank(minEphemeralStorage)) {
+            requests.put("ephemeral-storage", megabytes(minEphemeralStorage));
+        }
+
+        if (Boolean.valueOf(properties.get(GUARANTEED_QOS.getKey()))) {
+            LOG.debug("[Create Agent] Setting resource requests to the limits for Guaranteed QoS");
+            for (String resource : Arrays.asList("memory", "cpu")) {
+                if (limits.containsKey(resource)) {
+                    requests.put(resource, limits.get(resource));
+                }
+            }
+        }
+        return requests;
+    }
 
-        return createKubernetesPod(client, elasticAgentPod);
+    private static Quantity megabytes(String size) {
+        return new Quantity(String.valueOf(Size.parse(size.trim()).toMegabytes()), "Mi");
     }
 
     private static void setLabels(Pod pod, CreateAgentRequest request) {
         Map<String, String> existingLabels = (pod.getMetadata().getLabels() != null) ? pod.getMetadata().getLabels() : new HashMap<>();
         existingLabels.putAll(labelsFrom(request));
+        // lets the pods be selected for deletion together, if the name is short enough to be a label value
+        String name = pod.getMetadata().getName();
+        if (name != null && name.length() <= 63) {
+            existingLabels.put(Constants.POD_NAME_LABEL_KEY, name);
+        }
         pod.getMetadata().setLabels(existingLabels);
     }
 
@@ -108,13 +217,36 @@ public class KubernetesInstance {
         pod.getMetadata().setAnnotations(existingAnnotations);
     }
 
-    private static KubernetesInstance createKubernetesPod(KubernetesClient client, Pod elasticAgentPod) {
+    /**
+     * The priority class of the profile takes precedence over any priority the pod yaml asks for.
+     */
+    private static void setPriorityClass(Pod pod, CreateAgentRequest request) {
+        String priorityClass = request.properties().get(PRIORITY_CLASS.getKey());
+        if (StringUtils.isBlank(priorityClass)) {
+            return;
+        }
+        // not modelled by this version of the client
+        pod.getSpec().getAdditionalProperties().remove("priority");
+        pod.getSpec().setAdditionalProperty("priorityClassName", priorityClass.trim());
+    }
+
+    public static void createKubernetesPod(KubernetesClient client, Pod elasticAgentPod) {
         LOG.info(String.format("[Create Agent] Creating K8s pod with spec:%s", elasticAgentPod.toString()));
-        client.pods().inNamespace(Constants.KUBERNETES_NAMESPACE_KEY).create(elasticAgentPod);
-        return fromInstanceInfo(elasticAgentPod);
+        client.pods().inNamespace(elasticAgentPod.getMetadata().getNamespace()).create(elasticAgentPod);
     }
 
-    static KubernetesInstance fromInstanceInfo(Pod elasticAgentPod) {
+    /**
+     * An instance for a pod the plugin has requested, but not yet created.
+     */
+    public static KubernetesInstance pending(Pod elasticAgentPod, String cluster) {
+        return fromInstanceInfo(elasticAgentPod, cluster).withCreationState(CreationState.PENDING);
+    }
+
+    public KubernetesInstance withCreationState(CreationState creationState) {
+        return new KubernetesInstance(name, cluster, namespace, createdAt, environment, properties, profileFingerprint, nodeName, phase, creationState);
+    }
+
+    static KubernetesInstance fromInstanceInfo(Pod elasticAgentPod, String cluster) {
         try {
             ObjectMeta metadata = elasticAgentPod.getMetadata();
             String containerName = metadata.getName();
@@ -124,7 +256,9 @@ public class KubernetesInstance {
             if(StringUtils.isNotBlank(metadata.getCreationTimestamp())) {
                 date = getSimpleDateFormat().parse(metadata.getCreationTimestamp());
             }
-            return new KubernetesInstance(containerName, date, environment, metadata.getAnnotations());
+            String nodeName = elasticAgentPod.getSpec() != null ? elasticAgentPod.getSpec().getNodeName() : null;
+            String phase = elasticAgentPod.getStatus() != null ? elasticAgentPod.getStatus().getPhase() : null;
+            return new KubernetesInstance(containerName, cluster, metadata.getNamespace(), date, environment, metadata.getAnnotations(), nodeName, phase);
         } catch (ParseException e) {
             throw new RuntimeException(e);
         }
@@ -199,6 +333,43 @@ public class KubernetesInstance {
         return environment;
     }
 
+    /**
+     * @return the name of the {@link ClusterProfile} the pod runs in
+     */
+    public String cluster() {
+        return cluster;
+    }
+
+    public String namespace() {
+        return namespace;
+    }
+
+    public String profileFingerprint() {
+        return profileFingerprint;
+    }
+
+    public String nodeName() {
+        return nodeName;
+    }
+
+    public String phase() {
+        return phase;
+    }
+
+    public CreationState creationState() {
+        return creationState;
+    }
+
+    /**
+     * @return true while the pod is being created or waits to be scheduled or for its images
+     */
+    public boolean isStarting() {
+        if (creationState != CreationState.CREATED) {
+            return creationState == CreationState.PENDING;
+        }
+        return phase == null || KUBERNETES_POD_PHASE_PENDING.equals(phase);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -214,47 +385,41 @@ public class KubernetesInstance {
         return name != null ? name.hashCode() : 0;
     }
 
-    public void terminate(KubernetesClient client) {
-        client.pods().inNamespace(Constants.KUBERNETES_NAMESPACE_KEY).withName(name).delete();
+    /**
+     * @return false if the pod did not exist
+     */
+    public boolean terminate(KubernetesClient client) {
+        return !Boolean.FALSE.equals(client.pods().inNamespace(namespace).withName(name).delete());
     }
 
     public Map<String, String> getInstanceProperties() {
         return properties;
     }
 
-    public static KubernetesInstance createUsingPodYaml(CreateAgentRequest request, PluginSettings settings, KubernetesClient client, PluginRequest pluginRequest) {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+    /**
+     * @param namespace the namespace to create the pod in, if the pod yaml does not specify one
+     */
+    public static Pod podFromYaml(CreateAgentRequest request, PluginSettings settings, PluginRequest pluginRequest, String namespace) {
         String podYaml = request.properties().get(POD_CONFIGURATION.getKey());
 
-        StringWriter writer = new StringWriter();
-        MustacheFactory mf = new DefaultMustacheFactory();
-        Mustache mustache = mf.compile(new StringReader(podYaml), "templatePod");
-        mustache.execute(writer, KubernetesInstance.getJinJavaContext());
-        String templatizedPodYaml = writer.toString();
-
         Pod elasticAgentPod = new Pod();
         try {
-            elasticAgentPod = mapper.readValue(templatizedPodYaml, Pod.class);
+            elasticAgentPod = POD_TEMPLATES.podFor(podYaml);
         } catch (IOException e) {
             //ignore error here, handle this inside validate profile!
             e.printStackTrace();
         }
 
         elasticAgentPod.getMetadata().setCreationTimestamp(getSimpleDateFormat().format(new Date()));
+        if (StringUtils.isBlank(elasticAgentPod.getMetadata().getNamespace())) {
+            elasticAgentPod.getMetadata().setNamespace(namespace);
+        }
 
         setContainerEnvVariables(elasticAgentPod, request, settings, pluginRequest);
         setAnnotations(elasticAgentPod, request);
         setLabels(elasticAgentPod, request);
+        setPriorityClass(elasticAgentPod, request);
 
-        return createKubernetesPod(client, elasticAgentPod);
-    }
-
-    public static Map<String, String> getJinJavaContext() {
-        HashMap<String, String> context = new HashMap<>();
-        context.put(Constants.POD_POSTFIX, UUID.randomUUID().toString());
-        context.put(Constants.CONTAINER_POSTFIX, UUID.randomUUID().toString());
-        context.put(Constants.GOCD_AGENT_IMAGE, "gocd/gocd-agent-alpine-3.5");
-        context.put(Constants.LATEST_VERSION, "v17.10.0");
-        return context;
+        return elasticAgentPod;
     }
 }
@@ -21,6 +21,7 @@ import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
 import cd.go.contrib.elasticagent.requests.ProfileValidateRequest;
 import cd.go.contrib.elasticagent.requests.ShouldAssignWorkRequest;
 import cd.go.contrib.elasticagent.requests.ValidatePluginSettings;
+import cd.go.contrib.elasticagent.utils.SingleFlight;
 import com.thoughtworks.go.plugin.api.GoApplicationAccessor;
 import com.thoughtworks.go.plugin.api.GoPlugin;
 import com.thoughtworks.go.plugin.api.GoPluginIdentifier;
@@ -31,6 +32,8 @@ import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
+import java.io.File;
+
 import static cd.go.contrib.elasticagent.Constants.PLUGIN_IDENTIFIER;
 
 @Extension
@@ -38,12 +41,23 @@ public class KubernetesPlugin implements GoPlugin {
     public static final Logger LOG = Logger.getLoggerFor(KubernetesPlugin.class);
 
     private PluginRequest pluginRequest;
-    private AgentInstances agentInstances;
+    private KubernetesAgentInstances agentInstances;
+    private ReconciliationScheduler reconciliationScheduler;
+    private final PingBacklog pingBacklog = new PingBacklog();
+    // server pings arriving while one runs share its outcome, so agents are not disabled or terminated twice
+    private final SingleFlight<GoPluginApiResponse> pings = new SingleFlight<>();
 
     @Override
     public void initializeGoApplicationAccessor(GoApplicationAccessor accessor) {
+        if (reconciliationScheduler != null) {
+            reconciliationScheduler.stop();
+        }
         pluginRequest = new PluginRequest(accessor);
         agentInstances = new KubernetesAgentInstances();
+        File snapshotFile = RegistrySnapshot.defaultFile();
+        agentInstances.restore(RegistrySnapshot.readFrom(snapshotFile));
+        reconciliationScheduler = new ReconciliationScheduler(agentInstances, pluginRequest, snapshotFile);
+        reconciliationScheduler.start();
     }
 
     @Override
@@ -65,18 +79,25 @@ public class KubernetesPlugin implements GoPlugin {
                 case REQUEST_GET_PROFILE_VIEW:
                     return new GetProfileViewExecutor().execute();
                 case REQUEST_VALIDATE_PROFILE:
-                    return ProfileValidateRequest.fromJSON(request.requestBody()).executor().execute();
+                    ProfileValidateRequest profileValidateRequest = ProfileValidateRequest.fromJSON(request.requestBody());
+                    GoPluginApiResponse validation = profileValidateRequest.executor().execute();
+                    if ("[]".equals(validation.responseBody())) {
+                        agentInstances.imagePrePuller().learn(ImagePrePuller.imagesOf(profileValidateRequest.getProperties()), agentInstances.clock.now());
+                    }
+                    return validation;
                 case REQUEST_CREATE_AGENT:
-                    refreshInstances();
+                    reconciliationScheduler.ensureFresh();
                     return CreateAgentRequest.fromJSON(request.requestBody()).executor(agentInstances, pluginRequest).execute();
                 case REQUEST_SHOULD_ASSIGN_WORK:
-                    refreshInstances();
+                    reconciliationScheduler.ensureFresh();
                     return ShouldAssignWorkRequest.fromJSON(request.requestBody()).executor(agentInstances).execute();
                 case REQUEST_SERVER_PING:
-                    refreshInstances();
-                    return new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+                    return pings.run(() -> {
+                        reconciliationScheduler.ensureFresh();
+                        return new ServerPingRequestExecutor(agentInstances, pluginRequest, pingBacklog).execute();
+                    });
                 case REQUEST_STATUS_REPORT:
-                    return new StatusReportExecutor(pluginRequest).execute();
+                    return new StatusReportExecutor(pluginRequest, agentInstances).execute();
                 default:
                     throw new UnhandledRequestTypeException(request.requestName());
             }
@@ -86,14 +107,6 @@ public class KubernetesPlugin implements GoPlugin {
         }
     }
 
-    private void refreshInstances() {
-        try {
-            agentInstances.refreshAll(pluginRequest);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     @Override
     public GoPluginIdentifier pluginIdentifier() {
         return PLUGIN_IDENTIFIER;
@@ -0,0 +1,341 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.*;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.net.HttpURLConnection;
+import java.util.*;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Keeps {@link KubernetesAgentInstances} in sync with the elastic agent pods of a namespace in one cluster.
+ * <p>
+ * The registry is seeded with a (paged) LIST call, after which a long-lived watch applies pod changes incrementally.
+ * When the watch is disconnected it is resumed from the last seen resourceVersion; a full relist only happens when
+ * the API server no longer has that version (410 Gone), or as a safety net once every {@link #RESYNC_PERIOD}, see
+ * {@link #resync()}. A healthy watch is not relisted on every reconciliation.
+ */
+class KubernetesPodWatcher implements Watcher<Pod> {
+    private static final String EVICTED = "Evicted";
+    private static final String FAILED = "Failed";
+    private static final String IMAGE_PULL_BACK_OFF = "ImagePullBackOff";
+    private static final String CRASH_LOOP_BACK_OFF = "CrashLoopBackOff";
+    // waiting reasons the kubelet keeps retrying with back-off, that rarely resolve without a change to the profile
+    private static final Set<String> FATAL_WAITING_REASONS = new HashSet<>(Arrays.asList("ErrImagePull", IMAGE_PULL_BACK_OFF, CRASH_LOOP_BACK_OFF, "CreateContainerConfigError"));
+    // a container that crashed this often is not getting past a transient failure
+    static final int MIN_CRASH_LOOP_RESTARTS = 2;
+    // how long a pod is given to get past the other waiting reasons, such as a registry that is briefly unavailable
+    static final Period MIN_FAILING_AGE = Period.minutes(5);
+    // how often pods are relisted even though the watch is healthy, to correct drift the watch may have missed
+    static final Period RESYNC_PERIOD = Period.minutes(30);
+    private final KubernetesAgentInstances agentInstances;
+    private final KubernetesClient client;
+    private final String cluster;
+    private final String namespace;
+    private volatile String lastResourceVersion;
+    private volatile DateTime lastListedAt;
+    private volatile Watch watch;
+    private volatile boolean stopped;
+
+    KubernetesPodWatcher(KubernetesAgentInstances agentInstances, KubernetesClient client, String cluster, String namespace) {
+        this(agentInstances, client, cluster, namespace, null);
+    }
+
+    /**
+     * @param resourceVersion the version to resume watching from, skipping the initial relist
+     */
+    KubernetesPodWatcher(KubernetesAgentInstances agentInstances, KubernetesClient client, String cluster, String namespace, String resourceVersion) {
+        this.agentInstances = agentInstances;
+        this.client = client;
+        this.cluster = cluster;
+        this.namespace = namespace;
+        this.lastResourceVersion = resourceVersion;
+    }
+
+    synchronized void start() {
+        stopped = false;
+        if (lastResourceVersion == null) {
+            relist();
+        }
+        watch();
+    }
+
+    /**
+     * Relists the pods to correct any drift between the registry and the cluster, leaving the watch running, unless
+     * they were listed within the last {@link #RESYNC_PERIOD}. A watch resumed from a snapshot is relisted the first
+     * time.
+     */
+    synchronized void resync() {
+        if (lastListedAt == null || !lastListedAt.plus(RESYNC_PERIOD).isAfter(agentInstances.clock.now())) {
+            relist();
+        }
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (watch != null) {
+            watch.close();
+            watch = null;
+        }
+    }
+
+    String cluster() {
+        return cluster;
+    }
+
+    String namespace() {
+        return namespace;
+    }
+
+    String resourceVersion() {
+        return lastResourceVersion;
+    }
+
+    boolean isWatching(KubernetesClient client) {
+        return !stopped && watch != null && this.client == client;
+    }
+
+    @Override
+    public void eventReceived(Action action, Pod pod) {
+        if (pod.getMetadata() != null && pod.getMetadata().getResourceVersion() != null) {
+            lastResourceVersion = pod.getMetadata().getResourceVersion();
+        }
+
+        switch (action) {
+            case ADDED:
+            case MODIFIED:
+                apply(pod);
+                // the pod may have started, making room for a parked creation
+                agentInstances.releaseParkedCreations(cluster);
+                break;
+            case DELETED:
+                LOG.debug(String.format("[Pod Watcher] Pod %s was deleted.", pod.getMetadata().getName()));
+                agentInstances.evicted(pod.getMetadata().getName(), deletionReason(pod));
+                agentInstances.releaseParkedCreations(cluster);
+                break;
+            case ERROR:
+                LOG.warn(String.format("[Pod Watcher] Received an error event for pod %s.", pod.getMetadata().getName()));
+                break;
+        }
+    }
+
+    @Override
+    public void onClose(KubernetesClientException cause) {
+        synchronized (this) {
+            watch = null;
+            if (stopped || cause == null) {
+                return;
+            }
+        }
+
+        try {
+            if (cause.getCode() == HttpURLConnection.HTTP_GONE) {
+                LOG.info(String.format("[Pod Watcher] Resource version %s is too old, relisting pods in namespace %s of cluster %s.", lastResourceVersion, namespace, cluster));
+                lastResourceVersion = null;
+            } else {
+                LOG.warn(String.format("[Pod Watcher] Watch on namespace %s of cluster %s was closed, resuming from resource version %s.", namespace, cluster, lastResourceVersion), cause);
+            }
+            start();
+        } catch (Exception e) {
+            LOG.error(String.format("[Pod Watcher] Failed to restart watch on namespace %s of cluster %s, will retry on next refresh.", namespace, cluster), e);
+        }
+    }
+
+    private void relist() {
+        LOG.debug(String.format("[Pod Watcher] Syncing k8s elastic agent pod information for namespace %s of cluster %s", namespace, cluster));
+        DateTime listStartedAt = agentInstances.clock.now();
+        Set<String> podNames = new HashSet<>();
+
+        String resourceVersion = new PagedPodLister(client).list(namespace, Constants.ELASTIC_AGENT_POD_SELECTOR, Collections.emptyMap(), page -> {
+            for (Pod pod : page.getItems()) {
+                podNames.add(pod.getMetadata().getName());
+                apply(pod);
+            }
+        });
+        agentInstances.deregisterAllExcept(cluster, namespace, podNames, listStartedAt);
+
+        lastResourceVersion = resourceVersion;
+        lastListedAt = listStartedAt;
+    }
+
+    /**
+     * Registers the pod, unless the kubelet evicted it: an evicted pod stays around as Failed until it is deleted. Pods
+     * that failed, or whose containers cannot start, are deleted straight away instead of waiting for their agents'
+     * registration to time out. Deletions go through the {@link PodTerminationQueue}, never on the watch thread, and
+     * are queued again should one fail.
+     */
+    private void apply(Pod pod) {
+        String name = pod.getMetadata().getName();
+        KubernetesInstance instance = KubernetesInstance.fromInstanceInfo(pod, cluster);
+        if (pod.getStatus() != null && FAILED.equals(pod.getStatus().getPhase()) && EVICTED.equals(pod.getStatus().getReason())) {
+            agentInstances.evicted(name, StringUtils.defaultIfBlank(pod.getStatus().getMessage(), EVICTED));
+            agentInstances.deletePod(instance, client);
+            return;
+        }
+
+        boolean pastMinimumAge = !instance.createdAt().plus(MIN_FAILING_AGE).isAfter(agentInstances.clock.now());
+        String failure = failureReason(pod, pastMinimumAge);
+        if (failure == null) {
+            agentInstances.register(instance);
+        } else if (FAILED.equals(pod.getStatus().getPhase()) && (agentInstances.hasStarted(name) || hasRun(pod))) {
+            agentInstances.failed(instance, failure);
+            agentInstances.deletePod(instance, client);
+        } else {
+            agentInstances.failedToStart(instance, failure);
+            agentInstances.deletePod(instance, client);
+        }
+    }
+
+    /**
+     * A container waiting for its image after the kubelet backed off pulling it, or crash looping, cannot start. Other
+     * waiting reasons, such as the first failure to pull the image, are only taken as such once the pod is
+     * {@link #MIN_FAILING_AGE} old.
+     *
+     * A failed pod is only taken as one that could not start if its agent never got as far as running, see
+     * {@link #hasRun(Pod)}.
+     *
+     * @return why the pod failed or cannot start, or <code>null</code> if it is starting or running
+     */
+    static String failureReason(Pod pod, boolean pastMinimumAge) {
+        PodStatus status = pod.getStatus();
+        if (status == null) {
+            return null;
+        }
+        if (FAILED.equals(status.getPhase())) {
+            return describe(StringUtils.defaultIfBlank(status.getReason(), FAILED), status.getMessage());
+        }
+
+        // not modelled by this version of the client
+        Object initContainerStatuses = status.getAdditionalProperties().get("initContainerStatuses");
+        if (initContainerStatuses instanceof List) {
+            for (Object containerStatus : (List<?>) initContainerStatuses) {
+                String reason = fatalWaitingReason(containerStatus, pastMinimumAge);
+                if (reason != null) {
+                    return reason;
+                }
+            }
+        }
+        if (status.getContainerStatuses() != null) {
+            for (ContainerStatus containerStatus : status.getContainerStatuses()) {
+                ContainerState state = containerStatus.getState();
+                if (state != null && state.getWaiting() != null && isFatal(state.getWaiting().getReason(), containerStatus.getRestartCount(), pastMinimumAge)) {
+                    return describe(state.getWaiting().getReason(), state.getWaiting().getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A failed pod whose agent exited cleanly, or ran for longer than {@link #MIN_FAILING_AGE}, got past its start,
+     * even when the watch never saw it running.
+     */
+    static boolean hasRun(Pod pod) {
+        if (pod.getStatus() == null || pod.getStatus().getContainerStatuses() == null) {
+            return false;
+        }
+        for (ContainerStatus containerStatus : pod.getStatus().getContainerStatuses()) {
+            if (hasRun(containerStatus.getState()) || hasRun(containerStatus.getLastState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasRun(ContainerState state) {
+        ContainerStateTerminated terminated = state == null ? null : state.getTerminated();
+        if (terminated == null) {
+            return false;
+        }
+        if (Integer.valueOf(0).equals(terminated.getExitCode())) {
+            return true;
+        }
+        if (StringUtils.isBlank(terminated.getStartedAt()) || StringUtils.isBlank(terminated.getFinishedAt())) {
+            return false;
+        }
+        try {
+            return !DateTime.parse(terminated.getStartedAt()).plus(MIN_FAILING_AGE).isAfter(DateTime.parse(terminated.getFinishedAt()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String fatalWaitingReason(Object containerStatus, boolean pastMinimumAge) {
+        Object state = containerStatus instanceof Map ? ((Map<?, ?>) containerStatus).get("state") : null;
+        Object waiting = state instanceof Map ? ((Map<?, ?>) state).get("waiting") : null;
+        if (!(waiting instanceof Map)) {
+            return null;
+        }
+        Object reason = ((Map<?, ?>) waiting).get("reason");
+        Object message = ((Map<?, ?>) waiting).get("message");
+        Object restartCount = ((Map<?, ?>) containerStatus).get("restartCount");
+        if (!(reason instanceof String) || !isFatal((String) reason, restartCount instanceof Number ? ((Number) restartCount).intValue() : null, pastMinimumAge)) {
+            return null;
+        }
+        return describe((String) reason, message == null ? null : message.toString());
+    }
+
+    private static boolean isFatal(String reason, Integer restartCount, boolean pastMinimumAge) {
+        if (!FATAL_WAITING_REASONS.contains(reason)) {
+            return false;
+        }
+        if (pastMinimumAge || IMAGE_PULL_BACK_OFF.equals(reason)) {
+            return true;
+        }
+        return CRASH_LOOP_BACK_OFF.equals(reason) && restartCount != null && restartCount >= MIN_CRASH_LOOP_RESTARTS;
+    }
+
+    private static String describe(String reason, String message) {
+        return StringUtils.isBlank(message) ? reason : reason + ": " + message;
+    }
+
+    /**
+     * Preempted pods are marked with a DisruptionTarget condition by recent versions of Kubernetes.
+     */
+    private static String deletionReason(Pod pod) {
+        if (pod.getStatus() != null && pod.getStatus().getConditions() != null) {
+            for (PodCondition condition : pod.getStatus().getConditions()) {
+                if ("DisruptionTarget".equals(condition.getType()) && StringUtils.isNotBlank(condition.getReason())) {
+                    return condition.getReason();
+                }
+            }
+        }
+        return "Deleted outside the plugin";
+    }
+
+    private void watch() {
+        if (lastResourceVersion == null) {
+            watch = agentPods().watch(this);
+        } else {
+            watch = agentPods().withResourceVersion(lastResourceVersion).watch(this);
+        }
+    }
+
+    private FilterWatchListDeletable<Pod, PodList, Boolean, Watch, Watcher<Pod>> agentPods() {
+        return client.pods().inNamespace(namespace).withLabels(Constants.ELASTIC_AGENT_POD_SELECTOR);
+    }
+}
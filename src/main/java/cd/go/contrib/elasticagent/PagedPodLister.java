@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import io.fabric8.kubernetes.client.utils.Serialization;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Lists pods with label and field selectors evaluated by the API server, reading the result in pages of
+ * {@link #PAGE_SIZE} items using the <code>limit</code>/<code>continue</code> parameters of the LIST call.
+ * Each page is handed over to the caller as soon as it is read, so a large namespace is never held in memory at once.
+ * <p>
+ * API servers that do not support chunking ignore <code>limit</code> and return everything in one page.
+ */
+public class PagedPodLister {
+    public static final int PAGE_SIZE = 500;
+    private final KubernetesClient client;
+    private final List<String> excludedPhases = new ArrayList<>();
+
+    public PagedPodLister(KubernetesClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Leaves pods in the given phases out of the list, where the API server can be asked to. Clients without an HTTP
+     * client of their own cannot, so callers still have to skip these pods themselves.
+     */
+    public PagedPodLister excludingPhases(String... phases) {
+        excludedPhases.addAll(Arrays.asList(phases));
+        return this;
+    }
+
+    /**
+     * @param namespace the namespace to list, or <code>null</code> to list the pods of all namespaces
+     * @return the resourceVersion of the list, which can be used to start a watch
+     */
+    public String list(String namespace, Map<String, String> labels, Map<String, String> fields, Consumer<PodList> pageConsumer) {
+        if (!(client instanceof HttpClientAware)) {
+            FilterWatchListDeletable<Pod, PodList, Boolean, Watch, Watcher<Pod>> pods = namespace == null
+                    ? client.pods().inAnyNamespace().withLabels(labels)
+                    : client.pods().inNamespace(namespace).withLabels(labels);
+            if (!fields.isEmpty()) {
+                pods = pods.withFields(fields);
+            }
+            PodList podList = pods.list();
+            pageConsumer.accept(podList);
+            return podList.getMetadata() != null ? podList.getMetadata().getResourceVersion() : null;
+        }
+
+        String continueToken = null;
+        String resourceVersion;
+        int pages = 0;
+        do {
+            PodList page = fetchPage(namespace, labels, fields, continueToken);
+            pageConsumer.accept(page);
+            pages++;
+
+            resourceVersion = page.getMetadata() != null ? page.getMetadata().getResourceVersion() : null;
+            continueToken = continueToken(page);
+        } while (StringUtils.isNotBlank(continueToken));
+
+        LOG.debug(String.format("Listed pods in %s in %d page(s).", namespace == null ? "all namespaces" : "namespace " + namespace, pages));
+        return resourceVersion;
+    }
+
+    protected PodList fetchPage(String namespace, Map<String, String> labels, Map<String, String> fields, String continueToken) {
+        HttpUrl.Builder url = HttpUrl.get(client.getMasterUrl()).newBuilder().addPathSegments("api/v1");
+        if (namespace != null) {
+            url.addPathSegment("namespaces").addPathSegment(namespace);
+        }
+        url.addPathSegment("pods").addQueryParameter("limit", String.valueOf(PAGE_SIZE));
+
+        if (!labels.isEmpty()) {
+            url.addQueryParameter("labelSelector", StringUtils.join(selector(labels), ","));
+        }
+        List<String> fieldSelector = selector(fields);
+        for (String phase : excludedPhases) {
+            fieldSelector.add("status.phase!=" + phase);
+        }
+        if (!fieldSelector.isEmpty()) {
+            url.addQueryParameter("fieldSelector", StringUtils.join(fieldSelector, ","));
+        }
+        if (StringUtils.isNotBlank(continueToken)) {
+            url.addQueryParameter("continue", continueToken);
+        }
+
+        Request request = new Request.Builder().get().url(url.build()).build();
+        try (Response response = ((HttpClientAware) client).getHttpClient().newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new KubernetesClientException(String.format("Failed to list pods in namespace %s: %s", namespace, response.message()), response.code(), null);
+            }
+            return Serialization.unmarshal(response.body().byteStream(), PodList.class);
+        } catch (IOException e) {
+            throw KubernetesClientException.launderThrowable(e);
+        }
+    }
+
+    private static String continueToken(PodList page) {
+        if (page.getMetadata() == null || page.getMetadata().getAdditionalProperties() == null) {
+            return null;
+        }
+        Object token = page.getMetadata().getAdditionalProperties().get("continue");
+        return token == null ? null : token.toString();
+    }
+
+    private static List<String> selector(Map<String, String> requirements) {
+        List<String> parts = new ArrayList<>();
+        for (Map.Entry<String, String> requirement : requirements.entrySet()) {
+            parts.add(requirement.getKey() + "=" + requirement.getValue());
+        }
+        Collections.sort(parts);
+        return parts;
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import org.joda.time.DateTime;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The agents and pods server pings found work for, with the deadline each was first found with. A ping that runs out
+ * of its {@link PluginSettings#getPingTimeBudget() time} or {@link PluginSettings#getPingWorkBudget() work} budget
+ * leaves the rest to the next pings, which do the work with the oldest deadline first. Every ping finds its work anew
+ * in the agents it lists, so work is forgotten once it is done or no longer found.
+ */
+public class PingBacklog {
+    // keyed on the elastic agent id
+    private final Map<String, DateTime> deadlines = new ConcurrentHashMap<>();
+
+    /**
+     * @return the earliest deadline the work was found with
+     */
+    public DateTime deadline(String agentId, DateTime deadline) {
+        return deadlines.merge(agentId, deadline, (earlier, later) -> earlier.isAfter(later) ? later : earlier);
+    }
+
+    /**
+     * @param found the work found by a ping
+     * @param done  the work the ping did
+     */
+    public void update(Collection<String> found, Collection<String> done) {
+        deadlines.keySet().retainAll(found);
+        deadlines.keySet().removeAll(done);
+    }
+
+    /**
+     * @return the number of agents and pods with work left for later pings
+     */
+    public int size() {
+        return deadlines.size();
+    }
+}
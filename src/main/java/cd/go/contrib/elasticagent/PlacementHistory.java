@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+/**
+ * Remembers which nodes recently ran the images and elastic profiles of agent pods, so that new pods can be given a
+ * soft node affinity towards nodes that already have the image layers and local caches.
+ * <p>
+ * Every pod placed on a node adds one to the node's score for each of its images and its profile. Scores halve every
+ * {@link #HALF_LIFE} and are forgotten below {@link #FORGET_BELOW}, so nodes drop out as their images are likely
+ * garbage collected. So as not to pile every pod onto the warmest nodes, the affinity weight saturates with the
+ * score and is divided by one more than the number of agents the node runs, and only the {@link #MAX_NODES} best
+ * nodes are preferred.
+ */
+public class PlacementHistory {
+    static final Period HALF_LIFE = Period.hours(1);
+    static final double FORGET_BELOW = 0.05;
+    static final int MAX_NODES = 5;
+    static final int MAX_WEIGHT = 40;
+
+    // decayed scores of the nodes, keyed on cluster and image or profile, see keysOf()
+    private final Map<String, Map<String, Score>> scores = new ConcurrentHashMap<>();
+
+    private static class Score {
+        private final double value;
+        private final DateTime at;
+
+        private Score(double value, DateTime at) {
+            this.value = value;
+            this.at = at;
+        }
+
+        private double valueAt(DateTime now) {
+            double halfLives = (double) Math.max(0, now.getMillis() - at.getMillis()) / HALF_LIFE.toStandardDuration().getMillis();
+            return value * Math.pow(0.5, halfLives);
+        }
+
+        private Score plusOne(DateTime now) {
+            return new Score(valueAt(now) + 1, now);
+        }
+    }
+
+    /**
+     * Records that a pod of the profile, with the given properties, was placed on <code>node</code>.
+     */
+    public void record(String cluster, String node, Map<String, String> properties, String profileFingerprint, DateTime at) {
+        if (StringUtils.isBlank(node)) {
+            return;
+        }
+        for (String key : keysOf(cluster, properties, profileFingerprint)) {
+            scores.computeIfAbsent(key, k -> new ConcurrentHashMap<>()).compute(node, (n, score) -> score == null ? new Score(1, at) : score.plusOne(at));
+        }
+    }
+
+    /**
+     * @param agentsOnNode the number of agents running on a node
+     * @return the affinity weight (1 to {@link #MAX_WEIGHT}) of the nodes a pod with these properties should prefer
+     */
+    public Map<String, Integer> preferredNodes(String cluster, Map<String, String> properties, String profileFingerprint, ToIntFunction<String> agentsOnNode, DateTime now) {
+        Map<String, Double> combined = new HashMap<>();
+        for (String key : keysOf(cluster, properties, profileFingerprint)) {
+            Map<String, Score> nodes = scores.get(key);
+            if (nodes == null) {
+                continue;
+            }
+            for (Map.Entry<String, Score> entry : nodes.entrySet()) {
+                double value = entry.getValue().valueAt(now);
+                if (value < FORGET_BELOW) {
+                    nodes.remove(entry.getKey(), entry.getValue());
+                } else {
+                    combined.merge(entry.getKey(), value, Double::sum);
+                }
+            }
+            if (nodes.isEmpty()) {
+                scores.remove(key, nodes);
+            }
+        }
+
+        Map<String, Integer> weights = new HashMap<>();
+        for (Map.Entry<String, Double> entry : combined.entrySet()) {
+            double score = entry.getValue();
+            int weight = (int) Math.round(MAX_WEIGHT * score / (score + 1) / (1 + agentsOnNode.applyAsInt(entry.getKey())));
+            if (weight >= 1) {
+                weights.put(entry.getKey(), weight);
+            }
+        }
+
+        List<String> nodes = new ArrayList<>(weights.keySet());
+        nodes.sort(Comparator.comparing((String node) -> weights.get(node)).reversed().thenComparing(node -> -combined.get(node)));
+        Map<String, Integer> best = new LinkedHashMap<>();
+        for (String node : nodes.subList(0, Math.min(MAX_NODES, nodes.size()))) {
+            best.put(node, weights.get(node));
+        }
+        return best;
+    }
+
+    /**
+     * Adds a soft node affinity towards the {@link #preferredNodes preferred nodes} of the pod, one term per weight.
+     */
+    public void preferNodes(Pod pod, String cluster, Map<String, String> properties, String profileFingerprint, ToIntFunction<String> agentsOnNode, DateTime now) {
+        Map<Integer, List<String>> nodesByWeight = new TreeMap<>(Comparator.reverseOrder());
+        for (Map.Entry<String, Integer> entry : preferredNodes(cluster, properties, profileFingerprint, agentsOnNode, now).entrySet()) {
+            nodesByWeight.computeIfAbsent(entry.getValue(), weight -> new ArrayList<>()).add(entry.getKey());
+        }
+        for (Map.Entry<Integer, List<String>> entry : nodesByWeight.entrySet()) {
+            KubernetesInstance.preferNodes(pod, entry.getValue(), entry.getKey());
+        }
+    }
+
+    private static List<String> keysOf(String cluster, Map<String, String> properties, String profileFingerprint) {
+        List<String> keys = new ArrayList<>();
+        for (String image : ImagePrePuller.imagesOf(properties)) {
+            keys.add(cluster + "/image/" + image);
+        }
+        if (StringUtils.isNotBlank(profileFingerprint)) {
+            keys.add(cluster + "/profile/" + profileFingerprint);
+        }
+        return keys;
+    }
+}
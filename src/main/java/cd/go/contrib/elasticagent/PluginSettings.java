@@ -18,8 +18,14 @@ package cd.go.contrib.elasticagent;
 
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import org.apache.commons.lang3.StringUtils;
 import org.joda.time.Period;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static cd.go.contrib.elasticagent.utils.Util.GSON;
 
 public class PluginSettings {
@@ -47,6 +53,78 @@ public class PluginSettings {
     @SerializedName("kubernetes_cluster_ca_cert")
     private String kubernetesClusterCACert;
 
+    @Expose
+    @SerializedName("refresh_interval")
+    private String refreshInterval;
+
+    @Expose
+    @SerializedName("namespaces")
+    private String namespaces;
+
+    @Expose
+    @SerializedName("additional_clusters")
+    private String additionalClusters;
+
+    @Expose
+    @SerializedName("pod_creation_workers")
+    private String podCreationWorkers;
+
+    @Expose
+    @SerializedName("max_pending_pods_per_profile")
+    private String maxPendingPodsPerProfile;
+
+    @Expose
+    @SerializedName("creates_per_second_per_cluster")
+    private String createsPerSecondPerCluster;
+
+    @Expose
+    @SerializedName("creates_per_second_per_profile")
+    private String createsPerSecondPerProfile;
+
+    @Expose
+    @SerializedName("deletes_per_second_per_cluster")
+    private String deletesPerSecondPerCluster;
+
+    @Expose
+    @SerializedName("deletes_per_second_per_profile")
+    private String deletesPerSecondPerProfile;
+
+    @Expose
+    @SerializedName("max_pending_pods_per_cluster")
+    private String maxPendingPodsPerCluster;
+
+    @Expose
+    @SerializedName("prepull_images")
+    private String prepullImages;
+
+    @Expose
+    @SerializedName("prepull_pause_image")
+    private String prepullPauseImage;
+
+    @Expose
+    @SerializedName("manage_priority_classes")
+    private String managePriorityClasses;
+
+    @Expose
+    @SerializedName("pod_deletion_workers")
+    private String podDeletionWorkers;
+
+    @Expose
+    @SerializedName("pod_termination_grace_period")
+    private String podTerminationGracePeriod;
+
+    @Expose
+    @SerializedName("pod_deletion_propagation")
+    private String podDeletionPropagation;
+
+    @Expose
+    @SerializedName("ping_time_budget")
+    private String pingTimeBudget;
+
+    @Expose
+    @SerializedName("ping_work_budget")
+    private String pingWorkBudget;
+
     private Period autoRegisterPeriod;
 
 
@@ -66,6 +144,8 @@ public class PluginSettings {
             return false;
         if (kubernetesClusterUrl != null ? !kubernetesClusterUrl.equals(that.kubernetesClusterUrl) : that.kubernetesClusterUrl != null)
             return false;
+        if (additionalClusters != null ? !additionalClusters.equals(that.additionalClusters) : that.additionalClusters != null)
+            return false;
         return autoRegisterPeriod != null ? autoRegisterPeriod.equals(that.autoRegisterPeriod) : that.autoRegisterPeriod == null;
     }
 
@@ -74,6 +154,7 @@ public class PluginSettings {
         int result = goServerUrl != null ? goServerUrl.hashCode() : 0;
         result = 31 * result + (autoRegisterTimeout != null ? autoRegisterTimeout.hashCode() : 0);
         result = 31 * result + (kubernetesClusterUrl != null ? kubernetesClusterUrl.hashCode() : 0);
+        result = 31 * result + (additionalClusters != null ? additionalClusters.hashCode() : 0);
         result = 31 * result + (autoRegisterPeriod != null ? autoRegisterPeriod.hashCode() : 0);
         return result;
     }
@@ -92,6 +173,195 @@ public class PluginSettings {
         return autoRegisterTimeout;
     }
 
+    public Period getRefreshPeriod() {
+        return Period.seconds(Integer.parseInt(getRefreshInterval()));
+    }
+
+    String getRefreshInterval() {
+        if (StringUtils.isBlank(refreshInterval)) {
+            refreshInterval = "60";
+        }
+        return refreshInterval;
+    }
+
+    public int getPodCreationWorkers() {
+        return Integer.parseInt(getPodCreationWorkersValue());
+    }
+
+    String getPodCreationWorkersValue() {
+        if (StringUtils.isBlank(podCreationWorkers)) {
+            podCreationWorkers = String.valueOf(PodCreationQueue.DEFAULT_WORKERS);
+        }
+        return podCreationWorkers;
+    }
+
+    /**
+     * @return <code>null</code> unless requests are to be coalesced onto the pods of their profile that are starting
+     */
+    public Integer getMaxPendingPodsPerProfile() {
+        return StringUtils.isBlank(maxPendingPodsPerProfile) ? null : Integer.valueOf(maxPendingPodsPerProfile.trim());
+    }
+
+    public int getCreatesPerSecondPerCluster() {
+        return Integer.parseInt(getCreatesPerSecondPerClusterValue());
+    }
+
+    String getCreatesPerSecondPerClusterValue() {
+        if (StringUtils.isBlank(createsPerSecondPerCluster)) {
+            createsPerSecondPerCluster = String.valueOf(AdmissionControl.DEFAULT_CREATES_PER_SECOND_PER_CLUSTER);
+        }
+        return createsPerSecondPerCluster;
+    }
+
+    public int getCreatesPerSecondPerProfile() {
+        return Integer.parseInt(getCreatesPerSecondPerProfileValue());
+    }
+
+    String getCreatesPerSecondPerProfileValue() {
+        if (StringUtils.isBlank(createsPerSecondPerProfile)) {
+            createsPerSecondPerProfile = String.valueOf(AdmissionControl.DEFAULT_CREATES_PER_SECOND_PER_PROFILE);
+        }
+        return createsPerSecondPerProfile;
+    }
+
+    public int getDeletesPerSecondPerCluster() {
+        return Integer.parseInt(getDeletesPerSecondPerClusterValue());
+    }
+
+    String getDeletesPerSecondPerClusterValue() {
+        if (StringUtils.isBlank(deletesPerSecondPerCluster)) {
+            deletesPerSecondPerCluster = String.valueOf(AdmissionControl.DEFAULT_DELETES_PER_SECOND_PER_CLUSTER);
+        }
+        return deletesPerSecondPerCluster;
+    }
+
+    public int getDeletesPerSecondPerProfile() {
+        return Integer.parseInt(getDeletesPerSecondPerProfileValue());
+    }
+
+    String getDeletesPerSecondPerProfileValue() {
+        if (StringUtils.isBlank(deletesPerSecondPerProfile)) {
+            deletesPerSecondPerProfile = String.valueOf(AdmissionControl.DEFAULT_DELETES_PER_SECOND_PER_PROFILE);
+        }
+        return deletesPerSecondPerProfile;
+    }
+
+    public int getMaxPendingPodsPerCluster() {
+        return Integer.parseInt(getMaxPendingPodsPerClusterValue());
+    }
+
+    String getMaxPendingPodsPerClusterValue() {
+        if (StringUtils.isBlank(maxPendingPodsPerCluster)) {
+            maxPendingPodsPerCluster = String.valueOf(AdmissionControl.DEFAULT_MAX_PENDING_PODS_PER_CLUSTER);
+        }
+        return maxPendingPodsPerCluster;
+    }
+
+    public boolean isPrepullImages() {
+        return Boolean.valueOf(StringUtils.trim(prepullImages));
+    }
+
+    public String getPrepullPauseImage() {
+        return StringUtils.isBlank(prepullPauseImage) ? ImagePrePuller.DEFAULT_PAUSE_IMAGE : prepullPauseImage.trim();
+    }
+
+    public boolean isManagePriorityClasses() {
+        return Boolean.valueOf(StringUtils.trim(managePriorityClasses));
+    }
+
+    public int getPodDeletionWorkers() {
+        return Integer.parseInt(getPodDeletionWorkersValue());
+    }
+
+    String getPodDeletionWorkersValue() {
+        if (StringUtils.isBlank(podDeletionWorkers)) {
+            podDeletionWorkers = String.valueOf(PodTerminationQueue.DEFAULT_WORKERS);
+        }
+        return podDeletionWorkers;
+    }
+
+    /**
+     * @return the grace period in seconds, or <code>null</code> to use the pod's own
+     */
+    public Long getPodTerminationGracePeriod() {
+        return StringUtils.isBlank(podTerminationGracePeriod) ? null : Long.valueOf(podTerminationGracePeriod.trim());
+    }
+
+    public Period getPingTimeBudget() {
+        return Period.seconds(Integer.parseInt(getPingTimeBudgetValue()));
+    }
+
+    String getPingTimeBudgetValue() {
+        if (StringUtils.isBlank(pingTimeBudget)) {
+            pingTimeBudget = "10";
+        }
+        return pingTimeBudget;
+    }
+
+    public int getPingWorkBudget() {
+        return Integer.parseInt(getPingWorkBudgetValue());
+    }
+
+    String getPingWorkBudgetValue() {
+        if (StringUtils.isBlank(pingWorkBudget)) {
+            pingWorkBudget = "500";
+        }
+        return pingWorkBudget;
+    }
+
+    public String getPodDeletionPropagation() {
+        return StringUtils.isBlank(podDeletionPropagation) ? PodTerminationQueue.DEFAULT_PROPAGATION : podDeletionPropagation.trim();
+    }
+
+    public List<String> getNamespaces() {
+        List<String> result = new ArrayList<>();
+        if (namespaces != null) {
+            for (String namespace : namespaces.split(",")) {
+                if (StringUtils.isNotBlank(namespace)) {
+                    result.add(namespace.trim());
+                }
+            }
+        }
+        if (result.isEmpty()) {
+            result.add(Constants.KUBERNETES_NAMESPACE_KEY);
+        }
+        return result;
+    }
+
+    public ClusterProfile getPrimaryCluster() {
+        return new ClusterProfile(ClusterProfile.PRIMARY, kubernetesClusterUrl, kubernetesClusterUsername, kubernetesClusterPassword, kubernetesClusterCACert);
+    }
+
+    /**
+     * @return the primary cluster followed by the additional clusters, in the order they are configured
+     */
+    public List<ClusterProfile> getClusters() {
+        List<ClusterProfile> clusters = new ArrayList<>();
+        clusters.add(getPrimaryCluster());
+        clusters.addAll(parseClusters(additionalClusters));
+        return clusters;
+    }
+
+    /**
+     * @return the cluster with the given name, or <code>null</code> if it is not configured (any more)
+     */
+    public ClusterProfile getCluster(String name) {
+        for (ClusterProfile cluster : getClusters()) {
+            if (cluster.getName().equals(name)) {
+                return cluster;
+            }
+        }
+        return null;
+    }
+
+    public static List<ClusterProfile> parseClusters(String json) {
+        if (StringUtils.isBlank(json)) {
+            return Collections.emptyList();
+        }
+        ClusterProfile[] clusters = GSON.fromJson(json, ClusterProfile[].class);
+        return clusters == null ? Collections.emptyList() : Arrays.asList(clusters);
+    }
+
     public String getGoServerUrl() {
         return goServerUrl;
     }
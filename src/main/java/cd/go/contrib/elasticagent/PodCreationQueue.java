@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Creates elastic agent pods in the background, so that <code>create-agent</code> requests return as soon as the
+ * pod is registered as {@link KubernetesInstance.CreationState#PENDING}.
+ * <p>
+ * Creations never run on the submitting thread. At most {@link #MAX_BACKLOG} creations wait for a worker, further
+ * creations are rejected with a {@link RejectedExecutionException} rather than holding up the requests that submit
+ * them: GoCD asks again for the agents its jobs still need. Workers do not wait for a full cluster either,
+ * {@link AdmissionControl} parks those creations without holding a thread.
+ */
+public class PodCreationQueue implements Executor {
+    public static final int DEFAULT_WORKERS = 4;
+    public static final int MAX_BACKLOG = 1000;
+    private static final int IDLE_WORKER_TIMEOUT_SECONDS = 60;
+    private final ThreadPoolExecutor executor;
+
+    public PodCreationQueue(int workers) {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, IDLE_WORKER_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(MAX_BACKLOG), runnable -> {
+            Thread thread = new Thread(runnable, "kubernetes-elastic-agent-pod-creator-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A queue that creates pods on the requesting thread.
+     */
+    PodCreationQueue() {
+        executor = null;
+    }
+
+    @Override
+    public void execute(Runnable creation) {
+        if (executor == null) {
+            creation.run();
+        } else {
+            executor.execute(creation);
+        }
+    }
+
+    public synchronized void resize(int workers) {
+        if (executor == null || executor.getMaximumPoolSize() == workers) {
+            return;
+        }
+
+        LOG.info(String.format("[Create Agent] Resizing pod creation workers from %d to %d.", executor.getMaximumPoolSize(), workers));
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * @return the number of pod creations waiting for a worker
+     */
+    public int backlog() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return true if further creations would be rejected
+     */
+    public boolean isFull() {
+        return executor != null && executor.getQueue().remainingCapacity() == 0;
+    }
+}
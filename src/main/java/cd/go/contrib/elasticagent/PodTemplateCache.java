@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import io.fabric8.kubernetes.api.model.Pod;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+import static cd.go.contrib.elasticagent.utils.Util.YAML;
+
+/**
+ * Parsed <code>PodConfiguration</code> templates, keyed by a digest of the template text.
+ * <p>
+ * A template is rendered once with a placeholder token for each per-pod value ({@link Constants#POD_POSTFIX},
+ * {@link Constants#CONTAINER_POSTFIX}) and parsed into a skeleton tree. Creating a pod then only copies the
+ * skeleton, substitutes the placeholders and binds the tree to a {@link Pod}, instead of compiling the Mustache
+ * template and parsing the YAML again.
+ */
+class PodTemplateCache {
+    static final int MAX_TEMPLATES = 256;
+    private static final String PLACEHOLDER_PREFIX = "gocdplaceholder";
+    private static final List<String> PER_POD_VARIABLES = Arrays.asList(Constants.POD_POSTFIX, Constants.CONTAINER_POSTFIX);
+
+    private final Cache<String, JsonNode> skeletons = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TEMPLATES)
+            .build();
+
+    /**
+     * @throws IOException if the rendered template is not a valid pod yaml
+     */
+    Pod podFor(String podYaml) throws IOException {
+        JsonNode skeleton;
+        try {
+            skeleton = skeletons.get(digestOf(podYaml), () -> parse(podYaml));
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        Map<String, String> values = new HashMap<>();
+        for (String variable : PER_POD_VARIABLES) {
+            values.put(placeholderFor(variable), UUID.randomUUID().toString());
+        }
+        return YAML.treeToValue(substitute(skeleton.deepCopy(), values), Pod.class);
+    }
+
+    long size() {
+        return skeletons.size();
+    }
+
+    private static JsonNode parse(String podYaml) throws IOException {
+        Mustache mustache = new DefaultMustacheFactory().compile(new StringReader(podYaml), "templatePod");
+        Map<String, String> context = new HashMap<>();
+        context.put(Constants.GOCD_AGENT_IMAGE, "gocd/gocd-agent-alpine-3.5");
+        context.put(Constants.LATEST_VERSION, "v17.10.0");
+        for (String variable : PER_POD_VARIABLES) {
+            context.put(variable, placeholderFor(variable));
+        }
+
+        StringWriter writer = new StringWriter();
+        mustache.execute(writer, context);
+        JsonNode skeleton = YAML.readTree(writer.toString());
+        if (skeleton == null || !skeleton.isObject()) {
+            throw new IOException("Pod yaml must describe a pod object.");
+        }
+        return skeleton;
+    }
+
+    private static JsonNode substitute(JsonNode node, Map<String, String> values) {
+        if (node.isTextual()) {
+            String text = replace(node.textValue(), values);
+            return text.equals(node.textValue()) ? node : TextNode.valueOf(text);
+        }
+        if (node.isArray()) {
+            ArrayNode array = (ArrayNode) node;
+            for (int i = 0; i < array.size(); i++) {
+                array.set(i, substitute(array.get(i), values));
+            }
+        } else if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            Map<String, JsonNode> fields = new LinkedHashMap<>();
+            object.fields().forEachRemaining(field -> fields.put(replace(field.getKey(), values), substitute(field.getValue(), values)));
+            object.removeAll();
+            object.setAll(fields);
+        }
+        return node;
+    }
+
+    private static String replace(String text, Map<String, String> values) {
+        if (text.indexOf(PLACEHOLDER_PREFIX) < 0) {
+            return text;
+        }
+        for (Map.Entry<String, String> value : values.entrySet()) {
+            text = text.replace(value.getKey(), value.getValue());
+        }
+        return text;
+    }
+
+    private static String placeholderFor(String variable) {
+        return PLACEHOLDER_PREFIX + variable.toLowerCase().replace("_", "");
+    }
+
+    private static String digestOf(String podYaml) {
+        return Hashing.sha256().hashString(podYaml, StandardCharsets.UTF_8).toString();
+    }
+}
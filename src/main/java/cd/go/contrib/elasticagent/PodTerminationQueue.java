@@ -0,0 +1,285 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.URLUtils;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Deletes the pods of terminated agents in the background, so that server pings return as soon as the agents are
+ * deregistered.
+ * <p>
+ * Pods of the same namespace that are terminated while the workers are busy are deleted together: with a single
+ * request selecting them by their {@link Constants#POD_NAME_LABEL_KEY} label, and one by one only if that request
+ * missed any. This version of the client cannot set a grace period or propagation policy on deletes, so these are
+ * made with its HTTP client where it has one.
+ */
+public class PodTerminationQueue {
+    public static final int DEFAULT_WORKERS = 4;
+    public static final String DEFAULT_PROPAGATION = "Background";
+    static final int MAX_BATCH = 100;
+    // the longest label value Kubernetes accepts
+    private static final int MAX_LABEL_VALUE_LENGTH = 63;
+    private static final int IDLE_WORKER_TIMEOUT_SECONDS = 60;
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    private final ThreadPoolExecutor executor;
+    // keyed on cluster and namespace, the batches no worker has started on yet
+    private final Map<String, Batch> openBatches = new HashMap<>();
+
+    public PodTerminationQueue(int workers) {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, IDLE_WORKER_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "kubernetes-elastic-agent-pod-terminator-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A queue that deletes pods on the requesting thread, one at a time.
+     */
+    PodTerminationQueue() {
+        executor = null;
+    }
+
+    /**
+     * Queues the deletion of the instance's pod, once {@link AdmissionControl} admits it.
+     *
+     * @param done called with the name of the pod and whether it was deleted, was not found or failed to be deleted
+     */
+    public void delete(KubernetesClient client, KubernetesInstance instance, PluginSettings settings, AdmissionControl admissionControl, BiConsumer<String, Tombstone.Outcome> done) {
+        Deletion deletion = new Deletion(instance, admissionControl, done);
+        if (executor == null) {
+            run(new Batch(client, instance.namespace(), settings, deletion));
+            return;
+        }
+
+        String key = instance.cluster() + "/" + instance.namespace();
+        synchronized (openBatches) {
+            Batch open = openBatches.get(key);
+            if (open != null && open.deletions.size() < MAX_BATCH) {
+                open.deletions.add(deletion);
+                return;
+            }
+            Batch batch = new Batch(client, instance.namespace(), settings, deletion);
+            openBatches.put(key, batch);
+            executor.execute(() -> {
+                synchronized (openBatches) {
+                    openBatches.remove(key, batch);
+                }
+                run(batch);
+            });
+        }
+    }
+
+    public synchronized void resize(int workers) {
+        if (executor == null || executor.getMaximumPoolSize() == workers) {
+            return;
+        }
+
+        LOG.info(String.format("[Terminate Agent] Resizing pod deletion workers from %d to %d.", executor.getMaximumPoolSize(), workers));
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * @return the number of batches of pod deletions waiting for a worker
+     */
+    public int backlog() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    private void run(Batch batch) {
+        List<Deletion> admitted = new ArrayList<>();
+        for (Deletion deletion : batch.deletions) {
+            try {
+                deletion.admissionControl.admitDelete(deletion.instance.cluster(), deletion.instance.profileFingerprint(), batch.settings);
+                admitted.add(deletion);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOG.error(String.format("[Terminate Agent] Interrupted while waiting to delete pod %s.", deletion.instance.name()), e);
+                deletion.complete(Tombstone.Outcome.FAILED);
+            }
+        }
+        if (admitted.isEmpty()) {
+            return;
+        }
+
+        if (!(batch.client instanceof HttpClientAware)) {
+            for (Deletion deletion : admitted) {
+                try {
+                    deletion.complete(deletion.instance.terminate(batch.client) ? Tombstone.Outcome.POD_DELETED : Tombstone.Outcome.POD_NOT_FOUND);
+                } catch (Exception e) {
+                    LOG.error(String.format("[Terminate Agent] Failed to delete pod %s.", deletion.instance.name()), e);
+                    deletion.complete(Tombstone.Outcome.FAILED);
+                }
+            }
+            return;
+        }
+
+        OkHttpClient http = ((HttpClientAware) batch.client).getHttpClient();
+        String podsUrl = URLUtils.join(batch.client.getMasterUrl().toString(), "api", "v1", "namespaces", batch.namespace, "pods");
+        RequestBody options = RequestBody.create(JSON, deleteOptions(batch.settings));
+        List<Deletion> remaining = admitted;
+        if (admitted.size() > 1) {
+            try {
+                remaining = deleteCollection(http, podsUrl, options, admitted);
+            } catch (IOException e) {
+                LOG.warn(String.format("[Terminate Agent] Failed to delete %d pods in namespace %s at once, deleting them one by one.", admitted.size(), batch.namespace), e);
+            }
+        }
+        for (Deletion deletion : remaining) {
+            deleteOne(http, podsUrl, options, deletion);
+        }
+    }
+
+    /**
+     * @return the deletions whose pods the request did not delete
+     */
+    private List<Deletion> deleteCollection(OkHttpClient http, String podsUrl, RequestBody options, List<Deletion> deletions) throws IOException {
+        Map<String, Deletion> byName = new LinkedHashMap<>();
+        List<Deletion> remaining = new ArrayList<>();
+        for (Deletion deletion : deletions) {
+            if (deletion.instance.name().length() <= MAX_LABEL_VALUE_LENGTH) {
+                byName.put(deletion.instance.name(), deletion);
+            } else {
+                remaining.add(deletion);
+            }
+        }
+        if (byName.size() < 2) {
+            return deletions;
+        }
+
+        HttpUrl url = HttpUrl.parse(podsUrl).newBuilder()
+                .addQueryParameter("labelSelector", labelSelector(byName.keySet()))
+                .build();
+        try (Response response = http.newCall(new Request.Builder().url(url).delete(options).build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException(String.format("HTTP %d.", response.code()));
+            }
+            try {
+                JsonElement items = new JsonParser().parse(response.body().charStream()).getAsJsonObject().get("items");
+                if (items != null && items.isJsonArray()) {
+                    for (JsonElement item : items.getAsJsonArray()) {
+                        String name = item.getAsJsonObject().getAsJsonObject("metadata").get("name").getAsString();
+                        Deletion deletion = byName.remove(name);
+                        if (deletion != null) {
+                            deletion.complete(Tombstone.Outcome.POD_DELETED);
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the pods not read from the response are deleted one by one, which finds them gone if they were deleted
+                LOG.warn(String.format("[Terminate Agent] Failed to read which of %d pods were deleted, deleting them one by one.", byName.size()), e);
+            }
+        }
+        LOG.info(String.format("[Terminate Agent] Deleted %d pods with one request.", deletions.size() - remaining.size() - byName.size()));
+        // pods created before they were labelled with their name, or that are already gone
+        remaining.addAll(byName.values());
+        return remaining;
+    }
+
+    private void deleteOne(OkHttpClient http, String podsUrl, RequestBody options, Deletion deletion) {
+        String name = deletion.instance.name();
+        try (Response response = http.newCall(new Request.Builder().url(URLUtils.join(podsUrl, name)).delete(options).build()).execute()) {
+            if (response.isSuccessful()) {
+                deletion.complete(Tombstone.Outcome.POD_DELETED);
+            } else if (response.code() == HttpURLConnection.HTTP_NOT_FOUND) {
+                deletion.complete(Tombstone.Outcome.POD_NOT_FOUND);
+            } else {
+                LOG.error(String.format("[Terminate Agent] Failed to delete pod %s: HTTP %d.", name, response.code()));
+                deletion.complete(Tombstone.Outcome.FAILED);
+            }
+        } catch (IOException e) {
+            LOG.error(String.format("[Terminate Agent] Failed to delete pod %s.", name), e);
+            deletion.complete(Tombstone.Outcome.FAILED);
+        }
+    }
+
+    static String labelSelector(Collection<String> podNames) {
+        return Constants.CREATED_BY_LABEL_KEY + "=" + Constants.PLUGIN_ID + "," + Constants.POD_NAME_LABEL_KEY + " in (" + StringUtils.join(podNames, ",") + ")";
+    }
+
+    static String deleteOptions(PluginSettings settings) {
+        JsonObject options = new JsonObject();
+        options.addProperty("apiVersion", "v1");
+        options.addProperty("kind", "DeleteOptions");
+        if (settings.getPodTerminationGracePeriod() != null) {
+            options.addProperty("gracePeriodSeconds", settings.getPodTerminationGracePeriod());
+        }
+        options.addProperty("propagationPolicy", settings.getPodDeletionPropagation());
+        return options.toString();
+    }
+
+    private static class Batch {
+        private final KubernetesClient client;
+        private final String namespace;
+        private final PluginSettings settings;
+        private final List<Deletion> deletions = new ArrayList<>();
+
+        private Batch(KubernetesClient client, String namespace, PluginSettings settings, Deletion first) {
+            this.client = client;
+            this.namespace = namespace;
+            this.settings = settings;
+            this.deletions.add(first);
+        }
+    }
+
+    private static class Deletion {
+        private final KubernetesInstance instance;
+        private final AdmissionControl admissionControl;
+        private final BiConsumer<String, Tombstone.Outcome> done;
+
+        private Deletion(KubernetesInstance instance, AdmissionControl admissionControl, BiConsumer<String, Tombstone.Outcome> done) {
+            this.instance = instance;
+            this.admissionControl = admissionControl;
+            this.done = done;
+        }
+
+        private void complete(Tombstone.Outcome outcome) {
+            done.accept(instance.name(), outcome);
+        }
+    }
+}
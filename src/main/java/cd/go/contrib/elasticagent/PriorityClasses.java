@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.Util;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.utils.URLUtils;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * The priority classes the plugin creates in every cluster when it manages them: pods of {@link #CRITICAL} profiles
+ * preempt other agents when a cluster is full, and pods of {@link #BATCH} profiles are the first to be preempted.
+ * Pods of profiles without a priority class keep the cluster's default priority, in between the two.
+ * <p>
+ * Existing classes are left as they are, and classes are never deleted, as pods may still use them. This version of
+ * the client does not model priority classes, so they are read and created with its HTTP client, through
+ * <code>scheduling.k8s.io/v1</code>, or <code>v1beta1</code> on clusters older than Kubernetes 1.14.
+ * <p>
+ * The critical class is only just above the default priority of 0, well below the system classes, so that agents do
+ * not preempt other workloads of shared clusters that run at moderate priorities.
+ */
+public class PriorityClasses {
+    public static final String CRITICAL = "gocd-elastic-agent-critical";
+    public static final String BATCH = "gocd-elastic-agent-batch";
+    static final int CRITICAL_VALUE = 1000;
+    static final int BATCH_VALUE = -1000;
+    private static final String V1 = "scheduling.k8s.io/v1";
+    private static final String V1BETA1 = "scheduling.k8s.io/v1beta1";
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    // clusters whose classes are known to exist
+    private final Set<String> ensured = ConcurrentHashMap.newKeySet();
+
+    public void ensure(String cluster, KubernetesClient client) throws IOException {
+        if (ensured.contains(cluster)) {
+            return;
+        }
+        if (!(client instanceof HttpClientAware)) {
+            LOG.warn(String.format("[Priority Classes] Cannot manage the priority classes of cluster %s with this client.", cluster));
+            return;
+        }
+
+        OkHttpClient http = ((HttpClientAware) client).getHttpClient();
+        String apiVersion = apiVersion(http, client.getMasterUrl().toString());
+        String url = URLUtils.join(client.getMasterUrl().toString(), "apis", apiVersion, "priorityclasses");
+        ensure(http, url, priorityClass(apiVersion, CRITICAL, CRITICAL_VALUE, "GoCD elastic agents of latency-critical profiles, which preempt other agents."));
+        ensure(http, url, priorityClass(apiVersion, BATCH, BATCH_VALUE, "GoCD elastic agents of batch profiles, which are preempted first."));
+        ensured.add(cluster);
+    }
+
+    private static String apiVersion(OkHttpClient http, String masterUrl) throws IOException {
+        try (Response response = http.newCall(new Request.Builder().url(URLUtils.join(masterUrl, "apis", V1)).get().build()).execute()) {
+            if (response.isSuccessful()) {
+                return V1;
+            }
+            if (response.code() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new IOException(String.format("Failed to discover the API of priority classes: HTTP %d.", response.code()));
+            }
+            return V1BETA1;
+        }
+    }
+
+    private void ensure(OkHttpClient http, String url, Map<String, Object> priorityClass) throws IOException {
+        @SuppressWarnings("unchecked")
+        String name = (String) ((Map<String, Object>) priorityClass.get("metadata")).get("name");
+        try (Response existing = http.newCall(new Request.Builder().url(url + "/" + name).get().build()).execute()) {
+            if (existing.isSuccessful()) {
+                return;
+            }
+            if (existing.code() != HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new IOException(String.format("Failed to read priority class %s: HTTP %d.", name, existing.code()));
+            }
+        }
+
+        RequestBody body = RequestBody.create(JSON, Util.GSON.toJson(priorityClass));
+        try (Response created = http.newCall(new Request.Builder().url(url).post(body).build()).execute()) {
+            // another plugin instance may have created it in the meantime
+            if (!created.isSuccessful() && created.code() != HttpURLConnection.HTTP_CONFLICT) {
+                throw new IOException(String.format("Failed to create priority class %s: HTTP %d.", name, created.code()));
+            }
+        }
+        LOG.info(String.format("[Priority Classes] Created priority class %s.", name));
+    }
+
+    static Map<String, Object> priorityClass(String apiVersion, String name, int value, String description) {
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put("name", name);
+        metadata.put("labels", Collections.singletonMap(Constants.CREATED_BY_LABEL_KEY, Constants.PLUGIN_ID));
+
+        Map<String, Object> priorityClass = new LinkedHashMap<>();
+        priorityClass.put("apiVersion", apiVersion);
+        priorityClass.put("kind", "PriorityClass");
+        priorityClass.put("metadata", metadata);
+        priorityClass.put("value", value);
+        priorityClass.put("globalDefault", false);
+        priorityClass.put("description", description);
+        return priorityClass;
+    }
+}
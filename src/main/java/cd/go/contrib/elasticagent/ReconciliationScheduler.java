@@ -0,0 +1,138 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.SingleFlight;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * Reconciles {@link KubernetesAgentInstances} with the cluster from a plugin-owned background thread, every
+ * {@link PluginSettings#getRefreshPeriod()} (&plusmn;{@link #JITTER}), so that request handlers never wait on the
+ * Kubernetes API.
+ * <p>
+ * Reads are allowed to be stale by at most {@link #STALENESS_FACTOR} intervals. Past that (or before the first
+ * reconciliation has completed), {@link #ensureFresh()} logs the staleness and reconciles on the calling thread.
+ * After every successful background reconciliation the registry is saved as a {@link RegistrySnapshot}. Threads that
+ * need a reconciliation while one is running share its outcome instead of repeating it.
+ */
+public class ReconciliationScheduler {
+    static final double JITTER = 0.1;
+    static final int STALENESS_FACTOR = 3;
+    private static final Period DEFAULT_INTERVAL = Period.seconds(60);
+
+    private final KubernetesAgentInstances agentInstances;
+    private final PluginRequest pluginRequest;
+    private final ScheduledExecutorService executor;
+    private final File snapshotFile;
+    private final Random random = new Random();
+    private final SingleFlight<Void> reconciliation = new SingleFlight<>();
+    private volatile Period interval = DEFAULT_INTERVAL;
+    public Clock clock = Clock.DEFAULT;
+
+    public ReconciliationScheduler(KubernetesAgentInstances agentInstances, PluginRequest pluginRequest, File snapshotFile) {
+        this(agentInstances, pluginRequest, snapshotFile, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kubernetes-elastic-agent-reconciler");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    ReconciliationScheduler(KubernetesAgentInstances agentInstances, PluginRequest pluginRequest, File snapshotFile, ScheduledExecutorService executor) {
+        this.agentInstances = agentInstances;
+        this.pluginRequest = pluginRequest;
+        this.snapshotFile = snapshotFile;
+        this.executor = executor;
+    }
+
+    public void start() {
+        executor.execute(this::tick);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    public void ensureFresh() {
+        DateTime lastSyncedAt = agentInstances.lastSyncedAt();
+        Period maxStaleness = interval.multipliedBy(STALENESS_FACTOR);
+        if (lastSyncedAt != null && clock.now().isBefore(lastSyncedAt.plus(maxStaleness))) {
+            return;
+        }
+
+        if (lastSyncedAt == null) {
+            LOG.info("[Reconciler] Agent registry has not been synced yet, refreshing it on the request thread.");
+        } else {
+            LOG.warn(String.format("[Reconciler] Agent registry was last synced at %s, which is more than %s ago. Refreshing it on the request thread.", lastSyncedAt, maxStaleness));
+        }
+
+        try {
+            reconcile();
+        } catch (Exception e) {
+            if (lastSyncedAt == null) {
+                throw new RuntimeException(e);
+            }
+            LOG.error(String.format("[Reconciler] Failed to refresh agent registry, using the registry as of %s.", lastSyncedAt), e);
+        }
+    }
+
+    void tick() {
+        try {
+            reconcile();
+            saveSnapshot();
+        } catch (PluginSettingsNotConfiguredException e) {
+            LOG.debug("[Reconciler] Plugin settings are not configured yet, skipping reconciliation.");
+        } catch (Exception e) {
+            LOG.error("[Reconciler] Failed to reconcile agent registry with the cluster.", e);
+        } finally {
+            if (!executor.isShutdown()) {
+                executor.schedule(this::tick, nextDelayMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    long nextDelayMillis() {
+        long intervalMillis = interval.toStandardDuration().getMillis();
+        double jitter = (random.nextDouble() * 2 - 1) * JITTER;
+        return Math.round(intervalMillis * (1 + jitter));
+    }
+
+    private void saveSnapshot() {
+        try {
+            agentInstances.snapshot().writeTo(snapshotFile);
+        } catch (IOException e) {
+            LOG.warn(String.format("[Reconciler] Failed to write registry snapshot to %s.", snapshotFile), e);
+        }
+    }
+
+    private void reconcile() throws Exception {
+        reconciliation.run(() -> {
+            interval = pluginRequest.getPluginSettings().getRefreshPeriod();
+            agentInstances.refreshAll(pluginRequest);
+            return null;
+        });
+    }
+}
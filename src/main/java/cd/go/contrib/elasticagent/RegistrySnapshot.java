@@ -0,0 +1,242 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import org.joda.time.DateTime;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+
+import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
+
+/**
+ * A compact binary copy of the {@link KubernetesAgentInstances} registry, written after every reconciliation so that
+ * a restarted plugin can answer requests straight away and resume its pod watches from {@link #resourceVersions()}
+ * instead of relisting every namespace.
+ * <p>
+ * Layout: magic, format version, cluster count, then per cluster its name, namespace count and per namespace its name
+ * and resourceVersion, profile count, then per profile its property count and properties, record count, then per
+ * instance its name, cluster, namespace, createdAt (epoch millis), environment, node name, phase, creation state and the
+ * index of its profile. Instances of the same profile share its properties, which may hold a whole pod yaml.
+ * <p>
+ * Profile properties may hold secrets, such as the credentials in a pod yaml, so the snapshot is only readable by the
+ * user running the GoCD server.
+ */
+public class RegistrySnapshot {
+    public static final String DATA_DIR_PROPERTY = "cd.go.contrib.elasticagent.kubernetes.data.dir";
+    private static final int MAGIC = 0x4B454153;
+    private static final short FORMAT_VERSION = 5;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final Map<String, Map<String, String>> resourceVersions;
+    private final List<KubernetesInstance> instances;
+
+    /**
+     * @param resourceVersions the last seen resourceVersion of each watched namespace, by cluster
+     */
+    public RegistrySnapshot(Map<String, Map<String, String>> resourceVersions, Collection<KubernetesInstance> instances) {
+        this.resourceVersions = new LinkedHashMap<>(resourceVersions);
+        this.instances = new ArrayList<>(instances);
+    }
+
+    public Map<String, Map<String, String>> resourceVersions() {
+        return resourceVersions;
+    }
+
+    public List<KubernetesInstance> instances() {
+        return instances;
+    }
+
+    public static File defaultFile() {
+        String dataDir = System.getProperty(DATA_DIR_PROPERTY, new File(new File(System.getProperty("user.dir"), "plugin-data"), Constants.PLUGIN_ID).getPath());
+        return new File(dataDir, "agent-registry.snapshot");
+    }
+
+    /**
+     * @return the snapshot stored in <code>file</code>, or <code>null</code> if there is none or it cannot be read
+     */
+    public static RegistrySnapshot readFrom(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readShort() != FORMAT_VERSION) {
+                LOG.warn(String.format("Ignoring registry snapshot %s written in an unknown format.", file));
+                return null;
+            }
+
+            int clusters = in.readInt();
+            Map<String, Map<String, String>> resourceVersions = new LinkedHashMap<>();
+            for (int i = 0; i < clusters; i++) {
+                String cluster = in.readUTF();
+                int namespaces = in.readInt();
+                Map<String, String> namespaceVersions = new LinkedHashMap<>();
+                for (int j = 0; j < namespaces; j++) {
+                    namespaceVersions.put(in.readUTF(), in.readUTF());
+                }
+                resourceVersions.put(cluster, namespaceVersions);
+            }
+
+            int profileCount = in.readInt();
+            List<Map<String, String>> profiles = new ArrayList<>(profileCount);
+            for (int i = 0; i < profileCount; i++) {
+                profiles.add(readProperties(in));
+            }
+
+            int count = in.readInt();
+            List<KubernetesInstance> instances = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String cluster = in.readUTF();
+                String namespace = in.readUTF();
+                DateTime createdAt = new DateTime(in.readLong());
+                String environment = readNullableUTF(in);
+                String nodeName = readNullableUTF(in);
+                String phase = readNullableUTF(in);
+                KubernetesInstance.CreationState creationState = KubernetesInstance.CreationState.valueOf(in.readUTF());
+                Map<String, String> properties = profiles.get(in.readInt());
+                instances.add(new KubernetesInstance(name, cluster, namespace, createdAt, environment, properties, nodeName, phase).withCreationState(creationState));
+            }
+            return new RegistrySnapshot(resourceVersions, instances);
+        } catch (IOException | IllegalArgumentException e) {
+            LOG.warn(String.format("Ignoring unreadable registry snapshot %s.", file), e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file next to <code>file</code> and atomically moves it in place, so a crash
+     * never leaves a partially written snapshot behind. The temporary file is created readable by its owner only.
+     */
+    public void writeTo(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(dir.toPath());
+        File temp = createOwnerOnlyTempFile(file.getName(), dir);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeShort(FORMAT_VERSION);
+                out.writeInt(resourceVersions.size());
+                for (Map.Entry<String, Map<String, String>> cluster : resourceVersions.entrySet()) {
+                    out.writeUTF(cluster.getKey());
+                    out.writeInt(cluster.getValue().size());
+                    for (Map.Entry<String, String> entry : cluster.getValue().entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue());
+                    }
+                }
+
+                Map<String, Integer> profileIndexes = new LinkedHashMap<>();
+                List<Map<String, String>> profiles = new ArrayList<>();
+                for (KubernetesInstance instance : instances) {
+                    if (!profileIndexes.containsKey(instance.profileFingerprint())) {
+                        profileIndexes.put(instance.profileFingerprint(), profiles.size());
+                        profiles.add(instance.getInstanceProperties());
+                    }
+                }
+                out.writeInt(profiles.size());
+                for (Map<String, String> properties : profiles) {
+                    writeProperties(out, properties);
+                }
+
+                out.writeInt(instances.size());
+                for (KubernetesInstance instance : instances) {
+                    out.writeUTF(instance.name());
+                    out.writeUTF(instance.cluster());
+                    out.writeUTF(instance.namespace());
+                    out.writeLong(instance.createdAt().getMillis());
+                    writeNullableUTF(out, instance.environment());
+                    writeNullableUTF(out, instance.nodeName());
+                    writeNullableUTF(out, instance.phase());
+                    out.writeUTF(instance.creationState().name());
+                    out.writeInt(profileIndexes.get(instance.profileFingerprint()));
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static File createOwnerOnlyTempFile(String prefix, File dir) throws IOException {
+        if (Files.getFileStore(dir.toPath()).supportsFileAttributeView("posix")) {
+            return Files.createTempFile(dir.toPath(), prefix, ".tmp", PosixFilePermissions.asFileAttribute(OWNER_ONLY)).toFile();
+        }
+        File temp = File.createTempFile(prefix, ".tmp", dir);
+        if (!(temp.setReadable(false, false) && temp.setReadable(true, true)
+                && temp.setWritable(false, false) && temp.setWritable(true, true))) {
+            LOG.warn(String.format("Could not make registry snapshot %s readable by its owner only.", temp));
+        }
+        return temp;
+    }
+
+    private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Values are written as length-prefixed UTF-8, as a pod yaml may be longer than {@link DataOutput#writeUTF(String)}
+     * allows.
+     */
+    private static void writeProperties(DataOutputStream out, Map<String, String> properties) throws IOException {
+        out.writeInt(properties == null ? -1 : properties.size());
+        if (properties == null) {
+            return;
+        }
+        for (Map.Entry<String, String> property : properties.entrySet()) {
+            out.writeUTF(property.getKey());
+            out.writeBoolean(property.getValue() != null);
+            if (property.getValue() != null) {
+                byte[] value = property.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+    }
+
+    private static Map<String, String> readProperties(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        Map<String, String> properties = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            String value = null;
+            if (in.readBoolean()) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                value = new String(bytes, StandardCharsets.UTF_8);
+            }
+            properties.put(key, value);
+        }
+        return properties;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back new pods of an elastic profile whose pods recently failed to start, such as one whose image does not
+ * exist, so that the plugin does not create, pull and delete pods of it in a loop.
+ * <p>
+ * The back-off starts at {@link #INITIAL} and doubles with every pod of the profile that fails to start in a row, up
+ * to {@link #MAX}. It is reset as soon as a pod of the profile runs, and forgotten along with the tombstones of the
+ * failed pods.
+ */
+public class StartBackOff {
+    static final Period INITIAL = Period.seconds(30);
+    static final Period MAX = Period.minutes(10);
+    private static final int FORGET_AFTER_MINUTES = 30;
+
+    // keyed on profile fingerprint
+    private final Cache<String, Failures> failures = CacheBuilder.newBuilder()
+            .expireAfterWrite(FORGET_AFTER_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    private static class Failures {
+        private final int count;
+        private final DateTime lastAt;
+
+        private Failures(int count, DateTime lastAt) {
+            this.count = count;
+            this.lastAt = lastAt;
+        }
+
+        private DateTime heldUntil() {
+            long millis = INITIAL.toStandardDuration().getMillis() << Math.min(count - 1, 16);
+            return lastAt.plus(Math.min(millis, MAX.toStandardDuration().getMillis()));
+        }
+    }
+
+    public void failed(String profileFingerprint, DateTime at) {
+        failures.asMap().compute(profileFingerprint, (key, previous) -> new Failures(previous == null ? 1 : previous.count + 1, at));
+    }
+
+    public void started(String profileFingerprint) {
+        failures.invalidate(profileFingerprint);
+    }
+
+    /**
+     * @return until when new pods of the profile are held back, or <code>null</code> if they are not
+     */
+    public DateTime heldUntil(String profileFingerprint, DateTime now) {
+        Failures recent = failures.getIfPresent(profileFingerprint);
+        if (recent == null) {
+            return null;
+        }
+        DateTime until = recent.heldUntil();
+        return until.isAfter(now) ? until : null;
+    }
+}
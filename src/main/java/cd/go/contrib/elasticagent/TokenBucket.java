@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket refilled at a number of tokens per second and holding at most a second's worth of them. It starts
+ * full, so an idle bucket admits a burst straight away.
+ * <p>
+ * Callers {@link #reserve()} a token and wait for as long as they are told to; tokens taken from an empty bucket are
+ * owed, which queues the callers in the order they came.
+ */
+class TokenBucket {
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final LongSupplier nanoTime;
+    private int tokensPerSecond;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(int tokensPerSecond) {
+        this(tokensPerSecond, System::nanoTime);
+    }
+
+    TokenBucket(int tokensPerSecond, LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+        this.tokensPerSecond = tokensPerSecond;
+        this.tokens = tokensPerSecond;
+        this.refilledAt = nanoTime.getAsLong();
+    }
+
+    synchronized int tokensPerSecond() {
+        return tokensPerSecond;
+    }
+
+    synchronized void setTokensPerSecond(int tokensPerSecond) {
+        refill();
+        this.tokensPerSecond = tokensPerSecond;
+        this.tokens = Math.min(tokens, tokensPerSecond);
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @return the nanoseconds the caller has to wait before it may use the token, 0 if it may right away
+     */
+    synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerSecond * NANOS_PER_SECOND);
+    }
+
+    private void refill() {
+        long now = nanoTime.getAsLong();
+        tokens = Math.min(tokensPerSecond, tokens + (now - refilledAt) / NANOS_PER_SECOND * tokensPerSecond);
+        refilledAt = now;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import org.joda.time.DateTime;
+
+/**
+ * Records that the plugin terminated an agent recently, and how that went, so that agents GoCD keeps reporting for a
+ * few pings after termination are not mistaken for missing pods and terminated or deleted again. Agents whose pods
+ * were {@link Outcome#EVICTED evicted} or preempted by the cluster are recorded too, so their agents are deleted, as are
+ * pods the plugin deleted because they {@link Outcome#FAILED_TO_START failed to start} or failed.
+ */
+public class Tombstone {
+    public enum Outcome {
+        DELETE_QUEUED,
+        POD_DELETED,
+        POD_NOT_FOUND,
+        EVICTED,
+        FAILED_TO_START,
+        POD_FAILED,
+        FAILED
+    }
+
+    private final DateTime terminatedAt;
+    private volatile Outcome outcome;
+    private final String reason;
+    // how the deletion of the pod went, if it was lost
+    private volatile Outcome deletion;
+    private volatile boolean agentDeleted;
+
+    public Tombstone(DateTime terminatedAt, Outcome outcome) {
+        this(terminatedAt, outcome, null);
+    }
+
+    public Tombstone(DateTime terminatedAt, Outcome outcome, String reason) {
+        this.terminatedAt = terminatedAt;
+        this.outcome = outcome;
+        this.reason = reason;
+    }
+
+    public DateTime terminatedAt() {
+        return terminatedAt;
+    }
+
+    public Outcome outcome() {
+        return outcome;
+    }
+
+    /**
+     * @return why the cluster removed the pod, if it was {@link Outcome#EVICTED}, or why it
+     * {@link Outcome#FAILED_TO_START failed to start} or {@link Outcome#POD_FAILED failed} after its agent started
+     */
+    public String reason() {
+        return reason;
+    }
+
+    /**
+     * Records how the deletion of a {@link Outcome#DELETE_QUEUED queued} pod went. The outcome of a pod that was
+     * {@link #isPodLost() lost} is kept, only its deletion is recorded.
+     */
+    public void complete(Outcome outcome) {
+        if (isPodLost()) {
+            this.deletion = outcome;
+        } else {
+            this.outcome = outcome;
+        }
+    }
+
+    /**
+     * @return true if the deletion of the pod is queued or went through, false if it has yet to be queued or failed
+     */
+    public boolean isDeletionQueued() {
+        Outcome deletion = isPodLost() ? this.deletion : outcome;
+        return deletion == Outcome.DELETE_QUEUED || deletion == Outcome.POD_DELETED || deletion == Outcome.POD_NOT_FOUND;
+    }
+
+    /**
+     * @return true if the pod went away before its agent could finish its job, rather than being terminated idle
+     */
+    public boolean isPodLost() {
+        return outcome == Outcome.EVICTED || outcome == Outcome.FAILED_TO_START || outcome == Outcome.POD_FAILED;
+    }
+
+    public boolean isPodGone() {
+        return outcome != Outcome.FAILED;
+    }
+
+    /**
+     * @return true once the agent was also deleted from the GoCD server
+     */
+    public boolean isAgentDeleted() {
+        return agentDeleted;
+    }
+
+    public void markAgentDeleted() {
+        this.agentDeleted = true;
+    }
+
+    @Override
+    public String toString() {
+        return outcome + (reason == null ? "" : " (" + reason + ")") + " at " + terminatedAt + (deletion == null ? "" : ", pod " + deletion) + (agentDeleted ? ", agent deleted" : "");
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
+import cd.go.contrib.elasticagent.utils.Util;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.WARM_POOL_SIZE;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.apache.commons.lang3.StringUtils.stripToEmpty;
+
+/**
+ * Idle agents kept ready for one elastic profile and environment, so that a <code>create-agent</code> request can be
+ * answered with an agent that is already running and registered. Warm agents are not assigned work until claimed.
+ * <p>
+ * GoCD does not tell the plugin about elastic profiles up front, so a pool is set up by the first request for a
+ * profile with a <code>WarmPoolSize</code>, and dropped once no request for it came for {@link #IDLE_TIMEOUT}.
+ */
+class WarmPool {
+    static final Period IDLE_TIMEOUT = Period.hours(1);
+    // how long a claimed agent is kept idle for GoCD to assign it its job
+    static final Period CLAIM_GRACE_PERIOD = Period.minutes(5);
+
+    private final String key;
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    private volatile CreateAgentRequest template;
+    private volatile DateTime lastRequestedAt;
+
+    WarmPool(CreateAgentRequest template, DateTime now) {
+        this.key = keyOf(template);
+        requested(template, now);
+    }
+
+    static String keyOf(CreateAgentRequest request) {
+        return Util.fingerprint(request.properties()) + "/" + lowerCase(stripToEmpty(request.environment()));
+    }
+
+    static int sizeOf(CreateAgentRequest request) {
+        String size = request.properties() == null ? null : request.properties().get(WARM_POOL_SIZE.getKey());
+        return Math.max(0, NumberUtils.toInt(stripToEmpty(size), 0));
+    }
+
+    void requested(CreateAgentRequest request, DateTime now) {
+        this.template = request;
+        this.lastRequestedAt = now;
+    }
+
+    boolean isIdle(DateTime now) {
+        return !now.isBefore(lastRequestedAt.plus(IDLE_TIMEOUT));
+    }
+
+    String key() {
+        return key;
+    }
+
+    CreateAgentRequest template() {
+        return template;
+    }
+
+    int size() {
+        return sizeOf(template);
+    }
+
+    Set<String> members() {
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d warm agent(s) for profile %s", members.size(), size(), key);
+    }
+}
@@ -16,7 +16,7 @@
 
 package cd.go.contrib.elasticagent.builders;
 
-import cd.go.contrib.elasticagent.model.KubernetesCluster;
+import cd.go.contrib.elasticagent.model.StatusReport;
 import freemarker.cache.ClassTemplateLoader;
 import freemarker.template.Configuration;
 import freemarker.template.Template;
@@ -44,9 +44,9 @@ public class PluginStatusReportViewBuilder {
         return configuration.getTemplate(template);
     }
 
-    public String build(Template template, KubernetesCluster cluster) throws IOException, TemplateException {
+    public String build(Template template, StatusReport statusReport) throws IOException, TemplateException {
         Writer writer = new StringWriter();
-        template.process(cluster, writer);
+        template.process(statusReport, writer);
         return writer.toString();
     }
 
@@ -16,9 +16,13 @@
 
 package cd.go.contrib.elasticagent.executors;
 
+import cd.go.contrib.elasticagent.ImagePrePuller;
 import cd.go.contrib.elasticagent.RequestExecutor;
+import cd.go.contrib.elasticagent.model.ChoiceField;
+import cd.go.contrib.elasticagent.model.ClustersField;
 import cd.go.contrib.elasticagent.model.Field;
 import cd.go.contrib.elasticagent.model.GoServerUrlField;
+import cd.go.contrib.elasticagent.model.NonNegativeNumberField;
 import cd.go.contrib.elasticagent.model.PositiveNumberField;
 import cd.go.contrib.elasticagent.model.SecureURLField;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
@@ -36,6 +40,24 @@ public class GetPluginConfigurationExecutor implements RequestExecutor {
     public static final Field KUBERNETES_CLUSTER_USERNAME = new Field("kubernetes_cluster_username", "Kubernetes Cluster Username", null, false, false, "3");
     public static final Field KUBERNETES_CLUSTER_PASSWORD = new Field("kubernetes_cluster_password", "Kubernetes Cluster Password", null, false, true, "4");
     public static final Field KUBERNETES_CLUSTER_CA_CERT = new Field("kubernetes_cluster_ca_cert", "Kubernetes Cluster CA Certificate", null, false, true, "5");
+    public static final Field REFRESH_INTERVAL = new PositiveNumberField("refresh_interval", "Agent registry refresh interval (in seconds)", "60", false, false, "6");
+    public static final Field NAMESPACES = new Field("namespaces", "Kubernetes Namespaces", "default", false, false, "7");
+    public static final Field ADDITIONAL_CLUSTERS = new ClustersField("additional_clusters", "Additional Kubernetes Clusters", "8");
+    public static final Field POD_CREATION_WORKERS = new PositiveNumberField("pod_creation_workers", "Pod creation workers", "4", false, false, "9");
+    public static final Field MAX_PENDING_PODS_PER_PROFILE = new PositiveNumberField("max_pending_pods_per_profile", "Maximum pending pods per profile", null, false, false, "10");
+    public static final Field CREATES_PER_SECOND_PER_CLUSTER = new PositiveNumberField("creates_per_second_per_cluster", "Pod creations per second, per cluster", "10", false, false, "11");
+    public static final Field CREATES_PER_SECOND_PER_PROFILE = new PositiveNumberField("creates_per_second_per_profile", "Pod creations per second, per elastic profile", "5", false, false, "12");
+    public static final Field DELETES_PER_SECOND_PER_CLUSTER = new PositiveNumberField("deletes_per_second_per_cluster", "Pod deletions per second, per cluster", "10", false, false, "13");
+    public static final Field DELETES_PER_SECOND_PER_PROFILE = new PositiveNumberField("deletes_per_second_per_profile", "Pod deletions per second, per elastic profile", "5", false, false, "14");
+    public static final Field MAX_PENDING_PODS_PER_CLUSTER = new PositiveNumberField("max_pending_pods_per_cluster", "Maximum pending pods per cluster", "100", false, false, "15");
+    public static final Field PREPULL_IMAGES = new Field("prepull_images", "Pre-pull agent images", "false", false, false, "16");
+    public static final Field MANAGE_PRIORITY_CLASSES = new Field("manage_priority_classes", "Manage agent priority classes", "false", false, false, "17");
+    public static final Field POD_DELETION_WORKERS = new PositiveNumberField("pod_deletion_workers", "Pod deletion workers", "4", false, false, "18");
+    public static final Field POD_TERMINATION_GRACE_PERIOD = new NonNegativeNumberField("pod_termination_grace_period", "Pod termination grace period (in seconds)", null, false, false, "19");
+    public static final Field POD_DELETION_PROPAGATION = new ChoiceField("pod_deletion_propagation", "Pod deletion propagation policy", "Background", false, false, "20", "Background", "Foreground", "Orphan");
+    public static final Field PING_TIME_BUDGET = new PositiveNumberField("ping_time_budget", "Server ping time budget (in seconds)", "10", false, false, "21");
+    public static final Field PING_WORK_BUDGET = new PositiveNumberField("ping_work_budget", "Server ping work budget (agents)", "500", false, false, "22");
+    public static final Field PREPULL_PAUSE_IMAGE = new Field("prepull_pause_image", "Image pre-puller pause image", ImagePrePuller.DEFAULT_PAUSE_IMAGE, false, false, "23");
     public static final Map<String, Field> FIELDS = new LinkedHashMap<>();
 
     static {
@@ -47,6 +69,25 @@ public class GetPluginConfigurationExecutor implements RequestExecutor {
         FIELDS.put(KUBERNETES_CLUSTER_USERNAME.key(), KUBERNETES_CLUSTER_USERNAME);
         FIELDS.put(KUBERNETES_CLUSTER_PASSWORD.key(), KUBERNETES_CLUSTER_PASSWORD);
         FIELDS.put(KUBERNETES_CLUSTER_CA_CERT.key(), KUBERNETES_CLUSTER_CA_CERT);
+
+        FIELDS.put(REFRESH_INTERVAL.key(), REFRESH_INTERVAL);
+        FIELDS.put(NAMESPACES.key(), NAMESPACES);
+        FIELDS.put(ADDITIONAL_CLUSTERS.key(), ADDITIONAL_CLUSTERS);
+        FIELDS.put(POD_CREATION_WORKERS.key(), POD_CREATION_WORKERS);
+        FIELDS.put(MAX_PENDING_PODS_PER_PROFILE.key(), MAX_PENDING_PODS_PER_PROFILE);
+        FIELDS.put(CREATES_PER_SECOND_PER_CLUSTER.key(), CREATES_PER_SECOND_PER_CLUSTER);
+        FIELDS.put(CREATES_PER_SECOND_PER_PROFILE.key(), CREATES_PER_SECOND_PER_PROFILE);
+        FIELDS.put(DELETES_PER_SECOND_PER_CLUSTER.key(), DELETES_PER_SECOND_PER_CLUSTER);
+        FIELDS.put(DELETES_PER_SECOND_PER_PROFILE.key(), DELETES_PER_SECOND_PER_PROFILE);
+        FIELDS.put(MAX_PENDING_PODS_PER_CLUSTER.key(), MAX_PENDING_PODS_PER_CLUSTER);
+        FIELDS.put(PREPULL_IMAGES.key(), PREPULL_IMAGES);
+        FIELDS.put(MANAGE_PRIORITY_CLASSES.key(), MANAGE_PRIORITY_CLASSES);
+        FIELDS.put(POD_DELETION_WORKERS.key(), POD_DELETION_WORKERS);
+        FIELDS.put(POD_TERMINATION_GRACE_PERIOD.key(), POD_TERMINATION_GRACE_PERIOD);
+        FIELDS.put(POD_DELETION_PROPAGATION.key(), POD_DELETION_PROPAGATION);
+        FIELDS.put(PING_TIME_BUDGET.key(), PING_TIME_BUDGET);
+        FIELDS.put(PING_WORK_BUDGET.key(), PING_WORK_BUDGET);
+        FIELDS.put(PREPULL_PAUSE_IMAGE.key(), PREPULL_PAUSE_IMAGE);
     }
 
     public GoPluginApiResponse execute() {
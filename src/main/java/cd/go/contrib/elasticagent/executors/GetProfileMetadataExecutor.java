@@ -17,6 +17,8 @@
 package cd.go.contrib.elasticagent.executors;
 
 import cd.go.contrib.elasticagent.RequestExecutor;
+import cd.go.contrib.elasticagent.model.CpuMetadata;
+import cd.go.contrib.elasticagent.model.IntegerMetadata;
 import cd.go.contrib.elasticagent.model.MemoryMetadata;
 import cd.go.contrib.elasticagent.model.Metadata;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
@@ -30,19 +32,49 @@ import static cd.go.contrib.elasticagent.utils.Util.GSON;
 public class GetProfileMetadataExecutor implements RequestExecutor {
     public static final Metadata IMAGE = new Metadata("Image", false, false);
     public static final Metadata MAX_MEMORY = new MemoryMetadata("MaxMemory", false);
-    public static final Metadata MAX_CPU = new Metadata("MaxCPU", false, false);
+    public static final Metadata MAX_CPU = new CpuMetadata("MaxCPU");
+    public static final Metadata MIN_MEMORY = new MemoryMetadata("MinMemory", false);
+    public static final Metadata MIN_CPU = new CpuMetadata("MinCPU");
+    public static final Metadata MIN_EPHEMERAL_STORAGE = new MemoryMetadata("MinEphemeralStorage", false);
+    public static final Metadata MAX_EPHEMERAL_STORAGE = new MemoryMetadata("MaxEphemeralStorage", false);
+    public static final Metadata GUARANTEED_QOS = new Metadata("GuaranteedQoS", false, false);
     public static final Metadata ENVIRONMENT = new Metadata("Environment", false, false);
     public static final Metadata POD_CONFIGURATION = new Metadata("PodConfiguration", false, false);
     public static final Metadata SPECIFIED_USING_POD_CONFIGURATION = new Metadata("SpecifiedUsingPodConfiguration", true, false);
+    public static final Metadata NAMESPACE = new Metadata("Namespace", false, false);
+    public static final Metadata PRIORITY_CLASS = new Metadata("PriorityClass", false, false);
+    public static final Metadata WARM_POOL_SIZE = new IntegerMetadata("WarmPoolSize", 0);
+    public static final Metadata AGENT_IDLE_TIMEOUT = new IntegerMetadata("AgentIdleTimeout", 1);
+    public static final Metadata MAX_JOBS_PER_AGENT = new IntegerMetadata("MaxJobsPerAgent", 1);
+    public static final Metadata CACHE_VOLUMES = new Metadata("CacheVolumes", false, false);
+    public static final Metadata CACHE_VOLUME_TYPE = new Metadata("CacheVolumeType", false, false);
+    public static final Metadata CACHE_SIZE = new MemoryMetadata("CacheSize", false);
+    public static final Metadata CACHE_RETENTION_DAYS = new IntegerMetadata("CacheRetentionDays", 1);
+    public static final Metadata CACHE_STORAGE_CLASS = new Metadata("CacheStorageClass", false, false);
     public static final List<Metadata> FIELDS = new ArrayList<>();
 
     static {
         FIELDS.add(IMAGE);
         FIELDS.add(MAX_MEMORY);
         FIELDS.add(MAX_CPU);
+        FIELDS.add(MIN_MEMORY);
+        FIELDS.add(MIN_CPU);
+        FIELDS.add(MIN_EPHEMERAL_STORAGE);
+        FIELDS.add(MAX_EPHEMERAL_STORAGE);
+        FIELDS.add(GUARANTEED_QOS);
         FIELDS.add(ENVIRONMENT);
         FIELDS.add(POD_CONFIGURATION);
         FIELDS.add(SPECIFIED_USING_POD_CONFIGURATION);
+        FIELDS.add(NAMESPACE);
+        FIELDS.add(PRIORITY_CLASS);
+        FIELDS.add(WARM_POOL_SIZE);
+        FIELDS.add(AGENT_IDLE_TIMEOUT);
+        FIELDS.add(MAX_JOBS_PER_AGENT);
+        FIELDS.add(CACHE_VOLUMES);
+        FIELDS.add(CACHE_VOLUME_TYPE);
+        FIELDS.add(CACHE_SIZE);
+        FIELDS.add(CACHE_RETENTION_DAYS);
+        FIELDS.add(CACHE_STORAGE_CLASS);
     }
 
     @Override
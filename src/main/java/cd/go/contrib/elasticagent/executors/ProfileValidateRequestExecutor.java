@@ -16,11 +16,12 @@
 
 package cd.go.contrib.elasticagent.executors;
 
+import cd.go.contrib.elasticagent.CacheVolumes;
 import cd.go.contrib.elasticagent.RequestExecutor;
+import cd.go.contrib.elasticagent.model.CpuMetadata;
 import cd.go.contrib.elasticagent.model.Metadata;
 import cd.go.contrib.elasticagent.requests.ProfileValidateRequest;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import cd.go.contrib.elasticagent.utils.Size;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import io.fabric8.kubernetes.api.model.Pod;
@@ -32,6 +33,7 @@ import java.util.*;
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
 import static cd.go.contrib.elasticagent.executors.GetProfileMetadataExecutor.*;
 import static cd.go.contrib.elasticagent.utils.Util.GSON;
+import static cd.go.contrib.elasticagent.utils.Util.YAML;
 
 public class ProfileValidateRequestExecutor implements RequestExecutor {
     private final ProfileValidateRequest request;
@@ -84,6 +86,66 @@ public class ProfileValidateRequestExecutor implements RequestExecutor {
         if (StringUtils.isBlank(properties.get(key))) {
             addNotBlankError(result, key, "Image");
         }
+
+        validateSizeRange(properties, MIN_MEMORY, MAX_MEMORY, "Minimum Memory", "Maximum Memory limit", result);
+        validateSizeRange(properties, MIN_EPHEMERAL_STORAGE, MAX_EPHEMERAL_STORAGE, "Minimum Ephemeral Storage", "Maximum Ephemeral Storage limit", result);
+        validateCpuRange(properties, result);
+
+        if (Boolean.valueOf(properties.get(GUARANTEED_QOS.getKey()))) {
+            if (StringUtils.isBlank(properties.get(MAX_MEMORY.getKey()))) {
+                addError(result, MAX_MEMORY.getKey(), "Maximum Memory limit must be set for Guaranteed QoS.");
+            }
+            if (StringUtils.isBlank(properties.get(MAX_CPU.getKey()))) {
+                addError(result, MAX_CPU.getKey(), "Maximum CPU limit must be set for Guaranteed QoS.");
+            }
+        }
+
+        validateCacheVolumes(properties, result);
+    }
+
+    private void validateCacheVolumes(HashMap<String, String> properties, ArrayList<Map<String, String>> result) {
+        try {
+            CacheVolumes.parse(properties.get(CACHE_VOLUMES.getKey()));
+        } catch (IllegalArgumentException e) {
+            addError(result, CACHE_VOLUMES.getKey(), e.getMessage());
+        }
+
+        String type = properties.get(CACHE_VOLUME_TYPE.getKey());
+        if (StringUtils.isNotBlank(type) && !Arrays.asList(CacheVolumes.HOST_PATH, CacheVolumes.PERSISTENT_VOLUME_CLAIM).contains(type.trim())) {
+            addError(result, CACHE_VOLUME_TYPE.getKey(), String.format("Cache Volume Type must be %s or %s.", CacheVolumes.HOST_PATH, CacheVolumes.PERSISTENT_VOLUME_CLAIM));
+        }
+    }
+
+    private void validateSizeRange(HashMap<String, String> properties, Metadata minimum, Metadata maximum, String minimumName, String maximumName, ArrayList<Map<String, String>> result) {
+        String min = properties.get(minimum.getKey());
+        String max = properties.get(maximum.getKey());
+        if (StringUtils.isBlank(min) || StringUtils.isBlank(max)) {
+            return;
+        }
+
+        try {
+            if (Size.parse(min.trim()).compareTo(Size.parse(max.trim())) > 0) {
+                addError(result, minimum.getKey(), String.format("%s must not exceed the %s.", minimumName, maximumName));
+            }
+        } catch (IllegalArgumentException e) {
+            // reported by the field itself
+        }
+    }
+
+    private void validateCpuRange(HashMap<String, String> properties, ArrayList<Map<String, String>> result) {
+        String min = properties.get(MIN_CPU.getKey());
+        String max = properties.get(MAX_CPU.getKey());
+        if (StringUtils.isBlank(min) || StringUtils.isBlank(max)) {
+            return;
+        }
+
+        try {
+            if (CpuMetadata.cores(min).compareTo(CpuMetadata.cores(max)) > 0) {
+                addError(result, MIN_CPU.getKey(), "Minimum CPU must not exceed the Maximum CPU limit.");
+            }
+        } catch (IllegalArgumentException e) {
+            // reported by the field itself
+        }
     }
 
     private void validatePodYaml(HashMap<String, String> properties, ArrayList<Map<String, String>> result) {
@@ -94,9 +156,8 @@ public class ProfileValidateRequestExecutor implements RequestExecutor {
             return;
         }
 
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
         try {
-            mapper.readValue(podYaml, Pod.class);
+            YAML.readValue(podYaml, Pod.class);
         } catch (IOException e) {
             addError(result, key, "Invalid Pod Yaml.");
         }
@@ -19,62 +19,178 @@ package cd.go.contrib.elasticagent.executors;
 import cd.go.contrib.elasticagent.*;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
+import org.joda.time.DateTime;
 
-import java.util.Collection;
+import java.util.*;
 
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
 
+/**
+ * Reconciles the agents of the GoCD server with the registry in a single pass over one listing of the agents. Agents
+ * that are idle past the auto-register timeout, whose pods are missing or were evicted are disabled, and disabled agents
+ * that are not running a job are terminated and deleted. Agents disabled by this ping are deleted by it too: the server
+ * processes the deletion after their disabling, and {@link AgentInstances#retire(String, long)} keeps work from being
+ * assigned to them in between.
+ * <p>
+ * A ping does at most {@link PluginSettings#getPingWorkBudget()} agents' work, within
+ * {@link PluginSettings#getPingTimeBudget()}, oldest deadline first. The rest is carried over in the {@link PingBacklog}.
+ */
 public class ServerPingRequestExecutor implements RequestExecutor {
 
-    private final AgentInstances agentInstances;
+    private final AgentInstances<KubernetesInstance> agentInstances;
     private final PluginRequest pluginRequest;
+    private final PingBacklog backlog;
+    Clock clock = Clock.DEFAULT;
+
+    public ServerPingRequestExecutor(AgentInstances<KubernetesInstance> agentInstances, PluginRequest pluginRequest) {
+        this(agentInstances, pluginRequest, new PingBacklog());
+    }
 
-    public ServerPingRequestExecutor(AgentInstances agentInstances, PluginRequest pluginRequest) {
+    public ServerPingRequestExecutor(AgentInstances<KubernetesInstance> agentInstances, PluginRequest pluginRequest, PingBacklog backlog) {
         this.agentInstances = agentInstances;
         this.pluginRequest = pluginRequest;
+        this.backlog = backlog;
     }
 
     @Override
     public GoPluginApiResponse execute() throws Exception {
         PluginSettings pluginSettings = pluginRequest.getPluginSettings();
+        DateTime startedAt = clock.now();
 
+        long jobClaims = agentInstances.jobClaims();
         Agents allAgents = pluginRequest.listAgents();
-        Agents missingAgents = new Agents();
+        agentInstances.agentsListed(allAgents);
+        List<Work> found = findWork(allAgents, pluginSettings, startedAt);
+
+        DateTime budgetEndsAt = startedAt.plus(pluginSettings.getPingTimeBudget());
+        int workBudget = pluginSettings.getPingWorkBudget();
+        Collection<Agent> toDisable = new ArrayList<>();
+        Collection<Agent> toDelete = new ArrayList<>();
+        List<String> done = new ArrayList<>();
+        for (Work work : found) {
+            if (done.size() >= workBudget || !clock.now().isBefore(budgetEndsAt)) {
+                LOG.info(String.format("[Server Ping] Out of budget, leaving %d agents for the next pings.", found.size() - done.size()));
+                break;
+            }
+            done.add(work.agentId);
 
-        for (Agent agent : allAgents.agents()) {
-            if (agentInstances.find(agent.elasticAgentId()) == null) {
-                LOG.warn(String.format("Was expecting a container with name %s, but it was missing!", agent.elasticAgentId()));
-                missingAgents.add(agent);
+            if (work.disable && work.hasInstance && !agentInstances.retire(work.agentId, jobClaims)) {
+                LOG.debug(String.format("[Server Ping] Agent %s took a job since the agents were listed, not disabling it.", work.agentId));
+                continue;
+            }
+            // deregistered instances are not assigned work, so their pods can go before their agents are disabled
+            if (work.terminate) {
+                if (work.agent == null) {
+                    LOG.warn("Terminating instance that did not register " + work.agentId);
+                }
+                agentInstances.terminate(work.agentId, pluginSettings);
+            }
+            if (work.disable) {
+                toDisable.add(work.agent);
+            }
+            if (work.delete) {
+                toDelete.add(work.agent);
+            }
+        }
+        List<String> foundIds = new ArrayList<>(found.size());
+        for (Work work : found) {
+            foundIds.add(work.agentId);
+        }
+        backlog.update(foundIds, done);
+
+        LOG.debug(String.format("[Server Ping] Disabling %d and deleting %d agents.", toDisable.size(), toDelete.size()));
+        pluginRequest.disableAgents(toDisable);
+        pluginRequest.deleteAgents(toDelete);
+        for (Agent agent : toDelete) {
+            Tombstone tombstone = agentInstances.findTombstone(agent.elasticAgentId());
+            if (tombstone != null) {
+                tombstone.markAgentDeleted();
             }
         }
 
-        LOG.debug(String.format("[Server Ping] Missing Agents:%s", missingAgents.agentIds()));
-        Agents agentsToDisable = agentInstances.instancesCreatedAfterTimeout(pluginSettings, allAgents);
-        LOG.debug(String.format("[Server Ping] Agent Created After Timeout:%s", agentsToDisable.agentIds()));
-        agentsToDisable.addAll(missingAgents);
+        return DefaultGoPluginApiResponse.success("");
+    }
+
+    /**
+     * @return the work for the agents and the instances that never registered, oldest deadline first
+     */
+    private List<Work> findWork(Agents allAgents, PluginSettings pluginSettings, DateTime now) {
+        List<Work> found = new ArrayList<>();
+        for (Agent agent : allAgents.agents()) {
+            String agentId = agent.elasticAgentId();
+            Tombstone tombstone = agentInstances.findTombstone(agentId);
+            if (tombstone != null && tombstone.isAgentDeleted()) {
+                continue;
+            }
 
-        disableIdleAgents(agentsToDisable);
+            KubernetesInstance instance = agentInstances.find(agentId);
+            boolean disabled = agent.configState() == Agent.ConfigState.Disabled;
+            boolean disable = !disabled && shouldDisable(agent, instance != null, tombstone, pluginSettings);
+            boolean delete = (disabled || disable) && agent.isIdleOrUnreachable();
+            if (!disable && !delete) {
+                continue;
+            }
 
-        allAgents = pluginRequest.listAgents();
-        terminateDisabledAgents(allAgents, pluginSettings);
+            DateTime deadline = now;
+            if (instance != null) {
+                deadline = instance.createdAt().plus(pluginSettings.getAutoRegisterPeriod());
+            } else if (tombstone != null) {
+                deadline = tombstone.terminatedAt();
+            }
+            boolean terminate = delete && (tombstone == null || !tombstone.isPodGone());
+            found.add(new Work(agentId, agent, instance != null, disable, terminate, delete, backlog.deadline(agentId, deadline)));
+        }
 
-        agentInstances.terminateUnregisteredInstances(pluginSettings, allAgents);
+        for (KubernetesInstance instance : agentInstances.instancesNotRegisteredAfterTimeout(pluginSettings, allAgents)) {
+            DateTime deadline = instance.createdAt().plus(pluginSettings.getAutoRegisterPeriod());
+            found.add(new Work(instance.name(), null, true, false, true, false, backlog.deadline(instance.name(), deadline)));
+        }
 
-        return DefaultGoPluginApiResponse.success("");
+        found.sort(Comparator.comparing((Work work) -> work.deadline).thenComparing(work -> work.agentId));
+        return found;
     }
 
-    private void disableIdleAgents(Agents agents) throws ServerRequestFailedException {
-        pluginRequest.disableAgents(agents.findInstancesToDisable());
+    private boolean shouldDisable(Agent agent, boolean hasInstance, Tombstone tombstone, PluginSettings pluginSettings) {
+        String agentId = agent.elasticAgentId();
+        if (!hasInstance && tombstone != null && tombstone.isPodLost()) {
+            // the pod is gone, so the agent will not finish its job
+            LOG.info(String.format("[Server Ping] The pod of agent %s is gone (%s), disabling it.", agentId, tombstone));
+            return true;
+        }
+        if (!agent.isIdleOrUnreachable()) {
+            return false;
+        }
+        if (!hasInstance) {
+            if (tombstone != null && tombstone.isPodGone()) {
+                LOG.debug(String.format("[Server Ping] Agent %s was terminated by the plugin (%s).", agentId, tombstone));
+                return false;
+            }
+            LOG.warn(String.format("Was expecting a container with name %s, but it was missing!", agentId));
+            return true;
+        }
+        return agentInstances.isPastRegistrationDeadline(agentId, pluginSettings) && !agentInstances.isWarm(agentId) && !agentInstances.keepIdle(agent);
     }
 
-    private void terminateDisabledAgents(Agents agents, PluginSettings pluginSettings) throws Exception {
-        Collection<Agent> toBeDeleted = agents.findInstancesToTerminate();
-
-        for (Agent agent : toBeDeleted) {
-            agentInstances.terminate(agent.elasticAgentId(), pluginSettings);
+    /**
+     * What a ping is to do for an agent, or for an instance that never registered an agent.
+     */
+    private static class Work {
+        private final String agentId;
+        private final Agent agent;
+        private final boolean hasInstance;
+        private final boolean disable;
+        private final boolean terminate;
+        private final boolean delete;
+        private final DateTime deadline;
+
+        private Work(String agentId, Agent agent, boolean hasInstance, boolean disable, boolean terminate, boolean delete, DateTime deadline) {
+            this.agentId = agentId;
+            this.agent = agent;
+            this.hasInstance = hasInstance;
+            this.disable = disable;
+            this.terminate = terminate;
+            this.delete = delete;
+            this.deadline = deadline;
         }
-
-        pluginRequest.deleteAgents(toBeDeleted);
     }
-
 }
@@ -20,12 +20,10 @@ import cd.go.contrib.elasticagent.AgentInstances;
 import cd.go.contrib.elasticagent.KubernetesInstance;
 import cd.go.contrib.elasticagent.RequestExecutor;
 import cd.go.contrib.elasticagent.requests.ShouldAssignWorkRequest;
+import cd.go.contrib.elasticagent.utils.Util;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
 import static org.apache.commons.lang3.StringUtils.stripToEmpty;
 
@@ -42,19 +40,19 @@ public class ShouldAssignWorkRequestExecutor implements RequestExecutor {
     public GoPluginApiResponse execute() {
         KubernetesInstance instance = agentInstances.find(request.agent().elasticAgentId());
 
-        if (instance == null) {
+        if (instance == null || agentInstances.isWarm(instance.name())) {
             return DefaultGoPluginApiResponse.success("false");
         }
 
         boolean environmentMatches = stripToEmpty(request.environment()).equalsIgnoreCase(stripToEmpty(instance.environment()));
 
-
-        Map<String, String> containerProperties = instance.getInstanceProperties() == null ? new HashMap<>() : instance.getInstanceProperties();
-        Map<String, String> requestProperties = request.properties() == null ? new HashMap<>() : request.properties();
-
-        boolean propertiesMatch = requestProperties.equals(containerProperties);
+        boolean propertiesMatch = Util.fingerprint(request.properties()).equals(instance.profileFingerprint());
 
         if (environmentMatches && propertiesMatch) {
+            if (!agentInstances.claimJob(instance.name())) {
+                LOG.debug(String.format("[Should Assign Work] Agent[%s] is used up, not assigning job[%s]", request.agent().elasticAgentId(), request.properties()));
+                return DefaultGoPluginApiResponse.success("false");
+            }
             LOG.debug(String.format("[Should Assign Work] Assigning job[%s] to agent[%s]", request.properties(), request.agent().elasticAgentId()));
             return DefaultGoPluginApiResponse.success("true");
         }
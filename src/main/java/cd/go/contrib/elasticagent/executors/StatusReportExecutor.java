@@ -16,10 +16,11 @@
 
 package cd.go.contrib.elasticagent.executors;
 
-import cd.go.contrib.elasticagent.KubernetesClientFactory;
-import cd.go.contrib.elasticagent.PluginRequest;
+import cd.go.contrib.elasticagent.*;
 import cd.go.contrib.elasticagent.builders.PluginStatusReportViewBuilder;
 import cd.go.contrib.elasticagent.model.KubernetesCluster;
+import cd.go.contrib.elasticagent.model.StartFailure;
+import cd.go.contrib.elasticagent.model.StatusReport;
 import com.google.gson.JsonObject;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
@@ -27,35 +28,61 @@ import freemarker.template.Template;
 import io.fabric8.kubernetes.client.KubernetesClient;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 
+import static cd.go.contrib.elasticagent.Constants.KUBERNETES_POD_PHASE_PENDING;
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
 
 public class StatusReportExecutor {
     private final PluginRequest pluginRequest;
+    private final KubernetesAgentInstances agentInstances;
     private final KubernetesClientFactory factory;
     private final PluginStatusReportViewBuilder statusReportViewBuilder;
 
 
-    public StatusReportExecutor(PluginRequest pluginRequest) throws IOException {
-        this(pluginRequest, KubernetesClientFactory.instance(), PluginStatusReportViewBuilder.instance());
+    public StatusReportExecutor(PluginRequest pluginRequest, KubernetesAgentInstances agentInstances) throws IOException {
+        this(pluginRequest, agentInstances, KubernetesClientFactory.instance(), PluginStatusReportViewBuilder.instance());
     }
 
-    public StatusReportExecutor(PluginRequest pluginRequest, KubernetesClientFactory factory, PluginStatusReportViewBuilder statusReportViewBuilder) throws IOException {
+    public StatusReportExecutor(PluginRequest pluginRequest, KubernetesAgentInstances agentInstances, KubernetesClientFactory factory, PluginStatusReportViewBuilder statusReportViewBuilder) throws IOException {
         this.pluginRequest = pluginRequest;
+        this.agentInstances = agentInstances;
         this.factory = factory;
         this.statusReportViewBuilder = statusReportViewBuilder;
     }
 
     public GoPluginApiResponse execute() throws Exception {
         LOG.info("[status-report] Generating status report");
-        KubernetesClient client = factory.kubernetes(pluginRequest.getPluginSettings());
-        final KubernetesCluster kubernetesCluster = new KubernetesCluster(client);
+        PluginSettings settings = pluginRequest.getPluginSettings();
+        final StatusReport statusReport = new StatusReport();
+        for (ClusterProfile cluster : settings.getClusters()) {
+            KubernetesCluster kubernetesCluster;
+            try {
+                KubernetesClient client = factory.kubernetes(cluster);
+                kubernetesCluster = new KubernetesCluster(cluster.getName(), client, settings.getNamespaces());
+            } catch (Exception e) {
+                LOG.error(String.format("[status-report] Failed to read the nodes and pods of cluster %s.", cluster.getName()), e);
+                kubernetesCluster = KubernetesCluster.unreachable(cluster.getName(), e);
+            }
+            List<KubernetesInstance> instances = agentInstances.findByCluster(cluster.getName());
+            int pending = (int) instances.stream().filter(instance -> KUBERNETES_POD_PHASE_PENDING.equals(instance.phase())).count();
+            kubernetesCluster.setRegistryInfo(instances.size(), pending, agentInstances.headroom(cluster.getName()));
+            AdmissionControl.Stats admission = agentInstances.admissionControl().stats(cluster.getName());
+            kubernetesCluster.setAdmissionInfo(admission.throttledCreates(), admission.throttledDeletes(), admission.pendingCapWaits(), admission.waiting());
+            statusReport.add(kubernetesCluster);
+        }
+        statusReport.setPodCreationBacklog(agentInstances.podCreationQueue().backlog());
+        statusReport.setPodDeletionBacklog(agentInstances.podTerminationQueue().backlog());
+        for (Map.Entry<String, Tombstone> failure : agentInstances.startFailures().entrySet()) {
+            statusReport.addStartFailure(new StartFailure(failure.getKey(), failure.getValue().reason(), failure.getValue().terminatedAt().toDate()));
+        }
         final Template template = statusReportViewBuilder.getTemplate("status-report.template.ftlh");
-        final String statusReportView = statusReportViewBuilder.build(template, kubernetesCluster);
+        final String statusReportView = statusReportViewBuilder.build(template, statusReport);
 
         JsonObject responseJSON = new JsonObject();
         responseJSON.addProperty("view", statusReportView);
 
         return DefaultGoPluginApiResponse.success(responseJSON.toString());
     }
-}
\ No newline at end of file
+}
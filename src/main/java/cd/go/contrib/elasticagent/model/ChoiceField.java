@@ -0,0 +1,43 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ChoiceField extends Field {
+    private final List<String> choices;
+
+    public ChoiceField(String key, String displayName, String defaultValue, Boolean required, Boolean secure, String displayOrder, String... choices) {
+        super(key, displayName, defaultValue, required, secure, displayOrder);
+        this.choices = Arrays.asList(choices);
+    }
+
+    @Override
+    public String doValidate(String input) {
+        if (!required && StringUtils.isBlank(input)) {
+            return null;
+        }
+
+        if (!choices.contains(StringUtils.trim(input))) {
+            return this.displayName + " must be one of " + StringUtils.join(choices, ", ") + ".";
+        }
+        return null;
+    }
+}
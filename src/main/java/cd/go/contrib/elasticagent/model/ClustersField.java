@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import cd.go.contrib.elasticagent.ClusterProfile;
+import cd.go.contrib.elasticagent.PluginSettings;
+import com.google.gson.JsonParseException;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ClustersField extends Field {
+    private final SecureURLField clusterUrl = new SecureURLField("kubernetes_cluster_url", "Kubernetes Cluster URL", true, null);
+
+    public ClustersField(String key, String displayName, String displayOrder) {
+        super(key, displayName, null, false, true, displayOrder);
+    }
+
+    @Override
+    public String doValidate(String input) {
+        List<ClusterProfile> clusters;
+        try {
+            clusters = PluginSettings.parseClusters(input);
+        } catch (JsonParseException e) {
+            return this.displayName + " must be a JSON list of clusters.";
+        }
+
+        Set<String> names = new HashSet<>();
+        names.add(ClusterProfile.PRIMARY);
+        for (ClusterProfile cluster : clusters) {
+            if (cluster == null || StringUtils.isBlank(cluster.getName())) {
+                return this.displayName + " must have a name for every cluster.";
+            }
+            if (!names.add(cluster.getName())) {
+                return this.displayName + " must have unique cluster names other than '" + ClusterProfile.PRIMARY + "'.";
+            }
+            String urlError = clusterUrl.doValidate(cluster.getClusterUrl());
+            if (urlError != null) {
+                return String.format("Cluster '%s': %s", cluster.getName(), urlError);
+            }
+        }
+
+        return null;
+    }
+}
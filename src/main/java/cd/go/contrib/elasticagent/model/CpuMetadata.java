@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.commons.lang3.StringUtils;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A cpu request or limit, as a Kubernetes quantity: a number of cores such as <code>0.5</code>, or of millicores
+ * such as <code>500m</code>.
+ */
+public class CpuMetadata extends Metadata {
+    private static final Pattern QUANTITY_PATTERN = Pattern.compile("(\\d+(?:\\.\\d*)?|\\.\\d+)(n|u|m|k|M|G|T|P|E|Ki|Mi|Gi|Ti|Pi|Ei|[eE][+-]?\\d+)?");
+    private static final Map<String, BigDecimal> SUFFIXES = ImmutableMap.<String, BigDecimal>builder()
+            .put("n", new BigDecimal("1e-9"))
+            .put("u", new BigDecimal("1e-6"))
+            .put("m", new BigDecimal("1e-3"))
+            .put("k", new BigDecimal("1e3"))
+            .put("M", new BigDecimal("1e6"))
+            .put("G", new BigDecimal("1e9"))
+            .put("T", new BigDecimal("1e12"))
+            .put("P", new BigDecimal("1e15"))
+            .put("E", new BigDecimal("1e18"))
+            .put("Ki", BigDecimal.valueOf(2).pow(10))
+            .put("Mi", BigDecimal.valueOf(2).pow(20))
+            .put("Gi", BigDecimal.valueOf(2).pow(30))
+            .put("Ti", BigDecimal.valueOf(2).pow(40))
+            .put("Pi", BigDecimal.valueOf(2).pow(50))
+            .put("Ei", BigDecimal.valueOf(2).pow(60))
+            .build();
+
+    public CpuMetadata(String key) {
+        super(key, false, false);
+    }
+
+    @Override
+    protected String doValidate(String input) {
+        if (StringUtils.isBlank(input)) {
+            return null;
+        }
+
+        try {
+            cores(input);
+            return null;
+        } catch (IllegalArgumentException e) {
+            return String.format("%s must be a number of cores, e.g. 0.5, or of millicores, e.g. 500m.", getKey());
+        }
+    }
+
+    /**
+     * @return the number of cores of a cpu quantity
+     * @throws IllegalArgumentException if it is not a quantity
+     */
+    public static BigDecimal cores(String quantity) {
+        Matcher matcher = QUANTITY_PATTERN.matcher(quantity.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid cpu quantity: " + quantity);
+        }
+
+        BigDecimal number = new BigDecimal(matcher.group(1));
+        String suffix = matcher.group(2);
+        if (suffix == null) {
+            return number;
+        }
+        if (!SUFFIXES.containsKey(suffix)) {
+            // an exponent, such as 5e-1
+            return number.scaleByPowerOfTen(Integer.parseInt(suffix.substring(1)));
+        }
+        return number.multiply(SUFFIXES.get(suffix));
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+public class IntegerMetadata extends Metadata {
+    private final int minimum;
+
+    public IntegerMetadata(String key, int minimum) {
+        super(key, false, false);
+        this.minimum = minimum;
+    }
+
+    @Override
+    protected String doValidate(String input) {
+        if (StringUtils.isBlank(input)) {
+            return null;
+        }
+
+        try {
+            if (Integer.parseInt(input.trim()) >= minimum) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        return String.format("%s must be a whole number of at least %d.", getKey(), minimum);
+    }
+}
@@ -17,41 +17,140 @@
 package cd.go.contrib.elasticagent.model;
 
 import cd.go.contrib.elasticagent.Constants;
+import cd.go.contrib.elasticagent.PagedPodLister;
 import io.fabric8.kubernetes.api.model.Pod;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import org.apache.commons.lang3.StringUtils;
 
 import java.text.ParseException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static cd.go.contrib.elasticagent.KubernetesPlugin.LOG;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 public class KubernetesCluster {
+    private final String name;
     private final List<KubernetesNode> nodes;
+    private final String error;
+    private int registeredAgents;
+    private int pendingAgents;
+    private int headroom;
+    private long throttledCreates;
+    private long throttledDeletes;
+    private long pendingCapWaits;
+    private int creationsWaiting;
 
-    public KubernetesCluster(KubernetesClient client) throws ParseException {
+    public KubernetesCluster(String name, KubernetesClient client, List<String> namespaces) throws ParseException {
+        this.name = name;
+        this.error = null;
         nodes = client.nodes().list().getItems().stream().map(node -> new KubernetesNode(node)).collect(toList());
-        LOG.info("Running docker swarm nodes " + nodes.size());
-        fetchPods(client);
+        LOG.info(String.format("Running nodes in cluster %s: %d", name, nodes.size()));
+        fetchPods(client, namespaces);
     }
 
-    private void fetchPods(KubernetesClient dockerClient) throws ParseException {
+    private KubernetesCluster(String name, String error) {
+        this.name = name;
+        this.error = error;
+        this.nodes = Collections.emptyList();
+    }
+
+    /**
+     * A cluster whose nodes and pods could not be read, reported with the reason.
+     */
+    public static KubernetesCluster unreachable(String name, Exception cause) {
+        return new KubernetesCluster(name, StringUtils.defaultIfBlank(cause.getMessage(), cause.getClass().getSimpleName()));
+    }
+
+    private void fetchPods(KubernetesClient dockerClient, List<String> namespaces) {
         final Map<String, KubernetesNode> dockerNodeMap = nodes.stream().distinct().collect(toMap(KubernetesNode::getName, node -> node));
-        final List<Pod> pods = dockerClient.pods().inNamespace(Constants.KUBERNETES_NAMESPACE_KEY).list().getItems();
-        LOG.info("Running pods " + pods.size());
-
-        for (Pod pod : pods) {
-            final KubernetesPod kubernetesPod = new KubernetesPod(pod);
-            final KubernetesNode kubernetesNode = dockerNodeMap.get(kubernetesPod.getNodeName());
-            if (kubernetesNode != null) {
-                kubernetesNode.add(kubernetesPod);
-            }
+        final AtomicInteger podCount = new AtomicInteger();
+
+        for (String namespace : namespaces) {
+            new PagedPodLister(dockerClient).list(namespace, Constants.ELASTIC_AGENT_POD_SELECTOR, Collections.emptyMap(), page -> {
+                for (Pod pod : page.getItems()) {
+                    final KubernetesPod kubernetesPod = toKubernetesPod(pod);
+                    final KubernetesNode kubernetesNode = dockerNodeMap.get(kubernetesPod.getNodeName());
+                    if (kubernetesNode != null) {
+                        kubernetesNode.add(kubernetesPod);
+                    }
+                }
+                podCount.addAndGet(page.getItems().size());
+            });
+        }
+        LOG.info("Running pods " + podCount.get());
+    }
+
+    private static KubernetesPod toKubernetesPod(Pod pod) {
+        try {
+            return new KubernetesPod(pod);
+        } catch (ParseException e) {
+            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Adds what the agent registry knows about the cluster, as used to route new agents.
+     */
+    public void setRegistryInfo(int registeredAgents, int pendingAgents, int headroom) {
+        this.registeredAgents = registeredAgents;
+        this.pendingAgents = pendingAgents;
+        this.headroom = headroom;
+    }
+
+    /**
+     * Adds how often pod creations and deletions in the cluster were held back by admission control.
+     */
+    public void setAdmissionInfo(long throttledCreates, long throttledDeletes, long pendingCapWaits, int creationsWaiting) {
+        this.throttledCreates = throttledCreates;
+        this.throttledDeletes = throttledDeletes;
+        this.pendingCapWaits = pendingCapWaits;
+        this.creationsWaiting = creationsWaiting;
+    }
+
+    public String getName() {
+        return name;
+    }
+
     public List<KubernetesNode> getNodes() {
         return nodes;
     }
+
+    /**
+     * @return why the cluster could not be read, or <code>null</code> if it was
+     */
+    public String getError() {
+        return error;
+    }
+
+    public int getRegisteredAgents() {
+        return registeredAgents;
+    }
+
+    public int getPendingAgents() {
+        return pendingAgents;
+    }
+
+    public int getHeadroom() {
+        return headroom;
+    }
+
+    public long getThrottledCreates() {
+        return throttledCreates;
+    }
+
+    public long getThrottledDeletes() {
+        return throttledDeletes;
+    }
+
+    public long getPendingCapWaits() {
+        return pendingCapWaits;
+    }
+
+    public int getCreationsWaiting() {
+        return creationsWaiting;
+    }
 }
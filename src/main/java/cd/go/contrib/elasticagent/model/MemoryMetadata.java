@@ -33,6 +33,10 @@ public class MemoryMetadata extends Metadata {
 
     @Override
     protected String doValidate(String input) {
+        if (!isRequired() && StringUtils.isBlank(input)) {
+            return null;
+        }
+
         List<String> errors = new ArrayList<>(Arrays.asList(super.doValidate(input)));
 
         try {
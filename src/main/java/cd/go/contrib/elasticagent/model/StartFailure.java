@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import java.util.Date;
+
+/**
+ * A pod the plugin deleted recently because it failed or could not start, and why.
+ */
+public class StartFailure {
+    private final String podName;
+    private final String reason;
+    private final Date failedAt;
+
+    public StartFailure(String podName, String reason, Date failedAt) {
+        this.podName = podName;
+        this.reason = reason;
+        this.failedAt = failedAt;
+    }
+
+    public String getPodName() {
+        return podName;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public Date getFailedAt() {
+        return failedAt;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The root of the status report view: every configured cluster, the primary cluster first.
+ */
+public class StatusReport {
+    private final List<KubernetesCluster> clusters = new ArrayList<>();
+    private int podCreationBacklog;
+    private int podDeletionBacklog;
+    private final List<StartFailure> startFailures = new ArrayList<>();
+
+    public void add(KubernetesCluster cluster) {
+        clusters.add(cluster);
+    }
+
+    public List<KubernetesCluster> getClusters() {
+        return clusters;
+    }
+
+    public void setPodCreationBacklog(int podCreationBacklog) {
+        this.podCreationBacklog = podCreationBacklog;
+    }
+
+    /**
+     * @return the pod creations waiting for a worker of the pod creation queue
+     */
+    public int getPodCreationBacklog() {
+        return podCreationBacklog;
+    }
+
+    public void setPodDeletionBacklog(int podDeletionBacklog) {
+        this.podDeletionBacklog = podDeletionBacklog;
+    }
+
+    /**
+     * @return the batches of pod deletions waiting for a worker of the pod termination queue
+     */
+    public int getPodDeletionBacklog() {
+        return podDeletionBacklog;
+    }
+
+    public void addStartFailure(StartFailure failure) {
+        startFailures.add(failure);
+    }
+
+    /**
+     * @return the pods recently deleted because they failed or could not start, the most recent first
+     */
+    public List<StartFailure> getStartFailures() {
+        return startFailures;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.utils;
+
+import org.joda.time.DateTime;
+
+import java.util.*;
+
+/**
+ * A hashed timing wheel: keys are hashed into one of <code>wheelSize</code> buckets by their deadline tick, and
+ * {@link #advance(DateTime)} only visits the buckets of the ticks that elapsed since the previous call. Scheduling and
+ * cancelling are O(1); advancing costs O(elapsed ticks + keys in those buckets), independent of the total number of
+ * keys as long as deadlines are spread over less than one revolution of the wheel.
+ */
+public class HashedTimingWheel<K> {
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+    private static final int OVERDUE = -1;
+
+    private final long tickMillis;
+    private final List<Set<K>> buckets;
+    private final Set<K> overdue = new HashSet<>();
+    private final Map<K, Timeout> timeouts = new HashMap<>();
+    private long lastTick = NOT_STARTED;
+
+    public HashedTimingWheel(long tickMillis, int wheelSize) {
+        this.tickMillis = tickMillis;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new HashSet<>());
+        }
+    }
+
+    /**
+     * Schedules (or reschedules) a key to expire once the wheel is advanced past <code>deadline</code>.
+     */
+    public synchronized void schedule(K key, DateTime deadline) {
+        cancel(key);
+        long deadlineTick = tickOf(deadline);
+        if (lastTick != NOT_STARTED && deadlineTick <= lastTick) {
+            overdue.add(key);
+            timeouts.put(key, new Timeout(deadlineTick, OVERDUE));
+            return;
+        }
+        int bucket = bucketIndex(deadlineTick);
+        buckets.get(bucket).add(key);
+        timeouts.put(key, new Timeout(deadlineTick, bucket));
+    }
+
+    public synchronized void cancel(K key) {
+        Timeout timeout = timeouts.remove(key);
+        if (timeout != null) {
+            (timeout.bucket == OVERDUE ? overdue : buckets.get(timeout.bucket)).remove(key);
+        }
+    }
+
+    /**
+     * @return the keys whose deadline is at or before <code>now</code>; they are removed from the wheel
+     */
+    public synchronized List<K> advance(DateTime now) {
+        long nowTick = tickOf(now);
+        List<K> expired = new ArrayList<>();
+        expire(overdue, nowTick, expired);
+        if (lastTick == NOT_STARTED || nowTick - lastTick >= buckets.size()) {
+            for (Set<K> bucket : buckets) {
+                expire(bucket, nowTick, expired);
+            }
+        } else {
+            for (long tick = lastTick + 1; tick <= nowTick; tick++) {
+                expire(buckets.get(bucketIndex(tick)), nowTick, expired);
+            }
+        }
+        lastTick = Math.max(lastTick, nowTick);
+        return expired;
+    }
+
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    private void expire(Set<K> bucket, long nowTick, List<K> expired) {
+        Iterator<K> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            K key = iterator.next();
+            if (timeouts.get(key).deadlineTick <= nowTick) {
+                iterator.remove();
+                timeouts.remove(key);
+                expired.add(key);
+            }
+        }
+    }
+
+    private int bucketIndex(long tick) {
+        return (int) Math.floorMod(tick, (long) buckets.size());
+    }
+
+    private long tickOf(DateTime time) {
+        return Math.floorDiv(time.getMillis(), tickMillis);
+    }
+
+    private static class Timeout {
+        private final long deadlineTick;
+        private final int bucket;
+
+        private Timeout(long deadlineTick, int bucket) {
+            this.deadlineTick = deadlineTick;
+            this.bucket = bucket;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs at most one call at a time: callers arriving while a call is in flight wait for it and share its result or
+ * exception, instead of queueing up to repeat it.
+ */
+public class SingleFlight<T> {
+    private final AtomicReference<FutureTask<T>> inFlight = new AtomicReference<>();
+
+    public T run(Callable<T> call) throws Exception {
+        while (true) {
+            FutureTask<T> current = inFlight.get();
+            if (current == null) {
+                FutureTask<T> task = new FutureTask<>(call);
+                if (!inFlight.compareAndSet(null, task)) {
+                    continue;
+                }
+                try {
+                    task.run();
+                } finally {
+                    inFlight.set(null);
+                }
+                current = task;
+            }
+
+            try {
+                return current.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw (Error) e.getCause();
+            }
+        }
+    }
+
+    /**
+     * @return true while a call is in flight
+     */
+    public boolean isRunning() {
+        return inFlight.get() != null;
+    }
+}
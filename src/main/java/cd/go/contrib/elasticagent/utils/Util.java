@@ -17,6 +17,9 @@
 package cd.go.contrib.elasticagent.utils;
 
 import cd.go.contrib.elasticagent.executors.GetViewRequestExecutor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.google.gson.Gson;
@@ -29,14 +32,18 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
+import java.util.Map;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
 import static cd.go.contrib.elasticagent.Constants.KUBERNETES_POD_CREATION_TIME_FORMAT;
 
 public class Util {
 
     public static final Gson GSON = new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create();
+    // thread safe once configured, and costly to create
+    public static final ObjectMapper YAML = new ObjectMapper(new YAMLFactory());
 
     public static SimpleDateFormat getSimpleDateFormat() {
         SimpleDateFormat simpleDateFormat = new SimpleDateFormat(KUBERNETES_POD_CREATION_TIME_FORMAT);
@@ -89,4 +96,12 @@ public class Util {
         int digitGroups = (int) (Math.log10(size) / Math.log10(1024));
         return new DecimalFormat("#,##0.##").format(size / Math.pow(1024, digitGroups)) + " " + units[digitGroups];
     }
+
+    /**
+     * A stable digest of elastic profile properties; two property maps have the same fingerprint iff they are equal.
+     */
+    public static String fingerprint(Map<String, String> properties) {
+        TreeMap<String, String> sorted = properties == null ? new TreeMap<>() : new TreeMap<>(properties);
+        return Hashing.sha256().hashString(new GsonBuilder().serializeNulls().create().toJson(sorted), StandardCharsets.UTF_8).toString();
+    }
 }
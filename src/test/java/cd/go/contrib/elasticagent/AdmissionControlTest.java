@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AdmissionControlTest {
+    private AdmissionControl admissionControl;
+
+    @Before
+    public void setUp() throws Exception {
+        admissionControl = new AdmissionControl();
+    }
+
+    @Test
+    public void shouldCountCallsThatWaitedForATokenOfTheirCluster() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"deletes_per_second_per_cluster\": \"2\", \"deletes_per_second_per_profile\": \"100\"}");
+
+        admissionControl.admitDelete("primary", "profile-1", settings);
+        admissionControl.admitDelete("primary", "profile-2", settings);
+        admissionControl.admitDelete("primary", "profile-3", settings);
+        admissionControl.admitDelete("burst", "profile-1", settings);
+
+        assertThat(admissionControl.stats("primary").throttledDeletes(), is(1L));
+        assertThat(admissionControl.stats("burst").throttledDeletes(), is(0L));
+    }
+
+    @Test
+    public void shouldCountCallsThatWaitedForATokenOfTheirProfile() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"creates_per_second_per_cluster\": \"100\", \"creates_per_second_per_profile\": \"2\"}");
+
+        admissionControl.admitCreate("primary", "profile-1", settings, () -> 0, () -> {});
+        admissionControl.admitCreate("primary", "profile-1", settings, () -> 0, () -> {});
+        admissionControl.admitCreate("primary", "profile-2", settings, () -> 0, () -> {});
+        admissionControl.admitCreate("primary", "profile-1", settings, () -> 0, () -> {});
+
+        assertThat(admissionControl.stats("primary").throttledCreates(), is(1L));
+    }
+
+    @Test
+    public void shouldParkCreationsWhileTheClusterHasTooManyPendingPods() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"max_pending_pods_per_cluster\": \"2\", \"creates_per_second_per_cluster\": \"100\", \"creates_per_second_per_profile\": \"100\"}");
+        AtomicInteger pendingPods = new AtomicInteger(1);
+        Runnable retry = () -> {};
+
+        assertTrue(admissionControl.admitCreate("primary", "profile-1", settings, pendingPods::get, () -> {}));
+        assertFalse(admissionControl.admitCreate("primary", "profile-2", settings, pendingPods::get, retry));
+
+        assertThat(admissionControl.stats("primary").parked(), is(1));
+        assertThat(admissionControl.stats("primary").waiting(), is(1));
+        assertThat(admissionControl.stats("primary").pendingCapWaits(), is(1L));
+        assertThat(admissionControl.releaseParked("primary", pendingPods::get), is(empty()));
+
+        pendingPods.set(0);
+        admissionControl.createFinished("primary");
+
+        assertThat(admissionControl.releaseParked("primary", pendingPods::get), contains(retry));
+        assertThat(admissionControl.stats("primary").waiting(), is(0));
+    }
+
+    @Test
+    public void shouldRejectCreationsOnceTooManyAreParked() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"max_pending_pods_per_cluster\": \"2\", \"creates_per_second_per_cluster\": \"100\", \"creates_per_second_per_profile\": \"100\"}");
+        for (int i = 0; i < 2 * AdmissionControl.PARKED_CREATIONS_PER_PENDING_POD; i++) {
+            assertFalse(admissionControl.admitCreate("primary", "profile-1", settings, () -> 2, () -> {}));
+        }
+
+        try {
+            admissionControl.admitCreate("primary", "profile-1", settings, () -> 2, () -> {});
+            fail("Expected the creation to be rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertThat(admissionControl.stats("primary").parked(), is(2 * AdmissionControl.PARKED_CREATIONS_PER_PENDING_POD));
+    }
+
+    @Test
+    public void shouldReleaseOnlyAsManyParkedCreationsAsTheClusterHasRoomFor() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"max_pending_pods_per_cluster\": \"2\", \"creates_per_second_per_cluster\": \"100\", \"creates_per_second_per_profile\": \"100\"}");
+        AtomicInteger pendingPods = new AtomicInteger(2);
+        Runnable first = () -> {};
+        Runnable second = () -> {};
+        Runnable third = () -> {};
+
+        admissionControl.admitCreate("primary", "profile-1", settings, pendingPods::get, first);
+        admissionControl.admitCreate("primary", "profile-1", settings, pendingPods::get, second);
+        admissionControl.admitCreate("primary", "profile-1", settings, pendingPods::get, third);
+
+        pendingPods.set(0);
+
+        assertThat(admissionControl.releaseParked("primary", pendingPods::get), contains(first, second));
+        assertThat(admissionControl.stats("primary").parked(), is(1));
+    }
+}
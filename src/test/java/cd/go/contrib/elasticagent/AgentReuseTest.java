@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.PodStatus;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AgentReuseTest {
+    private final AgentReuse agentReuse = new AgentReuse();
+    private final DateTime now = new DateTime();
+
+    @Test
+    public void shouldNotKeepIdleAgentsOfProfilesWithoutIdleTimeout() throws Exception {
+        KubernetesInstance instance = instance(new HashMap<>());
+
+        assertThat(agentReuse.claimJob(instance, now), is(true));
+        assertThat(agentReuse.claimJob(instance, now), is(true));
+        assertThat(agentReuse.keepIdle(instance, now), is(false));
+    }
+
+    @Test
+    public void shouldKeepIdleAgentsUntilTheyHaveBeenIdleForTheTimeout() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("AgentIdleTimeout", "10");
+        KubernetesInstance instance = instance(properties);
+
+        assertThat(agentReuse.keepIdle(instance, now), is(true));
+        assertThat(agentReuse.claimJob(instance, now.plusMinutes(9)), is(true));
+        assertThat(agentReuse.keepIdle(instance, now.plusMinutes(15)), is(true));
+        assertThat(agentReuse.keepIdle(instance, now.plusMinutes(24)), is(true));
+        assertThat(agentReuse.keepIdle(instance, now.plusMinutes(25)), is(false));
+        assertThat(agentReuse.claimJob(instance, now.plusMinutes(25)), is(false));
+    }
+
+    @Test
+    public void shouldNotKeepAgentsThatRanTheirLastJob() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("AgentIdleTimeout", "10");
+        properties.put("MaxJobsPerAgent", "1");
+        KubernetesInstance instance = instance(properties);
+
+        assertThat(agentReuse.claimJob(instance, now), is(true));
+        assertThat(agentReuse.jobsOf(instance.name()), is(1));
+        assertThat(agentReuse.claimJob(instance, now), is(false));
+        assertThat(agentReuse.keepIdle(instance, now), is(false));
+    }
+
+    private static KubernetesInstance instance(Map<String, String> properties) {
+        ObjectMeta metadata = new ObjectMeta();
+        metadata.setName("pod-1");
+        metadata.setLabels(new HashMap<>());
+        metadata.setAnnotations(properties);
+        return KubernetesInstance.fromInstanceInfo(new Pod("v1", "Pod", metadata, new PodSpec(), new PodStatus()), ClusterProfile.PRIMARY);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.*;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.Resource;
+import io.fabric8.kubernetes.client.dsl.internal.PersistentVolumeClaimOperationsImpl;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class CacheVolumesTest {
+    @Mock
+    private KubernetesClient client;
+    @Mock
+    private PersistentVolumeClaimOperationsImpl claims;
+    @Mock
+    private Resource<PersistentVolumeClaim, DoneablePersistentVolumeClaim> claimResource;
+    private Map<String, String> properties;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(client.persistentVolumeClaims()).thenReturn(claims);
+        when(claims.inNamespace(anyString())).thenReturn(claims);
+        when(claims.withName(anyString())).thenReturn(claimResource);
+
+        properties = new HashMap<>();
+        properties.put("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        properties.put("CacheVolumes", "maven:/home/go/.m2\n\ngradle : /home/go/.gradle\n");
+        properties.put("CacheSize", "2G");
+    }
+
+    @Test
+    public void shouldParseOneCachePerLine() throws Exception {
+        List<CacheVolumes.Cache> caches = CacheVolumes.parse(properties.get("CacheVolumes"));
+
+        assertThat(caches.stream().map(CacheVolumes.Cache::name).toArray(), arrayContaining("maven", "gradle"));
+        assertThat(caches.stream().map(CacheVolumes.Cache::mountPath).toArray(), arrayContaining("/home/go/.m2", "/home/go/.gradle"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectRelativeMountPaths() throws Exception {
+        CacheVolumes.parse("maven:.m2");
+    }
+
+    @Test
+    public void shouldMountHostPathCachesAndPruneThemBeforeTheAgentStarts() throws Exception {
+        Pod pod = podWithAgentContainer();
+
+        CacheVolumes.addTo(pod, properties);
+
+        List<Volume> volumes = pod.getSpec().getVolumes();
+        assertThat(volumes.get(0).getHostPath().getPath(), is(CacheVolumes.HOST_PATH_ROOT + "/maven/" + CacheVolumes.profileDirectory(properties)));
+        assertThat(volumes.get(0).getHostPath().getAdditionalProperties().get("type"), is("DirectoryOrCreate"));
+        assertThat(pod.getSpec().getContainers().get(0).getVolumeMounts().get(1).getMountPath(), is("/home/go/.gradle"));
+
+        @SuppressWarnings("unchecked")
+        List<Container> initContainers = (List<Container>) pod.getSpec().getAdditionalProperties().get("initContainers");
+        Container own = initContainers.get(0);
+        assertThat(own.getName(), is(CacheVolumes.OWN_CONTAINER));
+        assertThat(own.getSecurityContext().getCapabilities().getAdd(), contains("CHOWN"));
+        assertThat(own.getCommand().get(2), is("chown 1000:1000 '/home/go/.m2' '/home/go/.gradle'; exit 0"));
+        Container prune = initContainers.get(1);
+        assertThat(prune.getImage(), is("gocd/gocd-agent-alpine-3.5:v17.10.0"));
+        assertThat(prune.getSecurityContext().getRunAsUser(), is(CacheVolumes.AGENT_USER_ID));
+        assertThat(prune.getCommand().get(2), allOf(containsString("mkdir '/home/go/.m2/" + CacheVolumes.LOCK_DIRECTORY + "'"),
+                containsString("-mtime +6 ! -name " + CacheVolumes.STAMP_FILE + " -delete"), containsString("-gt 2048 ]"), containsString("exit 0")));
+        assertThat(prune.getCommand().get(2), not(anyOf(containsString("chmod"), containsString("-atime"))));
+    }
+
+    @Test
+    public void shouldGiveEveryProfileItsOwnDirectoryOfACache() throws Exception {
+        Map<String, String> otherProfile = new HashMap<>(properties);
+        otherProfile.put("Image", "gocd/gocd-agent-centos-7:v17.10.0");
+        Pod pod = podWithAgentContainer();
+        Pod otherPod = podWithAgentContainer();
+
+        CacheVolumes.addTo(pod, properties);
+        CacheVolumes.addTo(otherPod, otherProfile);
+
+        assertThat(pod.getSpec().getVolumes().get(0).getHostPath().getPath(), is(not(otherPod.getSpec().getVolumes().get(0).getHostPath().getPath())));
+    }
+
+    @Test
+    public void shouldMountClaimsForPersistentVolumeClaimCaches() throws Exception {
+        properties.put("CacheVolumeType", "PersistentVolumeClaim");
+        Pod pod = podWithAgentContainer();
+
+        CacheVolumes.addTo(pod, properties);
+
+        assertThat(pod.getSpec().getVolumes().get(0).getPersistentVolumeClaim().getClaimName(), is("gocd-cache-maven"));
+        assertThat(pod.getSpec().getContainers().get(0).getVolumeMounts().get(0).getSubPath(), is(CacheVolumes.profileDirectory(properties)));
+        assertThat(pod.getSpec().getSecurityContext().getFsGroup(), is(CacheVolumes.AGENT_GROUP_ID));
+        @SuppressWarnings("unchecked")
+        List<Container> initContainers = (List<Container>) pod.getSpec().getAdditionalProperties().get("initContainers");
+        assertThat(initContainers.stream().map(Container::getName).toArray(), arrayContaining(CacheVolumes.PRUNE_CONTAINER));
+    }
+
+    @Test
+    public void shouldNotChangePodsOfProfilesWithoutCaches() throws Exception {
+        properties.remove("CacheVolumes");
+        Pod pod = podWithAgentContainer();
+
+        CacheVolumes.addTo(pod, properties);
+
+        assertThat(pod.getSpec().getVolumes(), is(empty()));
+        assertThat(pod.getSpec().getAdditionalProperties(), not(hasKey("initContainers")));
+    }
+
+    @Test
+    public void shouldCreateMissingClaimsOnce() throws Exception {
+        properties.put("CacheVolumeType", "PersistentVolumeClaim");
+        properties.put("CacheStorageClass", "nfs");
+        when(claimResource.get()).thenReturn(null, new PersistentVolumeClaim());
+        CacheVolumes cacheVolumes = new CacheVolumes();
+
+        cacheVolumes.ensureClaims(client, "primary", "agents", properties);
+        cacheVolumes.ensureClaims(client, "primary", "agents", properties);
+
+        ArgumentCaptor<PersistentVolumeClaim> created = ArgumentCaptor.forClass(PersistentVolumeClaim.class);
+        verify(claims).create(created.capture());
+        assertThat(created.getValue().getMetadata().getName(), is("gocd-cache-maven"));
+        assertThat(created.getValue().getSpec().getAccessModes(), is(Collections.singletonList("ReadWriteMany")));
+        assertThat(created.getValue().getSpec().getResources().getRequests().get("storage").getAmount(), is("2048Mi"));
+        assertThat(created.getValue().getMetadata().getAnnotations().get("volume.beta.kubernetes.io/storage-class"), is("nfs"));
+        verify(claimResource, times(2)).get();
+    }
+
+    @Test
+    public void shouldNotCreateClaimsForHostPathCaches() throws Exception {
+        new CacheVolumes().ensureClaims(client, "primary", "agents", properties);
+
+        verify(claims, never()).create(any(PersistentVolumeClaim.class));
+    }
+
+    @Test
+    public void shouldPreferNodesTheCachesWereUsedOnWithinTheRetentionPeriod() throws Exception {
+        CacheVolumes cacheVolumes = new CacheVolumes();
+        DateTime now = new DateTime();
+        cacheVolumes.usedOn("primary", "node-1", properties, now.minusDays(8));
+        cacheVolumes.usedOn("primary", "node-2", properties, now.minusDays(1));
+        cacheVolumes.usedOn("other", "node-3", properties, now);
+        Pod pod = podWithAgentContainer();
+
+        cacheVolumes.preferWarmNodes(pod, "primary", properties, now);
+
+        assertThat(preferredNodes(pod), is(Collections.singletonList(Collections.singletonList("node-2"))));
+    }
+
+    @Test
+    public void shouldKeepExistingAffinityWhenPreferringNodes() throws Exception {
+        Pod pod = podWithAgentContainer();
+
+        KubernetesInstance.preferNodes(pod, Collections.singleton("node-1"), 10);
+        KubernetesInstance.preferNodes(pod, Collections.singleton("node-2"), 20);
+
+        assertThat(preferredNodes(pod), contains(Collections.singletonList("node-1"), Collections.singletonList("node-2")));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> preferredNodes(Pod pod) {
+        Map<String, Object> affinity = (Map<String, Object>) pod.getSpec().getAdditionalProperties().get("affinity");
+        List<Map<String, Object>> terms = (List<Map<String, Object>>) ((Map<String, Object>) affinity.get("nodeAffinity")).get("preferredDuringSchedulingIgnoredDuringExecution");
+        List<Object> nodes = new ArrayList<>();
+        for (Map<String, Object> term : terms) {
+            Map<String, Object> preference = (Map<String, Object>) term.get("preference");
+            nodes.add(((List<Map<String, Object>>) preference.get("matchExpressions")).get(0).get("values"));
+        }
+        return nodes;
+    }
+
+    private static Pod podWithAgentContainer() {
+        Container agent = new ContainerBuilder().withName("agent").withImage("gocd/gocd-agent-alpine-3.5:v17.10.0").withImagePullPolicy("IfNotPresent").build();
+        return new PodBuilder().withNewMetadata().withName("agent").endMetadata().withNewSpec().withContainers(agent).endSpec().build();
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.Util;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.*;
+import java.util.function.Function;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ImagePrePullerTest {
+    private static final String DAEMON_SETS = "/apis/apps/v1/namespaces/agents/daemonsets";
+    private final List<String> calls = new ArrayList<>();
+    private KubernetesClient client;
+    private ImagePrePuller prePuller;
+    private DateTime now = new DateTime();
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(KubernetesClient.class, withSettings().extraInterfaces(HttpClientAware.class));
+        when(client.getMasterUrl()).thenReturn(new URL("https://kubernetes.example.com/"));
+        prePuller = new ImagePrePuller();
+    }
+
+    @Test
+    public void shouldFindImageOfProfile() throws Exception {
+        assertThat(ImagePrePuller.imagesOf(Collections.singletonMap("Image", " gocd/gocd-agent-alpine-3.5:v17.10.0 ")), is(Collections.singleton("gocd/gocd-agent-alpine-3.5:v17.10.0")));
+    }
+
+    @Test
+    public void shouldFindImagesOfContainersInPodConfiguration() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "true");
+        properties.put("PodConfiguration", "apiVersion: v1\n" +
+                "kind: Pod\n" +
+                "metadata:\n" +
+                "  name: pod-name-prefix-{{ POD_POSTFIX }}\n" +
+                "spec:\n" +
+                "  containers:\n" +
+                "    - name: gocd-agent-container-{{ CONTAINER_POSTFIX }}\n" +
+                "      image: {{ GOCD_AGENT_IMAGE }}:{{ LATEST_VERSION }}\n" +
+                "    - name: docker\n" +
+                "      image: docker:dind\n");
+
+        assertThat(ImagePrePuller.imagesOf(properties), contains("docker:dind", "gocd/gocd-agent-alpine-3.5:v17.10.0"));
+    }
+
+    @Test
+    public void shouldIgnoreInvalidPodConfiguration() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "true");
+        properties.put("PodConfiguration", "foobar");
+
+        assertThat(ImagePrePuller.imagesOf(properties), empty());
+    }
+
+    @Test
+    public void shouldPullEveryImageInItsOwnContainerOfAPausedDaemonSet() throws Exception {
+        Map<String, Object> daemonSet = ImagePrePuller.daemonSet("agents", "registry.example.com/pause:3.9", Arrays.asList("alpine:3.6", "docker:dind"));
+
+        assertThat(daemonSet.get("apiVersion"), is("apps/v1"));
+        String json = Util.GSON.toJson(daemonSet);
+        assertThat(json, containsString("\"namespace\":\"agents\""));
+        assertThat(json, not(containsString(Constants.KUBERNETES_POD_KIND_LABEL_KEY)));
+        assertThat(json, not(containsString("initContainers")));
+        assertThat(json, containsString("\"containers\":[{\"name\":\"pause\",\"image\":\"registry.example.com/pause:3.9\""));
+        assertThat(json, containsString("{\"name\":\"prepull-0\",\"image\":\"alpine:3.6\",\"command\":[\"sh\",\"-c\",\"while true; do sleep 3600; done\"]"));
+        assertThat(json, containsString("{\"name\":\"prepull-1\",\"image\":\"docker:dind\""));
+        assertThat(json, containsString("\"updateStrategy\":{\"type\":\"RollingUpdate\"}"));
+    }
+
+    @Test
+    public void shouldUpdateDaemonSetOnlyWhenImagesChange() throws Exception {
+        respondWith(request -> request.method().equals("GET") ? 404 : 200);
+        prePuller.learn(Collections.singleton("alpine:3.6"), now);
+        sync(Collections.emptySet());
+        sync(Collections.singleton("alpine:3.6"));
+        prePuller.learn(Collections.singleton("alpine:3.6"), now);
+        sync(Collections.emptySet());
+
+        assertThat(calls, contains("GET " + DAEMON_SETS + "/" + ImagePrePuller.NAME, "PUT " + DAEMON_SETS + "/" + ImagePrePuller.NAME));
+
+        sync(Collections.singleton("docker:dind"));
+
+        assertThat(calls, hasSize(3));
+        assertThat(calls.get(2), containsString("\"" + ImagePrePuller.IMAGES_ANNOTATION + "\":\"alpine:3.6,docker:dind\""));
+    }
+
+    @Test
+    public void shouldUpdateDaemonSetWhenThePauseImageChanges() throws Exception {
+        respondWith(request -> request.method().equals("GET") ? 404 : 200);
+        sync(Collections.singleton("alpine:3.6"));
+
+        prePuller.sync("primary", client, "agents", true, "registry.example.com/pause:3.9", Collections.singleton("alpine:3.6"), now);
+
+        assertThat(calls, hasSize(3));
+        assertThat(calls.get(2), containsString("\"image\":\"registry.example.com/pause:3.9\""));
+    }
+
+    @Test
+    public void shouldStopPullingImagesOfProfilesNoLongerInUse() throws Exception {
+        respondWith(request -> request.method().equals("GET") ? 404 : 200);
+        prePuller.learn(Arrays.asList("alpine:3.6", "docker:dind"), now);
+        sync(Collections.singleton("alpine:3.6"));
+
+        now = now.plus(ImagePrePuller.RETENTION).plusMinutes(1);
+        sync(Collections.singleton("alpine:3.6"));
+
+        assertThat(prePuller.images(), contains("alpine:3.6"));
+        assertThat(calls, hasSize(3));
+        assertThat(calls.get(2), containsString("\"" + ImagePrePuller.IMAGES_ANNOTATION + "\":\"alpine:3.6\""));
+    }
+
+    @Test
+    public void shouldCreateDaemonSetWhenThereIsNoneToUpdate() throws Exception {
+        respondWith(request -> request.method().equals("POST") ? 201 : 404);
+
+        sync(Collections.singleton("alpine:3.6"));
+
+        assertThat(calls, hasSize(3));
+        assertThat(calls.get(1), startsWith("PUT " + DAEMON_SETS + "/" + ImagePrePuller.NAME));
+        assertThat(calls.get(2), startsWith("POST " + DAEMON_SETS + " {\"apiVersion\":\"apps/v1\",\"kind\":\"DaemonSet\""));
+    }
+
+    @Test
+    public void shouldNotCreateDaemonSetWithoutImages() throws Exception {
+        respondWith(request -> 404);
+
+        sync(Collections.emptySet());
+
+        assertThat(calls, contains("GET " + DAEMON_SETS + "/" + ImagePrePuller.NAME));
+    }
+
+    @Test
+    public void shouldResumeWithImagesOfExistingDaemonSet() throws Exception {
+        respondWith(request -> 200, "{\"metadata\":{\"annotations\":{\"" + ImagePrePuller.IMAGES_ANNOTATION + "\":\"alpine:3.6,docker:dind\"," +
+                "\"" + ImagePrePuller.PAUSE_IMAGE_ANNOTATION + "\":\"" + ImagePrePuller.DEFAULT_PAUSE_IMAGE + "\"}}}");
+
+        sync(Collections.emptySet());
+
+        assertThat(prePuller.images(), contains("alpine:3.6", "docker:dind"));
+        assertThat(calls, contains("GET " + DAEMON_SETS + "/" + ImagePrePuller.NAME));
+    }
+
+    @Test
+    public void shouldRemoveDaemonSetOnceWhenDisabled() throws Exception {
+        respondWith(request -> 200);
+
+        prePuller.sync("primary", client, "agents", false, ImagePrePuller.DEFAULT_PAUSE_IMAGE, Collections.emptySet(), now);
+        prePuller.sync("primary", client, "agents", false, ImagePrePuller.DEFAULT_PAUSE_IMAGE, Collections.emptySet(), now);
+
+        assertThat(calls, contains("DELETE " + DAEMON_SETS + "/" + ImagePrePuller.NAME));
+    }
+
+    private void sync(Set<String> inUse) throws Exception {
+        prePuller.sync("primary", client, "agents", true, ImagePrePuller.DEFAULT_PAUSE_IMAGE, inUse, now);
+    }
+
+    private void respondWith(Function<Request, Integer> status) {
+        respondWith(status, "{}");
+    }
+
+    private void respondWith(Function<Request, Integer> status, String body) {
+        OkHttpClient http = new OkHttpClient.Builder().addInterceptor(chain -> {
+            Request request = chain.request();
+            String call = request.method() + " " + request.url().encodedPath();
+            if (request.body() != null && request.body().contentLength() > 0) {
+                Buffer requestBody = new Buffer();
+                request.body().writeTo(requestBody);
+                call += " " + requestBody.readUtf8();
+            }
+            calls.add(call);
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(status.apply(request))
+                    .message("")
+                    .body(ResponseBody.create(MediaType.parse("application/json"), body))
+                    .build();
+        }).build();
+        when(((HttpClientAware) client).getHttpClient()).thenReturn(http);
+    }
+}
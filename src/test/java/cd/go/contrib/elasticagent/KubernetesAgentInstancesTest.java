@@ -0,0 +1,483 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
+import cd.go.contrib.elasticagent.utils.Util;
+import io.fabric8.kubernetes.api.model.DoneablePod;
+import io.fabric8.kubernetes.api.model.Node;
+import io.fabric8.kubernetes.api.model.NodeBuilder;
+import io.fabric8.kubernetes.api.model.NodeListBuilder;
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import io.fabric8.kubernetes.api.model.PodListBuilder;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.PodStatus;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.dsl.PodResource;
+import io.fabric8.kubernetes.client.dsl.internal.NodeOperationsImpl;
+import io.fabric8.kubernetes.client.dsl.internal.PodOperationsImpl;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.isIn;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class KubernetesAgentInstancesTest {
+    @Mock
+    private KubernetesClient client;
+    @Mock
+    private PodOperationsImpl pods;
+    @Mock
+    private PodResource<Pod, DoneablePod> podResource;
+    private KubernetesClientFactory factory;
+    private KubernetesAgentInstances agentInstances;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        factory = mock(KubernetesClientFactory.class);
+        when(factory.kubernetes(any(ClusterProfile.class))).thenReturn(client);
+        when(client.pods()).thenReturn(pods);
+        when(pods.inNamespace(anyString())).thenReturn(pods);
+        when(pods.withName(anyString())).thenReturn(podResource);
+        when(podResource.delete()).thenReturn(true);
+        agentInstances = new KubernetesAgentInstances(factory);
+    }
+
+    @Test
+    public void shouldIndexInstancesByEnvironmentProfileNodeAndPhase() throws Exception {
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        agentInstances.register(instance("pod-1", "Prod", properties, "node-1", "Running"));
+        agentInstances.register(instance("pod-2", "staging", properties, "node-2", null));
+
+        assertThat(names(agentInstances.findByEnvironment("prod")), contains("pod-1"));
+        assertThat(names(agentInstances.findByNode(ClusterProfile.PRIMARY, "node-2")), contains("pod-2"));
+        assertThat(names(agentInstances.findByPhase("Running")), contains("pod-1"));
+        assertThat(names(agentInstances.findByPhase(Constants.KUBERNETES_POD_PHASE_PENDING)), contains("pod-2"));
+        assertThat(agentInstances.findByProfile(Util.fingerprint(properties)).size(), is(2));
+    }
+
+    @Test
+    public void shouldIndexInstancesByNodeOfTheirCluster() throws Exception {
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+        agentInstances.register(new KubernetesInstance("pod-2", "burst", "gocd-agents", new DateTime(), null, new HashMap<>(), "node-1", "Running"));
+
+        assertThat(names(agentInstances.findByNode(ClusterProfile.PRIMARY, "node-1")), contains("pod-1"));
+        assertThat(names(agentInstances.findByNode("burst", "node-1")), contains("pod-2"));
+    }
+
+    @Test
+    public void shouldMoveInstanceBetweenIndexEntriesWhenItChanges() throws Exception {
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), null, "Pending"));
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+
+        assertThat(agentInstances.findByPhase("Pending"), empty());
+        assertThat(names(agentInstances.findByPhase("Running")), contains("pod-1"));
+        assertThat(names(agentInstances.findByNode(ClusterProfile.PRIMARY, "node-1")), contains("pod-1"));
+    }
+
+    @Test
+    public void shouldRemoveDeregisteredInstancesFromIndexes() throws Exception {
+        agentInstances.register(instance("pod-1", "prod", new HashMap<>(), "node-1", "Running"));
+
+        agentInstances.deregister("pod-1");
+
+        assertThat(agentInstances.findByEnvironment("prod"), empty());
+        assertThat(agentInstances.findByNode(ClusterProfile.PRIMARY, "node-1"), empty());
+        assertThat(agentInstances.findByPhase("Running"), empty());
+        assertThat(agentInstances.findByProfile(Util.fingerprint(new HashMap<>())), empty());
+    }
+
+    @Test
+    public void shouldNotRegisterPodsThatWereTerminatedByThePlugin() throws Exception {
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+        agentInstances.terminate("pod-1", PluginSettings.fromJSON("{}"));
+
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+
+        assertThat(agentInstances.hasInstance("pod-1"), is(false));
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.POD_DELETED));
+    }
+
+    @Test
+    public void shouldDeletePodOnceWhenTerminatedTwice() throws Exception {
+        HeldPodTerminationQueue queue = new HeldPodTerminationQueue();
+        agentInstances = new KubernetesAgentInstances(factory, new PodCreationQueue(), queue);
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+
+        agentInstances.terminate("pod-1", PluginSettings.fromJSON("{}"));
+        agentInstances.terminate("pod-1", PluginSettings.fromJSON("{}"));
+
+        assertThat(queue.deletions, contains("pod-1"));
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.DELETE_QUEUED));
+    }
+
+    @Test
+    public void shouldStopTrackingTheRegistrationDeadlineOfAgentsThatRegistered() throws Exception {
+        agentInstances.register(instance("pod-1", null, new HashMap<>(), "node-1", "Running"));
+        agentInstances.register(instance("pod-2", null, new HashMap<>(), "node-1", "Running"));
+        agentInstances.clock = new Clock.TestClock().forward(Period.minutes(11));
+        Agents registered = new Agents(Collections.singletonList(new Agent("pod-1", Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled)));
+
+        assertThat(names(agentInstances.instancesNotRegisteredAfterTimeout(createSettings(), registered)), contains("pod-2"));
+        assertThat(names(agentInstances.instancesNotRegisteredAfterTimeout(createSettings(), new Agents())), contains("pod-2"));
+        assertThat(agentInstances.isPastRegistrationDeadline("pod-1", createSettings()), is(true));
+    }
+
+    @Test
+    public void shouldSpreadNewPodsAcrossConfiguredNamespaces() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", \"namespaces\": \"agents-1, agents-2\"}");
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance first = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        KubernetesInstance second = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        KubernetesInstance third = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+
+        assertThat(first.namespace(), is("agents-1"));
+        assertThat(second.namespace(), is("agents-2"));
+        assertThat(third.namespace(), is("agents-1"));
+        verify(pods, times(2)).inNamespace("agents-1");
+    }
+
+    @Test
+    public void shouldCreatePodInNamespaceFromProfile() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", \"namespaces\": \"agents-1\"}");
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        properties.put("Namespace", "team-a");
+
+        KubernetesInstance instance = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+
+        assertThat(instance.namespace(), is("team-a"));
+        assertThat(names(agentInstances.findByNamespace("team-a")), contains(instance.name()));
+    }
+
+    @Test
+    public void shouldRouteNewPodsToTheClusterWithMostHeadroom() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", " +
+                "\"additional_clusters\": \"[{\\\"name\\\": \\\"burst\\\", \\\"kubernetes_cluster_url\\\": \\\"https://burst.example.com\\\"}]\"}");
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, clientWithNodes(node("node-1", "10", true), node("node-2", "100", false)));
+        agentInstances.refreshCapacity("burst", clientWithNodes(node("burst-1", "4", true)));
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance first = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        assertThat(first.cluster(), is(ClusterProfile.PRIMARY));
+        assertThat(agentInstances.headroom(ClusterProfile.PRIMARY), is(8));
+
+        KubernetesInstance second = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        assertThat(second.cluster(), is(ClusterProfile.PRIMARY));
+        assertThat(agentInstances.headroom(ClusterProfile.PRIMARY), is(6));
+
+        for (String name : Arrays.asList("pod-1", "pod-2", "pod-3")) {
+            agentInstances.register(instance(name, null, properties, "node-1", "Running"));
+        }
+        assertThat(agentInstances.headroom(ClusterProfile.PRIMARY), is(3));
+        KubernetesInstance third = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+
+        assertThat(third.cluster(), is("burst"));
+        assertThat(names(agentInstances.findByCluster("burst")), contains(third.name()));
+    }
+
+    @Test
+    public void shouldLeaveTheSlotsTakenByOtherWorkloadsOutOfTheHeadroom() throws Exception {
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, clientWithNodes(
+                Arrays.asList(otherPod("node-1", "Running"), otherPod("node-1", "Pending"), otherPod("node-1", "Succeeded"),
+                        otherPod("node-2", "Running"), otherPod("node-2", "Running"), otherPod("node-3", "Running")),
+                node("node-1", "10", true), node("node-2", "1", true), node("node-3", "100", false)));
+
+        ClusterCapacity capacity = agentInstances.capacities().get(ClusterProfile.PRIMARY);
+        assertThat(capacity.allocatablePods(), is(11));
+        assertThat(capacity.otherPods(), is(4));
+        assertThat(capacity.freePods(), is(8));
+        assertThat(agentInstances.headroom(ClusterProfile.PRIMARY), is(8));
+    }
+
+    @Test
+    public void shouldReadTheCapacityOfClustersWhosePodsCannotBeListedOrWhoseNodesAreStillRegistering() throws Exception {
+        Node registering = new NodeBuilder().withNewMetadata().withName("node-2").endMetadata().withNewStatus().addToAllocatable("pods", new Quantity("10")).endStatus().build();
+        registering.getStatus().setConditions(null);
+        KubernetesClient forbidden = clientWithNodes(node("node-1", "10", true), registering);
+        when(forbidden.pods().list()).thenThrow(new KubernetesClientException("pods is forbidden", HttpURLConnection.HTTP_FORBIDDEN, null));
+
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, forbidden);
+
+        ClusterCapacity capacity = agentInstances.capacities().get(ClusterProfile.PRIMARY);
+        assertThat(capacity.allocatablePods(), is(10));
+        assertThat(capacity.freePods(), is(10));
+    }
+
+    @Test
+    public void shouldReadTheCapacityOfAClusterAtMostOncePerRefreshPeriod() throws Exception {
+        Clock.TestClock clock = new Clock.TestClock();
+        agentInstances.clock = clock;
+        KubernetesClient client = clientWithNodes(node("node-1", "10", true));
+
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, client);
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, client);
+        verify(client.nodes(), times(1)).list();
+
+        clock.forward(ClusterCapacity.REFRESH_PERIOD);
+        agentInstances.refreshCapacity(ClusterProfile.PRIMARY, client);
+        verify(client.nodes(), times(2)).list();
+    }
+
+    @Test
+    public void shouldTrackPodCreationInTheBackground() throws Exception {
+        HeldPodCreationQueue queue = new HeldPodCreationQueue();
+        agentInstances = new KubernetesAgentInstances(factory, queue);
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance created = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+        KubernetesInstance failed = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+
+        assertThat(agentInstances.find(created.name()).creationState(), is(KubernetesInstance.CreationState.PENDING));
+        verify(pods, never()).create(any(Pod.class));
+
+        queue.runNext();
+        when(pods.create(any(Pod.class))).thenThrow(new KubernetesClientException("quota exceeded"));
+        queue.runNext();
+
+        assertThat(agentInstances.find(created.name()).creationState(), is(KubernetesInstance.CreationState.CREATED));
+        assertThat(agentInstances.find(failed.name()).creationState(), is(KubernetesInstance.CreationState.FAILED));
+    }
+
+    @Test
+    public void shouldDeletePodOfInstanceTerminatedWhileItWasBeingCreated() throws Exception {
+        HeldPodCreationQueue queue = new HeldPodCreationQueue();
+        agentInstances = new KubernetesAgentInstances(factory, queue);
+        when(podResource.delete()).thenReturn(false);
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance instance = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+        agentInstances.terminate(instance.name(), createSettings());
+        queue.runNext();
+
+        verify(pods).create(any(Pod.class));
+        verify(podResource, times(2)).delete();
+        assertThat(agentInstances.hasInstance(instance.name()), is(false));
+    }
+
+    @Test
+    public void shouldParkCreationsUntilPendingPodsOfTheClusterHaveStarted() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", \"max_pending_pods_per_cluster\": \"1\"}");
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance first = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        KubernetesInstance parked = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+
+        verify(pods, times(1)).create(any(Pod.class));
+        assertThat(agentInstances.find(parked.name()).creationState(), is(KubernetesInstance.CreationState.PENDING));
+        assertThat(agentInstances.admissionControl().stats(ClusterProfile.PRIMARY).parked(), is(1));
+
+        agentInstances.register(instance(first.name(), null, properties, "node-1", "Running"));
+        agentInstances.releaseParkedCreations(ClusterProfile.PRIMARY);
+
+        verify(pods, times(2)).create(any(Pod.class));
+        assertThat(agentInstances.find(parked.name()).creationState(), is(KubernetesInstance.CreationState.CREATED));
+    }
+
+    @Test
+    public void shouldGiveUpCreationsOnceTooManyAreParked() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", \"max_pending_pods_per_cluster\": \"1\"}");
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        for (int i = 0; i < AdmissionControl.PARKED_CREATIONS_PER_PENDING_POD; i++) {
+            agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+        }
+
+        KubernetesInstance rejected = agentInstances.create(new CreateAgentRequest(null, properties, null), settings, null);
+
+        assertThat(agentInstances.find(rejected.name()).creationState(), is(KubernetesInstance.CreationState.FAILED));
+        assertThat(agentInstances.admissionControl().stats(ClusterProfile.PRIMARY).parked(), is(AdmissionControl.PARKED_CREATIONS_PER_PENDING_POD));
+        verify(pods, times(1)).create(any(Pod.class));
+    }
+
+    @Test
+    public void shouldGiveUpCreationsThePodCreationQueueRejects() throws Exception {
+        agentInstances = new KubernetesAgentInstances(factory, new PodCreationQueue() {
+            @Override
+            public void execute(Runnable creation) {
+                throw new RejectedExecutionException();
+            }
+        });
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance rejected = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+
+        assertThat(agentInstances.find(rejected.name()).creationState(), is(KubernetesInstance.CreationState.FAILED));
+        verify(pods, never()).create(any(Pod.class));
+    }
+
+    @Test
+    public void shouldHoldBackPodsOfProfilesThatRecentlyFailedToStart() throws Exception {
+        Clock.TestClock clock = new Clock.TestClock();
+        agentInstances.clock = clock;
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:typo");
+
+        KubernetesInstance failed = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+        agentInstances.failedToStart(failed, "ImagePullBackOff");
+
+        assertThat(agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null), is(nullValue()));
+        verify(pods, times(1)).create(any(Pod.class));
+
+        clock.forward(StartBackOff.INITIAL);
+        KubernetesInstance retried = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+        agentInstances.failedToStart(retried, "ImagePullBackOff");
+        clock.forward(StartBackOff.INITIAL);
+
+        assertThat(agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null), is(nullValue()));
+        verify(pods, times(2)).create(any(Pod.class));
+
+        agentInstances.register(instance("other", null, properties, "node-1", "Running"));
+
+        assertThat(agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null), is(not(nullValue())));
+        verify(pods, times(3)).create(any(Pod.class));
+    }
+
+    @Test
+    public void shouldCoalesceRequestsOntoPodsThatAreStillStarting() throws Exception {
+        PluginSettings settings = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\", \"max_pending_pods_per_profile\": \"2\"}");
+        Map<String, String> properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+
+        KubernetesInstance first = agentInstances.create(new CreateAgentRequest(null, properties, "prod"), settings, null);
+        KubernetesInstance second = agentInstances.create(new CreateAgentRequest(null, properties, "prod"), settings, null);
+        KubernetesInstance repeated = agentInstances.create(new CreateAgentRequest(null, properties, "prod"), settings, null);
+        KubernetesInstance otherEnvironment = agentInstances.create(new CreateAgentRequest(null, properties, "staging"), settings, null);
+
+        assertThat(repeated.name(), isIn(Arrays.asList(first.name(), second.name())));
+        assertThat(otherEnvironment.name(), not(isIn(Arrays.asList(first.name(), second.name()))));
+        verify(pods, times(3)).create(any(Pod.class));
+
+        agentInstances.register(instance(first.name(), "prod", properties, "node-1", "Running"));
+        KubernetesInstance next = agentInstances.create(new CreateAgentRequest(null, properties, "prod"), settings, null);
+
+        assertThat(next.name(), not(isIn(Arrays.asList(first.name(), second.name()))));
+        verify(pods, times(4)).create(any(Pod.class));
+    }
+
+    private static PluginSettings createSettings() {
+        return PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\"}");
+    }
+
+    private static class HeldPodTerminationQueue extends PodTerminationQueue {
+        private final List<String> deletions = new ArrayList<>();
+
+        @Override
+        public void delete(KubernetesClient client, KubernetesInstance instance, PluginSettings settings, AdmissionControl admissionControl, BiConsumer<String, Tombstone.Outcome> done) {
+            deletions.add(instance.name());
+        }
+    }
+
+    private static class HeldPodCreationQueue extends PodCreationQueue {
+        private final Deque<Runnable> creations = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable creation) {
+            creations.add(creation);
+        }
+
+        void runNext() {
+            creations.remove().run();
+        }
+    }
+
+    private static KubernetesClient clientWithNodes(Node... nodes) {
+        return clientWithNodes(Collections.emptyList(), nodes);
+    }
+
+    private static KubernetesClient clientWithNodes(List<Pod> otherPods, Node... nodes) {
+        KubernetesClient client = mock(KubernetesClient.class);
+        NodeOperationsImpl nodeOperations = mock(NodeOperationsImpl.class);
+        when(client.nodes()).thenReturn(nodeOperations);
+        when(nodeOperations.list()).thenReturn(new NodeListBuilder().withItems(nodes).build());
+        PodOperationsImpl podOperations = mock(PodOperationsImpl.class);
+        when(client.pods()).thenReturn(podOperations);
+        when(podOperations.inAnyNamespace()).thenReturn(podOperations);
+        when(podOperations.withLabels(any())).thenReturn(podOperations);
+        when(podOperations.list()).thenReturn(new PodListBuilder().withItems(otherPods).build());
+        return client;
+    }
+
+    private static Node node(String name, String allocatablePods, boolean ready) {
+        return new NodeBuilder()
+                .withNewMetadata().withName(name).endMetadata()
+                .withNewSpec().endSpec()
+                .withNewStatus()
+                .addToAllocatable("pods", new Quantity(allocatablePods))
+                .addNewCondition().withType("Ready").withStatus(ready ? "True" : "False").endCondition()
+                .endStatus()
+                .build();
+    }
+
+    private static Pod otherPod(String nodeName, String phase) {
+        return new PodBuilder()
+                .withNewMetadata().withName("other-" + UUID.randomUUID()).endMetadata()
+                .withNewSpec().withNodeName(nodeName).endSpec()
+                .withNewStatus().withPhase(phase).endStatus()
+                .build();
+    }
+
+    private static List<String> names(List<KubernetesInstance> instances) {
+        return instances.stream().map(KubernetesInstance::name).collect(Collectors.toList());
+    }
+
+    private static KubernetesInstance instance(String name, String environment, Map<String, String> properties, String nodeName, String phase) {
+        ObjectMeta metadata = new ObjectMeta();
+        metadata.setName(name);
+        metadata.setLabels(new HashMap<>());
+        if (environment != null) {
+            metadata.getLabels().put(Constants.ENVIRONMENT_LABEL_KEY, environment);
+        }
+        metadata.setAnnotations(new HashMap<>(properties));
+
+        PodSpec spec = new PodSpec();
+        spec.setNodeName(nodeName);
+        PodStatus status = new PodStatus();
+        status.setPhase(phase);
+        return KubernetesInstance.fromInstanceInfo(new Pod("v1", "Pod", metadata, spec, status), ClusterProfile.PRIMARY);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.Quantity;
+import io.fabric8.kubernetes.api.model.ResourceRequirements;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class KubernetesInstanceTest {
+    private static final PluginSettings SETTINGS = PluginSettings.fromJSON("{\"go_server_url\": \"https://foo.go.cd/go\"}");
+
+    @Test
+    public void shouldSetResourceRequestsAndLimitsFromProfile() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "alpine:3.6");
+        properties.put("MaxMemory", "2G");
+        properties.put("MaxCPU", "2");
+        properties.put("MinMemory", "512M");
+        properties.put("MinCPU", "500m");
+        properties.put("MinEphemeralStorage", "1G");
+        properties.put("MaxEphemeralStorage", "10G");
+
+        ResourceRequirements resources = resourcesOf(KubernetesInstance.podFor(new CreateAgentRequest(null, properties, null), SETTINGS, null, "default"));
+
+        assertThat(resources.getLimits(), allOf(
+                hasEntry("memory", new Quantity("2048", "Mi")),
+                hasEntry("cpu", new Quantity("2")),
+                hasEntry("ephemeral-storage", new Quantity("10240", "Mi"))));
+        assertThat(resources.getRequests(), allOf(
+                hasEntry("memory", new Quantity("512", "Mi")),
+                hasEntry("cpu", new Quantity("500m")),
+                hasEntry("ephemeral-storage", new Quantity("1024", "Mi"))));
+    }
+
+    @Test
+    public void shouldRequestTheLimitsForGuaranteedQoS() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "alpine:3.6");
+        properties.put("MaxMemory", "2G");
+        properties.put("MaxCPU", "2");
+        properties.put("MinMemory", "512M");
+        properties.put("GuaranteedQoS", "true");
+
+        ResourceRequirements resources = resourcesOf(KubernetesInstance.podFor(new CreateAgentRequest(null, properties, null), SETTINGS, null, "default"));
+
+        assertThat(resources.getRequests(), is(resources.getLimits()));
+    }
+
+    @Test
+    public void shouldNotSetResourcesNotInProfile() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "alpine:3.6");
+
+        ResourceRequirements resources = resourcesOf(KubernetesInstance.podFor(new CreateAgentRequest(null, properties, null), SETTINGS, null, "default"));
+
+        assertThat(resources.getLimits().isEmpty(), is(true));
+        assertThat(resources.getRequests().isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldSetPriorityClassFromProfile() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "alpine:3.6");
+        properties.put("PriorityClass", " gocd-elastic-agent-critical ");
+
+        Pod pod = KubernetesInstance.podFor(new CreateAgentRequest(null, properties, null), SETTINGS, null, "default");
+
+        assertThat(pod.getSpec().getAdditionalProperties(), hasEntry("priorityClassName", (Object) "gocd-elastic-agent-critical"));
+    }
+
+    @Test
+    public void shouldOverridePriorityOfPodYamlWithPriorityClassFromProfile() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "true");
+        properties.put("PriorityClass", "gocd-elastic-agent-batch");
+        properties.put("PodConfiguration", "apiVersion: v1\n" +
+                "kind: Pod\n" +
+                "metadata:\n" +
+                "  name: pod-name-prefix-{{ POD_POSTFIX }}\n" +
+                "spec:\n" +
+                "  priorityClassName: high\n" +
+                "  priority: 1000\n" +
+                "  containers:\n" +
+                "    - name: gocd-agent-container-{{ CONTAINER_POSTFIX }}\n" +
+                "      image: {{ GOCD_AGENT_IMAGE }}:{{ LATEST_VERSION }}\n");
+
+        Pod pod = KubernetesInstance.podFromYaml(new CreateAgentRequest(null, properties, null), SETTINGS, null, "default");
+
+        assertThat(pod.getSpec().getAdditionalProperties(), hasEntry("priorityClassName", (Object) "gocd-elastic-agent-batch"));
+        assertThat(pod.getSpec().getAdditionalProperties(), not(hasKey("priority")));
+    }
+
+    private static ResourceRequirements resourcesOf(Pod pod) {
+        return pod.getSpec().getContainers().get(0).getResources();
+    }
+}
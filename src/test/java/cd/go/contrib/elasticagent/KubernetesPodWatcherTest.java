@@ -0,0 +1,402 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.*;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
+import io.fabric8.kubernetes.client.Watch;
+import io.fabric8.kubernetes.client.Watcher;
+import io.fabric8.kubernetes.client.dsl.FilterWatchListDeletable;
+import io.fabric8.kubernetes.client.dsl.MixedOperation;
+import io.fabric8.kubernetes.client.dsl.NonNamespaceOperation;
+import io.fabric8.kubernetes.client.dsl.PodResource;
+import io.fabric8.kubernetes.client.dsl.Watchable;
+import org.joda.time.DateTime;
+import org.joda.time.Period;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static cd.go.contrib.elasticagent.Constants.*;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class KubernetesPodWatcherTest {
+    @Mock
+    private KubernetesClient client;
+    @Mock
+    private MixedOperation<Pod, PodList, DoneablePod, PodResource<Pod, DoneablePod>> pods;
+    @Mock
+    private NonNamespaceOperation<Pod, PodList, DoneablePod, PodResource<Pod, DoneablePod>> podsInNamespace;
+    @Mock
+    private FilterWatchListDeletable<Pod, PodList, Boolean, Watch, Watcher<Pod>> agentPods;
+    @Mock
+    private Watchable<Watch, Watcher<Pod>> versionedAgentPods;
+    @Mock
+    private Watch watch;
+
+    private KubernetesAgentInstances agentInstances;
+    private KubernetesPodWatcher watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(client.pods()).thenReturn(pods);
+        when(pods.inNamespace(KUBERNETES_NAMESPACE_KEY)).thenReturn(podsInNamespace);
+        when(podsInNamespace.withLabels(ELASTIC_AGENT_POD_SELECTOR)).thenReturn(agentPods);
+        when(agentPods.watch(any(Watcher.class))).thenReturn(watch);
+        when(agentPods.withResourceVersion(any(String.class))).thenReturn(versionedAgentPods);
+        when(versionedAgentPods.watch(any(Watcher.class))).thenReturn(watch);
+
+        agentInstances = new KubernetesAgentInstances(mock(KubernetesClientFactory.class));
+        watcher = new KubernetesPodWatcher(agentInstances, client, ClusterProfile.PRIMARY, KUBERNETES_NAMESPACE_KEY);
+    }
+
+    @Test
+    public void shouldSeedRegistryFromListAndWatchFromListResourceVersion() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40"), pod("pod-2", "41")));
+
+        watcher.start();
+
+        assertTrue(agentInstances.hasInstance("pod-1"));
+        assertTrue(agentInstances.hasInstance("pod-2"));
+        verify(agentPods).withResourceVersion("42");
+        assertTrue(watcher.isWatching(client));
+    }
+
+    @Test
+    public void shouldRelistAHealthyWatchOnlyOncePerResyncPeriod() throws Exception {
+        Clock.TestClock clock = new Clock.TestClock();
+        agentInstances.clock = clock;
+        when(agentPods.list()).thenReturn(podList("42"));
+        watcher.start();
+
+        watcher.resync();
+        clock.forward(KubernetesPodWatcher.RESYNC_PERIOD.minusMinutes(1));
+        watcher.resync();
+
+        verify(agentPods, times(1)).list();
+
+        clock.forward(Period.minutes(1));
+        watcher.resync();
+
+        verify(agentPods, times(2)).list();
+    }
+
+    @Test
+    public void shouldApplyWatchEventsToRegistry() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42"));
+        watcher.start();
+
+        watcher.eventReceived(Watcher.Action.ADDED, pod("pod-1", "43"));
+        assertTrue(agentInstances.hasInstance("pod-1"));
+
+        watcher.eventReceived(Watcher.Action.DELETED, pod("pod-1", "44"));
+        assertFalse(agentInstances.hasInstance("pod-1"));
+    }
+
+    @Test
+    public void shouldDeregisterAndDeleteEvictedPods() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod evicted = pod("pod-1", "43");
+        evicted.getStatus().setPhase("Failed");
+        evicted.getStatus().setReason("Evicted");
+        evicted.getStatus().setMessage("The node was low on resource: memory.");
+        watcher.eventReceived(Watcher.Action.MODIFIED, evicted);
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.EVICTED));
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("The node was low on resource: memory."));
+    }
+
+    @Test
+    public void shouldQueueTheDeletionOfEvictedPodsOnce() throws Exception {
+        PodTerminationQueue podTerminationQueue = mock(PodTerminationQueue.class);
+        agentInstances = new KubernetesAgentInstances(mock(KubernetesClientFactory.class), new PodCreationQueue(), podTerminationQueue);
+        watcher = new KubernetesPodWatcher(agentInstances, client, ClusterProfile.PRIMARY, KUBERNETES_NAMESPACE_KEY);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod evicted = pod("pod-1", "43");
+        evicted.getStatus().setPhase("Failed");
+        evicted.getStatus().setReason("Evicted");
+        watcher.eventReceived(Watcher.Action.MODIFIED, evicted);
+        watcher.eventReceived(Watcher.Action.MODIFIED, evicted);
+
+        verify(podTerminationQueue, times(1)).delete(eq(client), argThat(instance -> instance.name().equals("pod-1")), any(PluginSettings.class), any(AdmissionControl.class), any());
+        verify(podsInNamespace, never()).withName("pod-1");
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.EVICTED));
+    }
+
+    @Test
+    public void shouldTerminatePodsWhoseImageCannotBePulledOnce() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod backingOff = waiting(pod("pod-1", "43"), "ImagePullBackOff", "Back-off pulling image \"gocd/agent:typo\"");
+        watcher.eventReceived(Watcher.Action.MODIFIED, backingOff);
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "44"), "ErrImagePull", "manifest unknown"));
+        watcher.eventReceived(Watcher.Action.DELETED, pod("pod-1", "45"));
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource, times(1)).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.FAILED_TO_START));
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("ImagePullBackOff: Back-off pulling image \"gocd/agent:typo\""));
+        assertThat(agentInstances.startFailures().keySet(), contains("pod-1"));
+    }
+
+    @Test
+    public void shouldTerminatePodsWhoseInitContainerKeepsCrashing() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod crashing = pod("pod-1", "43");
+        Map<String, Object> containerStatus = new HashMap<>();
+        containerStatus.put("state", Collections.singletonMap("waiting", Collections.singletonMap("reason", "CrashLoopBackOff")));
+        containerStatus.put("restartCount", 3);
+        crashing.getStatus().setAdditionalProperty("initContainerStatuses", Collections.singletonList(containerStatus));
+        watcher.eventReceived(Watcher.Action.MODIFIED, crashing);
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("CrashLoopBackOff"));
+    }
+
+    @Test
+    public void shouldKeepPodsThatFailedToPullTheirImageOnceUntilTheyAreOldEnough() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "43"), "ErrImagePull", "i/o timeout"));
+
+        assertTrue(agentInstances.hasInstance("pod-1"));
+        verify(podResource, never()).delete();
+
+        agentInstances.clock = new Clock.TestClock(DateTime.now().plus(KubernetesPodWatcher.MIN_FAILING_AGE).plusMinutes(1));
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "44"), "ErrImagePull", "i/o timeout"));
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("ErrImagePull: i/o timeout"));
+    }
+
+    @Test
+    public void shouldDeleteFailingPodsThatWereNeverRegistered() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", waiting(pod("pod-1", "40"), "ImagePullBackOff", null)));
+
+        watcher.start();
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.FAILED_TO_START));
+    }
+
+    @Test
+    public void shouldDeleteFailingPodsAgainWhenTheirDeletionFailed() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(podResource.delete()).thenThrow(new KubernetesClientException("connection reset")).thenReturn(true);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "43"), "ImagePullBackOff", null));
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "44"), "ImagePullBackOff", null));
+        watcher.eventReceived(Watcher.Action.MODIFIED, waiting(pod("pod-1", "45"), "ImagePullBackOff", null));
+
+        verify(podResource, times(2)).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.FAILED_TO_START));
+    }
+
+    @Test
+    public void shouldTerminateFailedPods() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod failed = pod("pod-1", "43");
+        failed.getStatus().setPhase("Failed");
+        watcher.eventReceived(Watcher.Action.MODIFIED, failed);
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.FAILED_TO_START));
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("Failed"));
+    }
+
+    @Test
+    public void shouldNotTakeFailedPodsThatRanToCompletionAsStartFailures() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        when(agentPods.list()).thenReturn(podList("42", terminated(pod("pod-1", "40"), 0, "Completed", new DateTime().minusMinutes(1))));
+
+        watcher.start();
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.POD_FAILED));
+        assertTrue(agentInstances.startFailures().isEmpty());
+    }
+
+    @Test
+    public void shouldNotTakeFailedPodsThatWereRunningAsStartFailures() throws Exception {
+        PodResource<Pod, DoneablePod> podResource = mock(PodResource.class);
+        when(podsInNamespace.withName("pod-1")).thenReturn(podResource);
+        Pod running = pod("pod-1", "40");
+        running.getStatus().setPhase(KUBERNETES_POD_PHASE_RUNNING);
+        when(agentPods.list()).thenReturn(podList("42", running));
+        watcher.start();
+
+        DateTime now = new DateTime();
+        watcher.eventReceived(Watcher.Action.MODIFIED, terminated(pod("pod-1", "43"), 137, "OOMKilled", now));
+
+        verify(podResource).delete();
+        assertThat(agentInstances.findTombstone("pod-1").outcome(), is(Tombstone.Outcome.POD_FAILED));
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("Failed"));
+        assertTrue(agentInstances.startFailures().isEmpty());
+    }
+
+    @Test
+    public void shouldKeepPodsWaitingForTheirImageToBePulled() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42"));
+        watcher.start();
+
+        watcher.eventReceived(Watcher.Action.ADDED, waiting(pod("pod-1", "43"), "ContainerCreating", null));
+
+        assertTrue(agentInstances.hasInstance("pod-1"));
+        assertThat(agentInstances.findTombstone("pod-1"), is(nullValue()));
+    }
+
+    @Test
+    public void shouldRecordPodsDeletedOutsideThePluginAsEvicted() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")));
+        watcher.start();
+
+        Pod preempted = pod("pod-1", "43");
+        preempted.getStatus().setConditions(Arrays.asList(new PodConditionBuilder().withType("DisruptionTarget").withReason("PreemptionByScheduler").build()));
+        watcher.eventReceived(Watcher.Action.DELETED, preempted);
+
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        assertThat(agentInstances.findTombstone("pod-1").reason(), is("PreemptionByScheduler"));
+    }
+
+    @Test
+    public void shouldResumeFromLastSeenResourceVersionWhenWatchIsDisconnected() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42"));
+        watcher.start();
+        watcher.eventReceived(Watcher.Action.ADDED, pod("pod-1", "50"));
+
+        watcher.onClose(new KubernetesClientException("connection reset"));
+
+        verify(agentPods, times(1)).list();
+        verify(agentPods).withResourceVersion("50");
+    }
+
+    @Test
+    public void shouldRelistWhenResourceVersionIsGone() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42", pod("pod-1", "40")), podList("60", pod("pod-2", "59")));
+        watcher.start();
+        assertTrue(agentInstances.hasInstance("pod-1"));
+
+        agentInstances.clock = new Clock.TestClock().forward(org.joda.time.Period.minutes(1));
+        watcher.onClose(new KubernetesClientException("too old resource version", 410, new Status()));
+
+        verify(agentPods, times(2)).list();
+        verify(agentPods).withResourceVersion("60");
+        assertFalse(agentInstances.hasInstance("pod-1"));
+        assertTrue(agentInstances.hasInstance("pod-2"));
+    }
+
+    @Test
+    public void shouldResumeFromGivenResourceVersionWithoutRelisting() throws Exception {
+        watcher = new KubernetesPodWatcher(agentInstances, client, ClusterProfile.PRIMARY, KUBERNETES_NAMESPACE_KEY, "77");
+
+        watcher.start();
+
+        verify(agentPods, never()).list();
+        verify(agentPods).withResourceVersion("77");
+    }
+
+    @Test
+    public void shouldNotRestartWatchWhenStopped() throws Exception {
+        when(agentPods.list()).thenReturn(podList("42"));
+        watcher.start();
+
+        watcher.stop();
+        watcher.onClose(new KubernetesClientException("closed"));
+
+        verify(watch).close();
+        verify(agentPods, times(1)).withResourceVersion("42");
+        assertFalse(watcher.isWatching(client));
+    }
+
+    private PodList podList(String resourceVersion, Pod... pods) {
+        PodList podList = new PodList();
+        podList.setMetadata(new ListMeta(resourceVersion, null));
+        podList.setItems(Arrays.asList(pods));
+        return podList;
+    }
+
+    private Pod waiting(Pod pod, String reason, String message) {
+        ContainerState state = new ContainerStateBuilder().withNewWaiting().withReason(reason).withMessage(message).endWaiting().build();
+        pod.getStatus().setContainerStatuses(Collections.singletonList(new ContainerStatusBuilder().withName("gocd-agent").withState(state).build()));
+        return pod;
+    }
+
+    private Pod terminated(Pod pod, int exitCode, String reason, DateTime finishedAt) {
+        ContainerState state = new ContainerStateBuilder().withNewTerminated().withExitCode(exitCode).withReason(reason)
+                .withStartedAt(finishedAt.minusSeconds(30).toString()).withFinishedAt(finishedAt.toString()).endTerminated().build();
+        pod.getStatus().setPhase("Failed");
+        pod.getStatus().setContainerStatuses(Collections.singletonList(new ContainerStatusBuilder().withName("gocd-agent").withState(state).build()));
+        return pod;
+    }
+
+    private Pod pod(String name, String resourceVersion) {
+        ObjectMeta metadata = new ObjectMeta();
+        metadata.setName(name);
+        metadata.setResourceVersion(resourceVersion);
+        metadata.setLabels(new HashMap<>());
+        metadata.setAnnotations(new HashMap<>());
+        return new Pod("v1", "Pod", metadata, new PodSpec(), new PodStatus());
+    }
+}
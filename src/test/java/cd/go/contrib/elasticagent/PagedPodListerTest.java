@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.ListMeta;
+import io.fabric8.kubernetes.api.model.PodList;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.dsl.internal.PodOperationsImpl;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class PagedPodListerTest {
+    @Test
+    public void shouldReadAllPagesUsingTheContinueToken() throws Exception {
+        KubernetesClient client = mock(KubernetesClient.class, withSettings().extraInterfaces(HttpClientAware.class));
+        List<String> requestedTokens = new ArrayList<>();
+        Iterator<PodList> pages = Arrays.asList(page("10", "first"), page("10", "second"), page("10", null)).iterator();
+
+        PagedPodLister lister = new PagedPodLister(client) {
+            @Override
+            protected PodList fetchPage(String namespace, Map<String, String> labels, Map<String, String> fields, String continueToken) {
+                requestedTokens.add(continueToken);
+                return pages.next();
+            }
+        };
+
+        List<PodList> received = new ArrayList<>();
+        String resourceVersion = lister.list("default", Constants.ELASTIC_AGENT_POD_SELECTOR, Collections.emptyMap(), received::add);
+
+        assertThat(received.size(), is(3));
+        assertThat(requestedTokens, contains(null, "first", "second"));
+        assertThat(resourceVersion, is("10"));
+        verifyZeroInteractions(client);
+    }
+
+    @Test
+    public void shouldPushSelectorsToTheServerWhenPagingIsNotAvailable() throws Exception {
+        KubernetesClient client = mock(KubernetesClient.class);
+        PodOperationsImpl pods = mock(PodOperationsImpl.class);
+        when(client.pods()).thenReturn(pods);
+        when(pods.inNamespace("default")).thenReturn(pods);
+        when(pods.withLabels(Constants.ELASTIC_AGENT_POD_SELECTOR)).thenReturn(pods);
+        when(pods.withFields(Collections.singletonMap("spec.nodeName", "node-1"))).thenReturn(pods);
+        when(pods.list()).thenReturn(page("7", null));
+
+        List<PodList> received = new ArrayList<>();
+        String resourceVersion = new PagedPodLister(client).list("default", Constants.ELASTIC_AGENT_POD_SELECTOR, Collections.singletonMap("spec.nodeName", "node-1"), received::add);
+
+        assertThat(received.size(), is(1));
+        assertThat(resourceVersion, is("7"));
+        verify(pods).withLabels(Constants.ELASTIC_AGENT_POD_SELECTOR);
+        verify(pods).withFields(Collections.singletonMap("spec.nodeName", "node-1"));
+    }
+
+    private PodList page(String resourceVersion, String continueToken) {
+        ListMeta metadata = new ListMeta(resourceVersion, null);
+        if (continueToken != null) {
+            metadata.setAdditionalProperty("continue", continueToken);
+        }
+        PodList podList = new PodList();
+        podList.setMetadata(metadata);
+        podList.setItems(new ArrayList<>());
+        return podList;
+    }
+}
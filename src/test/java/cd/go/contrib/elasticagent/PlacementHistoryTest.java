@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodBuilder;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PlacementHistoryTest {
+    private PlacementHistory history;
+    private Map<String, String> properties;
+    private DateTime now;
+
+    @Before
+    public void setUp() throws Exception {
+        history = new PlacementHistory();
+        properties = Collections.singletonMap("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        now = new DateTime();
+    }
+
+    @Test
+    public void shouldPreferNodesThatRanTheImageOrProfile() throws Exception {
+        history.record("primary", "node-1", properties, "profile-a", now);
+        history.record("primary", "node-2", Collections.singletonMap("Image", "alpine:3.6"), "profile-b", now);
+        history.record("other", "node-3", properties, "profile-a", now);
+
+        assertThat(history.preferredNodes("primary", properties, "profile-a", node -> 0, now).keySet(), contains("node-1"));
+        assertThat(history.preferredNodes("primary", Collections.singletonMap("Image", "node:8"), "profile-b", node -> 0, now).keySet(), contains("node-2"));
+    }
+
+    @Test
+    public void shouldWeighNodesByHowOftenTheyRanThePod() throws Exception {
+        history.record("primary", "node-1", properties, "profile-a", now);
+        for (int i = 0; i < 3; i++) {
+            history.record("primary", "node-2", properties, "profile-a", now);
+        }
+
+        Map<String, Integer> weights = history.preferredNodes("primary", properties, "profile-a", node -> 0, now);
+
+        assertThat(weights.keySet(), contains("node-2", "node-1"));
+        assertThat(weights.get("node-2"), is(lessThanOrEqualTo(PlacementHistory.MAX_WEIGHT)));
+    }
+
+    @Test
+    public void shouldDecayAndForgetOldPlacements() throws Exception {
+        history.record("primary", "node-1", properties, "profile-a", now);
+
+        int weight = history.preferredNodes("primary", properties, "profile-a", node -> 0, now).get("node-1");
+        int decayed = history.preferredNodes("primary", properties, "profile-a", node -> 0, now.plus(PlacementHistory.HALF_LIFE)).get("node-1");
+        assertThat(decayed, is(lessThan(weight)));
+        assertThat(history.preferredNodes("primary", properties, "profile-a", node -> 0, now.plusHours(6)), is(Collections.<String, Integer>emptyMap()));
+    }
+
+    @Test
+    public void shouldPreferBusyNodesLess() throws Exception {
+        history.record("primary", "node-1", properties, "profile-a", now);
+        history.record("primary", "node-2", properties, "profile-a", now);
+
+        Map<String, Integer> weights = history.preferredNodes("primary", properties, "profile-a", node -> node.equals("node-1") ? 3 : 0, now);
+
+        assertThat(weights.get("node-1"), is(lessThan(weights.get("node-2"))));
+    }
+
+    @Test
+    public void shouldPreferOnlyTheBestNodes() throws Exception {
+        for (int i = 0; i < PlacementHistory.MAX_NODES + 3; i++) {
+            history.record("primary", "node-" + i, properties, "profile-a", now);
+        }
+
+        assertThat(history.preferredNodes("primary", properties, "profile-a", node -> 0, now).size(), is(PlacementHistory.MAX_NODES));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldAddOneAffinityTermPerWeight() throws Exception {
+        history.record("primary", "node-1", properties, "profile-a", now);
+        history.record("primary", "node-2", properties, "profile-a", now);
+        history.record("primary", "node-3", properties, "profile-a", now);
+        history.record("primary", "node-3", properties, "profile-a", now);
+        Pod pod = new PodBuilder().withNewMetadata().withName("agent").endMetadata().withNewSpec().endSpec().build();
+
+        history.preferNodes(pod, "primary", properties, "profile-a", node -> 0, now);
+
+        Map<String, Object> affinity = (Map<String, Object>) pod.getSpec().getAdditionalProperties().get("affinity");
+        List<Map<String, Object>> terms = (List<Map<String, Object>>) ((Map<String, Object>) affinity.get("nodeAffinity")).get("preferredDuringSchedulingIgnoredDuringExecution");
+        assertThat(terms, hasSize(2));
+        assertThat((Integer) terms.get(0).get("weight"), is(greaterThan((Integer) terms.get(1).get("weight"))));
+    }
+}
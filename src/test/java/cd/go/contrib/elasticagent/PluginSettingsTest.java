@@ -18,6 +18,10 @@ package cd.go.contrib.elasticagent;
 
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
 
@@ -33,5 +37,28 @@ public class PluginSettingsTest {
         assertThat(pluginSettings.getGoServerUrl(), is("https://foo.go.cd/go"));
         assertThat(pluginSettings.getAutoRegisterTimeout(), is("10"));
         assertThat(pluginSettings.getKubernetesClusterUrl(), is("https://cloud.example.com"));
+        assertThat(pluginSettings.getNamespaces(), is(Collections.singletonList("default")));
+    }
+
+    @Test
+    public void shouldListPrimaryClusterFollowedByAdditionalClusters() throws Exception {
+        PluginSettings pluginSettings = PluginSettings.fromJSON("{" +
+                "\"kubernetes_cluster_url\": \"https://cloud.example.com\", " +
+                "\"additional_clusters\": \"[{\\\"name\\\": \\\"burst\\\", \\\"kubernetes_cluster_url\\\": \\\"https://burst.example.com\\\", \\\"kubernetes_cluster_password\\\": \\\"secret\\\"}]\"" +
+                "}");
+
+        List<ClusterProfile> clusters = pluginSettings.getClusters();
+
+        assertThat(clusters.size(), is(2));
+        assertThat(clusters.get(0), is(new ClusterProfile(ClusterProfile.PRIMARY, "https://cloud.example.com", null, null, null)));
+        assertThat(clusters.get(1), is(new ClusterProfile("burst", "https://burst.example.com", null, "secret", null)));
+        assertThat(pluginSettings.getCluster("burst"), is(clusters.get(1)));
+    }
+
+    @Test
+    public void shouldParseCommaSeparatedNamespaces() throws Exception {
+        PluginSettings pluginSettings = PluginSettings.fromJSON("{\"namespaces\": \" agents-1,, agents-2 \"}");
+
+        assertThat(pluginSettings.getNamespaces(), is(Arrays.asList("agents-1", "agents-2")));
     }
 }
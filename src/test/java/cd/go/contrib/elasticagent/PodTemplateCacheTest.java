@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.Pod;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class PodTemplateCacheTest {
+    private static final String POD_YAML = "apiVersion: v1\n" +
+            "kind: Pod\n" +
+            "metadata:\n" +
+            "  name: pod-name-prefix-{{ POD_POSTFIX }}\n" +
+            "  labels:\n" +
+            "    app: web\n" +
+            "spec:\n" +
+            "  containers:\n" +
+            "    - name: gocd-agent-container-{{ CONTAINER_POSTFIX }}\n" +
+            "      image: {{ GOCD_AGENT_IMAGE }}:{{ LATEST_VERSION }}\n" +
+            "      ports:\n" +
+            "        - containerPort: 8080\n";
+
+    private PodTemplateCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new PodTemplateCache();
+    }
+
+    @Test
+    public void shouldRenderPerPodValuesIntoEveryPod() throws Exception {
+        Pod first = cache.podFor(POD_YAML);
+        Pod second = cache.podFor(POD_YAML);
+
+        assertThat(first.getMetadata().getName(), startsWith("pod-name-prefix-"));
+        assertThat(first.getMetadata().getName(), not(containsString("placeholder")));
+        assertThat(first.getMetadata().getName(), not(second.getMetadata().getName()));
+        assertThat(first.getSpec().getContainers().get(0).getName(), startsWith("gocd-agent-container-"));
+        assertThat(first.getSpec().getContainers().get(0).getName(), not(second.getSpec().getContainers().get(0).getName()));
+        assertThat(first.getSpec().getContainers().get(0).getImage(), is("gocd/gocd-agent-alpine-3.5:v17.10.0"));
+        assertThat(first.getSpec().getContainers().get(0).getPorts().get(0).getContainerPort(), is(8080));
+        assertThat(first.getMetadata().getLabels().get("app"), is("web"));
+    }
+
+    @Test
+    public void shouldParseEachTemplateOnce() throws Exception {
+        cache.podFor(POD_YAML);
+        cache.podFor(POD_YAML);
+        cache.podFor(POD_YAML.replace("app: web", "app: api"));
+
+        assertThat(cache.size(), is(2L));
+    }
+
+    @Test
+    public void shouldNotShareStateBetweenPods() throws Exception {
+        Pod first = cache.podFor(POD_YAML);
+        first.getMetadata().getLabels().put("kind", "kubernetes-elastic-agent");
+
+        assertThat(cache.podFor(POD_YAML).getMetadata().getLabels(), not(hasKey("kind")));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailOnInvalidPodYaml() throws Exception {
+        cache.podFor("foobar");
+    }
+}
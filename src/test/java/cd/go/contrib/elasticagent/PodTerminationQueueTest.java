@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.api.model.ObjectMeta;
+import io.fabric8.kubernetes.api.model.Pod;
+import io.fabric8.kubernetes.api.model.PodSpec;
+import io.fabric8.kubernetes.api.model.PodStatus;
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class PodTerminationQueueTest {
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Tombstone.Outcome> outcomes = Collections.synchronizedMap(new HashMap<>());
+    private KubernetesClient client;
+    private AdmissionControl admissionControl;
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(KubernetesClient.class, withSettings().extraInterfaces(HttpClientAware.class));
+        when(client.getMasterUrl()).thenReturn(new URL("https://kubernetes.example.com/"));
+        admissionControl = mock(AdmissionControl.class);
+    }
+
+    @Test
+    public void shouldDeletePodsQueuedWhileWorkersAreBusyWithOneRequest() throws Exception {
+        CountDownLatch firstDeleteStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstDelete = new CountDownLatch(1);
+        respondWith(request -> {
+            if (request.url().encodedPath().endsWith("pod-0")) {
+                firstDeleteStarted.countDown();
+                await(releaseFirstDelete);
+                return new TestResponse(200, "{}");
+            }
+            if (request.url().queryParameter("labelSelector") != null) {
+                return new TestResponse(200, "{\"kind\":\"PodList\",\"items\":[{\"metadata\":{\"name\":\"pod-1\"}},{\"metadata\":{\"name\":\"pod-2\"}}]}");
+            }
+            return new TestResponse(404, "{}");
+        });
+        PodTerminationQueue queue = new PodTerminationQueue(1);
+        PluginSettings settings = PluginSettings.fromJSON("{\"pod_termination_grace_period\": \"5\"}");
+        CountDownLatch done = new CountDownLatch(4);
+
+        queue.delete(client, instance("pod-0"), settings, admissionControl, (name, outcome) -> complete(name, outcome, done));
+        await(firstDeleteStarted);
+        for (String name : Arrays.asList("pod-1", "pod-2", "pod-3")) {
+            queue.delete(client, instance(name), settings, admissionControl, (pod, outcome) -> complete(pod, outcome, done));
+        }
+        releaseFirstDelete.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        String options = "{\"apiVersion\":\"v1\",\"kind\":\"DeleteOptions\",\"gracePeriodSeconds\":5,\"propagationPolicy\":\"Background\"}";
+        assertThat(calls, contains(
+                "DELETE /api/v1/namespaces/agents/pods/pod-0 " + options,
+                "DELETE /api/v1/namespaces/agents/pods?labelSelector=" + PodTerminationQueue.labelSelector(Arrays.asList("pod-1", "pod-2", "pod-3")) + " " + options,
+                "DELETE /api/v1/namespaces/agents/pods/pod-3 " + options));
+        assertThat(outcomes.get("pod-0"), is(Tombstone.Outcome.POD_DELETED));
+        assertThat(outcomes.get("pod-1"), is(Tombstone.Outcome.POD_DELETED));
+        assertThat(outcomes.get("pod-2"), is(Tombstone.Outcome.POD_DELETED));
+        assertThat(outcomes.get("pod-3"), is(Tombstone.Outcome.POD_NOT_FOUND));
+        verify(admissionControl, times(4)).admitDelete(eq(ClusterProfile.PRIMARY), anyString(), eq(settings));
+    }
+
+    @Test
+    public void shouldDeletePodsOneByOneWhenTheResponseToDeletingThemAtOnceCannotBeRead() throws Exception {
+        CountDownLatch firstDeleteStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstDelete = new CountDownLatch(1);
+        respondWith(request -> {
+            if (request.url().encodedPath().endsWith("pod-0")) {
+                firstDeleteStarted.countDown();
+                await(releaseFirstDelete);
+            }
+            if (request.url().queryParameter("labelSelector") != null) {
+                return new TestResponse(200, "{\"kind\":\"PodList\",\"items\":[");
+            }
+            return new TestResponse(200, "{}");
+        });
+        PodTerminationQueue queue = new PodTerminationQueue(1);
+        PluginSettings settings = PluginSettings.fromJSON("{}");
+        CountDownLatch done = new CountDownLatch(3);
+
+        queue.delete(client, instance("pod-0"), settings, admissionControl, (name, outcome) -> complete(name, outcome, done));
+        await(firstDeleteStarted);
+        for (String name : Arrays.asList("pod-1", "pod-2")) {
+            queue.delete(client, instance(name), settings, admissionControl, (pod, outcome) -> complete(pod, outcome, done));
+        }
+        releaseFirstDelete.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertThat(calls, hasSize(4));
+        assertThat(calls.get(2), startsWith("DELETE /api/v1/namespaces/agents/pods/pod-1 "));
+        assertThat(calls.get(3), startsWith("DELETE /api/v1/namespaces/agents/pods/pod-2 "));
+        assertThat(outcomes.get("pod-1"), is(Tombstone.Outcome.POD_DELETED));
+        assertThat(outcomes.get("pod-2"), is(Tombstone.Outcome.POD_DELETED));
+    }
+
+    @Test
+    public void shouldRecordFailedDeletes() throws Exception {
+        respondWith(request -> new TestResponse(500, "{}"));
+
+        new PodTerminationQueue().delete(client, instance("pod-1"), PluginSettings.fromJSON("{}"), admissionControl, outcomes::put);
+
+        assertThat(outcomes.get("pod-1"), is(Tombstone.Outcome.FAILED));
+    }
+
+    @Test
+    public void shouldUseConfiguredPropagationPolicyAndPodGracePeriodByDefault() throws Exception {
+        assertThat(PodTerminationQueue.deleteOptions(PluginSettings.fromJSON("{\"pod_deletion_propagation\": \"Foreground\"}")),
+                is("{\"apiVersion\":\"v1\",\"kind\":\"DeleteOptions\",\"propagationPolicy\":\"Foreground\"}"));
+    }
+
+    private void complete(String name, Tombstone.Outcome outcome, CountDownLatch done) {
+        outcomes.put(name, outcome);
+        done.countDown();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static KubernetesInstance instance(String name) {
+        ObjectMeta metadata = new ObjectMeta();
+        metadata.setName(name);
+        metadata.setNamespace("agents");
+        metadata.setLabels(new HashMap<>());
+        metadata.setAnnotations(new HashMap<>());
+        return KubernetesInstance.fromInstanceInfo(new Pod("v1", "Pod", metadata, new PodSpec(), new PodStatus()), ClusterProfile.PRIMARY);
+    }
+
+    private interface Responder {
+        TestResponse respond(Request request);
+    }
+
+    private static class TestResponse {
+        private final int code;
+        private final String body;
+
+        private TestResponse(int code, String body) {
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    private void respondWith(Responder responder) {
+        OkHttpClient http = new OkHttpClient.Builder().addInterceptor(chain -> {
+            Request request = chain.request();
+            String call = request.method() + " " + request.url().encodedPath();
+            if (request.url().query() != null) {
+                call += "?" + request.url().query();
+            }
+            if (request.body() != null) {
+                Buffer body = new Buffer();
+                request.body().writeTo(body);
+                call += " " + body.readUtf8();
+            }
+            calls.add(call);
+            TestResponse response = responder.respond(request);
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(response.code)
+                    .message("")
+                    .body(ResponseBody.create(MediaType.parse("application/json"), response.body))
+                    .build();
+        }).build();
+        when(((HttpClientAware) client).getHttpClient()).thenReturn(http);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import io.fabric8.kubernetes.client.HttpClientAware;
+import io.fabric8.kubernetes.client.KubernetesClient;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class PriorityClassesTest {
+    private final List<String> calls = new ArrayList<>();
+    private KubernetesClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(KubernetesClient.class, withSettings().extraInterfaces(HttpClientAware.class));
+        when(client.getMasterUrl()).thenReturn(new URL("https://kubernetes.example.com/"));
+    }
+
+    @Test
+    public void shouldCreateMissingPriorityClassesOnce() throws Exception {
+        respondWith(request -> isDiscovery(request) || request.method().equals("GET") && request.url().encodedPath().endsWith(PriorityClasses.BATCH) ? 200 : request.method().equals("GET") ? 404 : 201);
+        PriorityClasses priorityClasses = new PriorityClasses();
+
+        priorityClasses.ensure("primary", client);
+        priorityClasses.ensure("primary", client);
+
+        assertThat(calls, contains(
+                "GET /apis/scheduling.k8s.io/v1",
+                "GET /apis/scheduling.k8s.io/v1/priorityclasses/gocd-elastic-agent-critical",
+                "POST /apis/scheduling.k8s.io/v1/priorityclasses {\"apiVersion\":\"scheduling.k8s.io/v1\",\"kind\":\"PriorityClass\"," +
+                        "\"metadata\":{\"name\":\"gocd-elastic-agent-critical\",\"labels\":{\"" + Constants.CREATED_BY_LABEL_KEY + "\":\"" + Constants.PLUGIN_ID + "\"}}," +
+                        "\"value\":1000,\"globalDefault\":false,\"description\":\"GoCD elastic agents of latency-critical profiles, which preempt other agents.\"}",
+                "GET /apis/scheduling.k8s.io/v1/priorityclasses/gocd-elastic-agent-batch"));
+    }
+
+    @Test
+    public void shouldTolerateClassesCreatedConcurrently() throws Exception {
+        respondWith(request -> isDiscovery(request) ? 200 : request.method().equals("GET") ? 404 : 409);
+
+        new PriorityClasses().ensure("primary", client);
+
+        assertThat(calls, hasSize(5));
+    }
+
+    @Test
+    public void shouldFallBackToV1beta1OnClustersWithoutV1() throws Exception {
+        respondWith(request -> request.method().equals("GET") ? 404 : 201);
+
+        new PriorityClasses().ensure("primary", client);
+
+        assertThat(calls, hasSize(5));
+        assertThat(calls.get(0), is("GET /apis/scheduling.k8s.io/v1"));
+        assertThat(calls.get(1), is("GET /apis/scheduling.k8s.io/v1beta1/priorityclasses/gocd-elastic-agent-critical"));
+        assertThat(calls.get(2), startsWith("POST /apis/scheduling.k8s.io/v1beta1/priorityclasses {\"apiVersion\":\"scheduling.k8s.io/v1beta1\","));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailWhenClassesCannotBeRead() throws Exception {
+        respondWith(request -> 403);
+
+        new PriorityClasses().ensure("primary", client);
+    }
+
+    private static boolean isDiscovery(Request request) {
+        return request.url().encodedPath().equals("/apis/scheduling.k8s.io/v1");
+    }
+
+    private void respondWith(Function<Request, Integer> status) {
+        OkHttpClient http = new OkHttpClient.Builder().addInterceptor(chain -> {
+            Request request = chain.request();
+            String call = request.method() + " " + request.url().encodedPath();
+            if (request.body() != null) {
+                Buffer body = new Buffer();
+                request.body().writeTo(body);
+                call += " " + body.readUtf8();
+            }
+            calls.add(call);
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(status.apply(request))
+                    .message("")
+                    .body(ResponseBody.create(MediaType.parse("application/json"), "{}"))
+                    .build();
+        }).build();
+        when(((HttpClientAware) client).getHttpClient()).thenReturn(http);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import org.joda.time.Period;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ReconciliationSchedulerTest {
+    @Mock
+    private KubernetesAgentInstances agentInstances;
+    @Mock
+    private PluginRequest pluginRequest;
+    @Mock
+    private ScheduledExecutorService executor;
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ReconciliationScheduler scheduler;
+    private Clock.TestClock clock;
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(pluginRequest.getPluginSettings()).thenReturn(PluginSettings.fromJSON("{\"refresh_interval\": \"30\"}"));
+        clock = new Clock.TestClock();
+        when(agentInstances.snapshot()).thenReturn(new RegistrySnapshot(Collections.singletonMap(ClusterProfile.PRIMARY, Collections.singletonMap("default", "42")), Collections.emptyList()));
+        snapshotFile = new File(temporaryFolder.getRoot(), "agent-registry.snapshot");
+        scheduler = new ReconciliationScheduler(agentInstances, pluginRequest, snapshotFile, executor);
+        scheduler.clock = clock;
+    }
+
+    @Test
+    public void shouldRefreshAndRescheduleWithJitter() throws Exception {
+        scheduler.tick();
+
+        verify(agentInstances).refreshAll(pluginRequest);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(executor).schedule(any(Runnable.class), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        assertThat(delay.getValue(), is(both(greaterThanOrEqualTo(27000L)).and(lessThanOrEqualTo(33000L))));
+    }
+
+    @Test
+    public void shouldSaveRegistrySnapshotAfterReconciling() throws Exception {
+        scheduler.tick();
+
+        assertThat(RegistrySnapshot.readFrom(snapshotFile).resourceVersions().get(ClusterProfile.PRIMARY).get("default"), is("42"));
+    }
+
+    @Test
+    public void shouldRescheduleWhenRefreshFails() throws Exception {
+        doThrow(new RuntimeException("cluster unreachable")).when(agentInstances).refreshAll(pluginRequest);
+
+        scheduler.tick();
+
+        verify(executor).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void shouldNotRefreshOnRequestThreadWhenRegistryIsFresh() throws Exception {
+        scheduler.tick();
+        when(agentInstances.lastSyncedAt()).thenReturn(clock.now());
+        clock.forward(Period.seconds(89));
+
+        scheduler.ensureFresh();
+
+        verify(agentInstances, times(1)).refreshAll(pluginRequest);
+    }
+
+    @Test
+    public void shouldRefreshOnRequestThreadWhenRegistryIsTooStale() throws Exception {
+        scheduler.tick();
+        when(agentInstances.lastSyncedAt()).thenReturn(clock.now());
+        clock.forward(Period.seconds(91));
+
+        scheduler.ensureFresh();
+
+        verify(agentInstances, times(2)).refreshAll(pluginRequest);
+    }
+
+    @Test
+    public void shouldRefreshOnRequestThreadWhenRegistryWasNeverSynced() throws Exception {
+        scheduler.ensureFresh();
+
+        verify(agentInstances).refreshAll(pluginRequest);
+    }
+
+    @Test
+    public void shouldServeStaleRegistryWhenRefreshOnRequestThreadFails() throws Exception {
+        when(agentInstances.lastSyncedAt()).thenReturn(clock.now());
+        clock.forward(Period.minutes(10));
+        doThrow(new RuntimeException("cluster unreachable")).when(agentInstances).refreshAll(pluginRequest);
+
+        scheduler.ensureFresh();
+
+        verify(agentInstances).refreshAll(pluginRequest);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent;
+
+import cd.go.contrib.elasticagent.utils.Util;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class RegistrySnapshotTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldRoundTripInstancesAndResourceVersion() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "nested/agent-registry.snapshot");
+        DateTime createdAt = new DateTime(2017, 10, 1, 12, 0, 0, DateTimeZone.UTC);
+        Map<String, Map<String, String>> resourceVersions = new LinkedHashMap<>();
+        resourceVersions.put(ClusterProfile.PRIMARY, Collections.singletonMap("gocd-agents", "1234"));
+        resourceVersions.put("burst", Collections.singletonMap("gocd-agents", "98"));
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put("Image", "gocd/gocd-agent-alpine-3.5:v17.10.0");
+        properties.put("PodConfiguration", StringUtils.repeat("# a long pod yaml\n", 5000));
+        properties.put("AgentIdleTimeout", null);
+        new RegistrySnapshot(resourceVersions, Arrays.asList(
+                new KubernetesInstance("pod-1", ClusterProfile.PRIMARY, "gocd-agents", createdAt, "prod", properties, "node-1", "Running"),
+                new KubernetesInstance("pod-2", "burst", "gocd-agents", createdAt, null, null, null, null).withCreationState(KubernetesInstance.CreationState.PENDING),
+                new KubernetesInstance("pod-3", "burst", "gocd-agents", createdAt, null, properties, null, null)
+        )).writeTo(file);
+
+        RegistrySnapshot snapshot = RegistrySnapshot.readFrom(file);
+
+        assertThat(snapshot.resourceVersions(), is(resourceVersions));
+        assertThat(snapshot.instances().size(), is(3));
+        KubernetesInstance first = snapshot.instances().get(0);
+        assertThat(first.name(), is("pod-1"));
+        assertThat(first.cluster(), is(ClusterProfile.PRIMARY));
+        assertThat(first.namespace(), is("gocd-agents"));
+        assertThat(first.createdAt(), is(createdAt));
+        assertThat(first.environment(), is("prod"));
+        assertThat(first.getInstanceProperties(), is(properties));
+        assertThat(first.profileFingerprint(), is(Util.fingerprint(properties)));
+        assertThat(first.nodeName(), is("node-1"));
+        assertThat(first.phase(), is("Running"));
+        assertThat(first.creationState(), is(KubernetesInstance.CreationState.CREATED));
+        KubernetesInstance second = snapshot.instances().get(1);
+        assertThat(second.environment(), is(nullValue()));
+        assertThat(second.cluster(), is("burst"));
+        assertThat(second.getInstanceProperties(), is(nullValue()));
+        assertThat(second.nodeName(), is(nullValue()));
+        assertThat(second.creationState(), is(KubernetesInstance.CreationState.PENDING));
+        assertThat(snapshot.instances().get(2).getInstanceProperties(), is(properties));
+    }
+
+    @Test
+    public void shouldOnlyLetItsOwnerReadTheSnapshot() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "agent-registry.snapshot");
+        assumeTrue(Files.getFileStore(temporaryFolder.getRoot().toPath()).supportsFileAttributeView("posix"));
+
+        new RegistrySnapshot(Collections.emptyMap(), Collections.emptyList()).writeTo(file);
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())), is("rw-------"));
+    }
+
+    @Test
+    public void shouldIgnoreMissingOrCorruptSnapshots() throws Exception {
+        File file = new File(temporaryFolder.getRoot(), "agent-registry.snapshot");
+        assertThat(RegistrySnapshot.readFrom(file), is(nullValue()));
+
+        Files.write(file.toPath(), "not a snapshot".getBytes());
+        assertThat(RegistrySnapshot.readFrom(file), is(nullValue()));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package cd.go.contrib.elasticagent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class TokenBucketTest {
+    private long nanoTime;
+    private TokenBucket bucket;
+
+    @Before
+    public void setUp() throws Exception {
+        bucket = new TokenBucket(2, () -> nanoTime);
+    }
+
+    @Test
+    public void shouldAdmitASecondsWorthOfTokensStraightAway() throws Exception {
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    public void shouldQueueCallersOnAnEmptyBucket() throws Exception {
+        bucket.reserve();
+        bucket.reserve();
+
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(500)));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(1000)));
+    }
+
+    @Test
+    public void shouldRefillAtItsRateUpToItsCapacity() throws Exception {
+        bucket.reserve();
+        bucket.reserve();
+
+        nanoTime += TimeUnit.MILLISECONDS.toNanos(500);
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(500)));
+
+        nanoTime += TimeUnit.SECONDS.toNanos(10);
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    public void shouldApplyANewRate() throws Exception {
+        bucket.setTokensPerSecond(1);
+
+        assertThat(bucket.reserve(), is(0L));
+        assertThat(bucket.reserve(), is(TimeUnit.SECONDS.toNanos(1)));
+    }
+}
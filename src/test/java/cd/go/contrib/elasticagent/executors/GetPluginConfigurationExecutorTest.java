@@ -81,6 +81,129 @@ public class GetPluginConfigurationExecutorTest {
                 "    \"required\": false,\n" +
                 "    \"secure\": true,\n" +
                 "    \"display-order\": \"5\"\n" +
+                "  },\n" +
+                "  \"refresh_interval\": {\n" +
+                "    \"display-name\": \"Agent registry refresh interval (in seconds)\",\n" +
+                "    \"default-value\": \"60\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"6\"\n" +
+                "  },\n" +
+                "  \"namespaces\": {\n" +
+                "    \"display-name\": \"Kubernetes Namespaces\",\n" +
+                "    \"default-value\": \"default\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"7\"\n" +
+                "  },\n" +
+                "  \"additional_clusters\": {\n" +
+                "    \"display-name\": \"Additional Kubernetes Clusters\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": true,\n" +
+                "    \"display-order\": \"8\"\n" +
+                "  },\n" +
+                "  \"pod_creation_workers\": {\n" +
+                "    \"display-name\": \"Pod creation workers\",\n" +
+                "    \"default-value\": \"4\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"9\"\n" +
+                "  },\n" +
+                "  \"max_pending_pods_per_profile\": {\n" +
+                "    \"display-name\": \"Maximum pending pods per profile\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"10\"\n" +
+                "  },\n" +
+                "  \"creates_per_second_per_cluster\": {\n" +
+                "    \"display-name\": \"Pod creations per second, per cluster\",\n" +
+                "    \"default-value\": \"10\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"11\"\n" +
+                "  },\n" +
+                "  \"creates_per_second_per_profile\": {\n" +
+                "    \"display-name\": \"Pod creations per second, per elastic profile\",\n" +
+                "    \"default-value\": \"5\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"12\"\n" +
+                "  },\n" +
+                "  \"deletes_per_second_per_cluster\": {\n" +
+                "    \"display-name\": \"Pod deletions per second, per cluster\",\n" +
+                "    \"default-value\": \"10\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"13\"\n" +
+                "  },\n" +
+                "  \"deletes_per_second_per_profile\": {\n" +
+                "    \"display-name\": \"Pod deletions per second, per elastic profile\",\n" +
+                "    \"default-value\": \"5\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"14\"\n" +
+                "  },\n" +
+                "  \"max_pending_pods_per_cluster\": {\n" +
+                "    \"display-name\": \"Maximum pending pods per cluster\",\n" +
+                "    \"default-value\": \"100\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"15\"\n" +
+                "  },\n" +
+                "  \"prepull_images\": {\n" +
+                "    \"display-name\": \"Pre-pull agent images\",\n" +
+                "    \"default-value\": \"false\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"16\"\n" +
+                "  },\n" +
+                "  \"manage_priority_classes\": {\n" +
+                "    \"display-name\": \"Manage agent priority classes\",\n" +
+                "    \"default-value\": \"false\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"17\"\n" +
+                "  },\n" +
+                "  \"pod_deletion_workers\": {\n" +
+                "    \"display-name\": \"Pod deletion workers\",\n" +
+                "    \"default-value\": \"4\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"18\"\n" +
+                "  },\n" +
+                "  \"pod_termination_grace_period\": {\n" +
+                "    \"display-name\": \"Pod termination grace period (in seconds)\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"19\"\n" +
+                "  },\n" +
+                "  \"pod_deletion_propagation\": {\n" +
+                "    \"display-name\": \"Pod deletion propagation policy\",\n" +
+                "    \"default-value\": \"Background\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"20\"\n" +
+                "  },\n" +
+                "  \"ping_time_budget\": {\n" +
+                "    \"display-name\": \"Server ping time budget (in seconds)\",\n" +
+                "    \"default-value\": \"10\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"21\"\n" +
+                "  },\n" +
+                "  \"ping_work_budget\": {\n" +
+                "    \"display-name\": \"Server ping work budget (agents)\",\n" +
+                "    \"default-value\": \"500\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"22\"\n" +
+                "  },\n" +
+                "  \"prepull_pause_image\": {\n" +
+                "    \"display-name\": \"Image pre-puller pause image\",\n" +
+                "    \"default-value\": \"registry.k8s.io/pause:3.9\",\n" +
+                "    \"required\": false,\n" +
+                "    \"secure\": false,\n" +
+                "    \"display-order\": \"23\"\n" +
                 "  }\n" +
                 "}";
 
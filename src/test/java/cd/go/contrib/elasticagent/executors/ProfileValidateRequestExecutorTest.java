@@ -63,4 +63,68 @@ public class ProfileValidateRequestExecutorTest {
         String json = executor.execute().responseBody();
         JSONAssert.assertEquals("[{\"message\":\"Invalid Pod Yaml.\",\"key\":\"PodConfiguration\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldNotAllowResourceRequestsAboveTheLimits() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "false");
+        properties.put("Image", "alpine:3.6");
+        properties.put("MinMemory", "2G");
+        properties.put("MaxMemory", "1024M");
+        properties.put("MinEphemeralStorage", "1G");
+        properties.put("MaxEphemeralStorage", "10G");
+        ProfileValidateRequestExecutor executor = new ProfileValidateRequestExecutor(new ProfileValidateRequest(properties));
+        String json = executor.execute().responseBody();
+        JSONAssert.assertEquals("[{\"message\":\"Minimum Memory must not exceed the Maximum Memory limit.\",\"key\":\"MinMemory\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+    }
+
+    @Test
+    public void shouldNotAllowACpuRequestAboveTheLimit() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "false");
+        properties.put("Image", "alpine:3.6");
+        properties.put("MinCPU", "1.5");
+        properties.put("MaxCPU", "1000m");
+        ProfileValidateRequestExecutor executor = new ProfileValidateRequestExecutor(new ProfileValidateRequest(properties));
+        String json = executor.execute().responseBody();
+        JSONAssert.assertEquals("[{\"message\":\"Minimum CPU must not exceed the Maximum CPU limit.\",\"key\":\"MinCPU\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+    }
+
+    @Test
+    public void shouldValidateCpuQuantities() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "false");
+        properties.put("Image", "alpine:3.6");
+        properties.put("MinCPU", "half");
+        properties.put("MaxCPU", "2 cores");
+        ProfileValidateRequestExecutor executor = new ProfileValidateRequestExecutor(new ProfileValidateRequest(properties));
+        String json = executor.execute().responseBody();
+        JSONAssert.assertEquals("[{\"message\":\"MaxCPU must be a number of cores, e.g. 0.5, or of millicores, e.g. 500m.\",\"key\":\"MaxCPU\"}," +
+                "{\"message\":\"MinCPU must be a number of cores, e.g. 0.5, or of millicores, e.g. 500m.\",\"key\":\"MinCPU\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+    }
+
+    @Test
+    public void shouldRequireLimitsForGuaranteedQoS() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "false");
+        properties.put("Image", "alpine:3.6");
+        properties.put("MaxMemory", "1G");
+        properties.put("GuaranteedQoS", "true");
+        ProfileValidateRequestExecutor executor = new ProfileValidateRequestExecutor(new ProfileValidateRequest(properties));
+        String json = executor.execute().responseBody();
+        JSONAssert.assertEquals("[{\"message\":\"Maximum CPU limit must be set for Guaranteed QoS.\",\"key\":\"MaxCPU\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+    }
+
+    @Test
+    public void shouldValidateCacheVolumes() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SpecifiedUsingPodConfiguration", "false");
+        properties.put("Image", "alpine:3.6");
+        properties.put("CacheVolumes", "maven:/home/go/.m2\nGradle Cache:/home/go/.gradle");
+        properties.put("CacheVolumeType", "NFS");
+        ProfileValidateRequestExecutor executor = new ProfileValidateRequestExecutor(new ProfileValidateRequest(properties));
+        String json = executor.execute().responseBody();
+        JSONAssert.assertEquals("[{\"message\":\"`Gradle Cache:/home/go/.gradle` must be a cache name of lowercase letters, digits and dashes, followed by `:` and a mount path.\",\"key\":\"CacheVolumes\"}," +
+                "{\"message\":\"Cache Volume Type must be HostPath or PersistentVolumeClaim.\",\"key\":\"CacheVolumeType\"}]", json, JSONCompareMode.NON_EXTENSIBLE);
+    }
+}
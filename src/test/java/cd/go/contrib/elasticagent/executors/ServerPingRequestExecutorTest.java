@@ -18,6 +18,7 @@ package cd.go.contrib.elasticagent.executors;
 
 import cd.go.contrib.elasticagent.*;
 import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
+import cd.go.contrib.elasticagent.utils.Util;
 import io.fabric8.kubernetes.api.model.DoneablePod;
 import io.fabric8.kubernetes.api.model.ObjectMeta;
 import io.fabric8.kubernetes.api.model.Pod;
@@ -36,7 +37,10 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static cd.go.contrib.elasticagent.utils.Util.getSimpleDateFormat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -58,7 +62,7 @@ public class ServerPingRequestExecutorTest extends BaseTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        when(factory.kubernetes(any(PluginSettings.class))).thenReturn(mockedClient);
+        when(factory.kubernetes(any(ClusterProfile.class))).thenReturn(mockedClient);
         when(mockedClient.pods()).thenReturn(mockedOperation);
         when(mockedOperation.inNamespace(Constants.KUBERNETES_NAMESPACE_KEY)).thenReturn(mockedNamespaceOperation);
 
@@ -87,6 +91,169 @@ public class ServerPingRequestExecutorTest extends BaseTest {
         verify(pluginRequest).disableAgents(argThat(collectionMatches(values)));
     }
 
+    @Test
+    public void shouldNotDisableIdleWarmAgents() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocdcontrib/ubuntu-docker-elastic-agent");
+        properties.put("WarmPoolSize", "1");
+        KubernetesInstance requested = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+        KubernetesInstance warm = agentInstances.findByProfile(Util.fingerprint(properties)).stream()
+                .filter(instance -> agentInstances.isWarm(instance.name()))
+                .findFirst().get();
+
+        Agent requestedAgent = new Agent(requested.name(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        Agent warmAgent = new Agent(warm.name(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(requestedAgent, warmAgent)));
+
+        agentInstances.clock = new Clock.TestClock().forward(Period.minutes(11));
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+
+        verify(pluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(requestedAgent))));
+    }
+
+    @Test
+    public void shouldKeepClaimedWarmAgentsUntilTheyAreAssignedTheirJob() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocdcontrib/ubuntu-docker-elastic-agent");
+        properties.put("WarmPoolSize", "1");
+        agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+        KubernetesInstance warm = agentInstances.findByProfile(Util.fingerprint(properties)).stream()
+                .filter(instance -> agentInstances.isWarm(instance.name()))
+                .findFirst().get();
+        Clock.TestClock clock = new Clock.TestClock().forward(Period.minutes(11));
+        agentInstances.clock = clock;
+        Agent agent = new Agent(warm.name(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        agentInstances.agentsListed(new Agents(Collections.singletonList(agent)));
+        KubernetesInstance claimed = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+        assertThat(claimed.name(), is(warm.name()));
+        assertFalse(agentInstances.isWarm(claimed.name()));
+
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Collections.singletonList(agent)));
+
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest, never()).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+
+        clock.forward(Period.minutes(5));
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+    }
+
+    @Test
+    public void shouldOnlyClaimWarmAgentsTheServerListedAsIdle() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocdcontrib/ubuntu-docker-elastic-agent");
+        properties.put("WarmPoolSize", "1");
+        agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+        KubernetesInstance warm = agentInstances.findByProfile(Util.fingerprint(properties)).stream()
+                .filter(instance -> agentInstances.isWarm(instance.name()))
+                .findFirst().get();
+
+        agentInstances.agentsListed(new Agents(Collections.singletonList(new Agent(warm.name(), Agent.AgentState.Building, Agent.BuildState.Building, Agent.ConfigState.Enabled))));
+        KubernetesInstance created = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+
+        assertThat(created.name(), is(not(warm.name())));
+        assertThat(agentInstances.isWarm(warm.name()), is(true));
+    }
+
+    @Test
+    public void shouldKeepIdleReusedAgentsUntilTheirIdleTimeout() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocdcontrib/ubuntu-docker-elastic-agent");
+        properties.put("AgentIdleTimeout", "5");
+        KubernetesInstance instance = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+
+        Agent agent = new Agent(instance.name(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Collections.singletonList(agent)));
+
+        Clock.TestClock clock = new Clock.TestClock().forward(Period.minutes(11));
+        agentInstances.clock = clock;
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest, never()).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+
+        clock.forward(Period.minutes(5));
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+    }
+
+    @Test
+    public void shouldDisableAndDeleteIdleAgentsWithMissingPodsInOnePass() throws Exception {
+        Agent agent = new Agent(UUID.randomUUID().toString(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        AgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Collections.singletonList(agent)));
+
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+
+        verify(pluginRequest, times(1)).listAgents();
+        verify(pluginRequest).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+        verify(pluginRequest).deleteAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+        assertThat(agentInstances.findTombstone(agent.elasticAgentId()).isAgentDeleted(), is(true));
+    }
+
+    @Test
+    public void shouldNotDisableAgentsThatTookAJobSinceTheyWereListed() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("Image", "gocdcontrib/ubuntu-docker-elastic-agent");
+        KubernetesInstance instance = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, null), createSettings(), null);
+        Agent agent = new Agent(instance.name(), Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled);
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenAnswer(invocation -> {
+            agentInstances.claimJob(instance.name());
+            return new Agents(Collections.singletonList(agent));
+        });
+
+        agentInstances.clock = new Clock.TestClock().forward(Period.minutes(11));
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+
+        verify(pluginRequest, never()).disableAgents(argThat(collectionMatches(Collections.singletonList(agent))));
+        assertThat(agentInstances.hasInstance(instance.name()), is(true));
+    }
+
+    @Test
+    public void shouldCarryWorkOverBudgetToTheNextPingsOldestFirst() throws Exception {
+        Agent a = new Agent("agent-a", Agent.AgentState.Missing, Agent.BuildState.Unknown, Agent.ConfigState.Enabled);
+        Agent b = new Agent("agent-b", Agent.AgentState.Missing, Agent.BuildState.Unknown, Agent.ConfigState.Enabled);
+        Agent c = new Agent("agent-c", Agent.AgentState.Missing, Agent.BuildState.Unknown, Agent.ConfigState.Enabled);
+        AgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        PingBacklog backlog = new PingBacklog();
+        Clock.TestClock clock = new Clock.TestClock();
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(PluginSettings.fromJSON("{\"go_server_url\": \"https://localhost:8154/go\", \"ping_work_budget\": \"1\"}"));
+
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(b, a)));
+        ping(agentInstances, pluginRequest, backlog, clock);
+        verify(pluginRequest).deleteAgents(argThat(collectionMatches(Collections.singletonList(a))));
+        assertThat(backlog.size(), is(1));
+
+        clock.forward(Period.minutes(1));
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(b, c)));
+        ping(agentInstances, pluginRequest, backlog, clock);
+        verify(pluginRequest).deleteAgents(argThat(collectionMatches(Collections.singletonList(b))));
+
+        ping(agentInstances, pluginRequest, backlog, clock);
+        verify(pluginRequest).deleteAgents(argThat(collectionMatches(Collections.singletonList(c))));
+        assertThat(backlog.size(), is(0));
+    }
+
+    private static void ping(AgentInstances agentInstances, PluginRequest pluginRequest, PingBacklog backlog, Clock clock) throws Exception {
+        ServerPingRequestExecutor executor = new ServerPingRequestExecutor(agentInstances, pluginRequest, backlog);
+        executor.clock = clock;
+        executor.execute();
+    }
+
     private ArgumentMatcher<Collection<Agent>> collectionMatches(final Collection<Agent> values) {
         return new ArgumentMatcher<Collection<Agent>>() {
             @Override
@@ -112,6 +279,48 @@ public class ServerPingRequestExecutorTest extends BaseTest {
         verify(pluginRequest).deleteAgents(argThat(collectionMatches(values)));
     }
 
+    @Test
+    public void shouldNotTerminateOrDeleteAgentsAgainWhileGoCDStillReportsThem() throws Exception {
+        String agentId = UUID.randomUUID().toString();
+        final Agents agents = new Agents(Arrays.asList(new Agent(agentId, Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Disabled)));
+        AgentInstances agentInstances = new KubernetesAgentInstances(factory);
+
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(agents);
+
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+
+        verify(pluginRequest, times(1)).deleteAgents(argThat(collectionMatches(agents.agents())));
+        verify(pluginRequest, never()).disableAgents(argThat(collectionMatches(agents.agents())));
+        assertThat(agentInstances.findTombstone(agentId).isAgentDeleted(), is(true));
+    }
+
+    @Test
+    public void shouldDisableAndDeleteAgentsOfEvictedPods() throws Exception {
+        KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
+        HashMap<String, String> properties = new HashMap<>();
+        properties.put("Image", "foo");
+        KubernetesInstance instance = agentInstances.create(new CreateAgentRequest(null, properties, null), createSettings(), null);
+        agentInstances.evicted(instance.name(), "Evicted");
+        Agent building = new Agent(instance.name(), Agent.AgentState.Building, Agent.BuildState.Building, Agent.ConfigState.Enabled);
+        Agent disabled = new Agent(instance.name(), Agent.AgentState.LostContact, Agent.BuildState.Building, Agent.ConfigState.Disabled);
+
+        PluginRequest pluginRequest = mock(PluginRequest.class);
+        when(pluginRequest.getPluginSettings()).thenReturn(createSettings());
+        when(pluginRequest.listAgents()).thenReturn(new Agents(Arrays.asList(building)), new Agents(Arrays.asList(disabled)));
+
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest).disableAgents(argThat(collectionMatches(Arrays.asList(building))));
+        verify(pluginRequest, never()).deleteAgents(argThat(collectionMatches(Arrays.asList(building))));
+
+        new ServerPingRequestExecutor(agentInstances, pluginRequest).execute();
+        verify(pluginRequest).deleteAgents(argThat(collectionMatches(Arrays.asList(disabled))));
+        verify(podResource, never()).delete();
+        assertThat(agentInstances.findTombstone(instance.name()).isAgentDeleted(), is(true));
+    }
+
     @Test
     public void testShouldTerminateInstancesThatNeverAutoRegistered() throws Exception {
         KubernetesAgentInstances agentInstances = new KubernetesAgentInstances(factory);
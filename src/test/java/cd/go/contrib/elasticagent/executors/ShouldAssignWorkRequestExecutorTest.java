@@ -19,6 +19,7 @@ package cd.go.contrib.elasticagent.executors;
 import cd.go.contrib.elasticagent.*;
 import cd.go.contrib.elasticagent.requests.CreateAgentRequest;
 import cd.go.contrib.elasticagent.requests.ShouldAssignWorkRequest;
+import cd.go.contrib.elasticagent.utils.Util;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import io.fabric8.kubernetes.api.model.DoneablePod;
 import io.fabric8.kubernetes.api.model.Pod;
@@ -31,6 +32,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
@@ -60,7 +62,7 @@ public class ShouldAssignWorkRequestExecutorTest extends BaseTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        when(factory.kubernetes(any(PluginSettings.class))).thenReturn(mockedClient);
+        when(factory.kubernetes(any(ClusterProfile.class))).thenReturn(mockedClient);
         when(mockedClient.pods()).thenReturn(mockedOperation);
         when(mockedOperation.inNamespace(KUBERNETES_NAMESPACE_KEY)).thenReturn(mockedNamespaceOperation);
         when(mockedNamespaceOperation.create(any(Pod.class))).thenReturn(mock(Pod.class));
@@ -87,6 +89,37 @@ public class ShouldAssignWorkRequestExecutorTest extends BaseTest {
         assertThat(response.responseBody(), is("false"));
     }
 
+    @Test
+    public void shouldNotAssignWorkToWarmAgentsUntilTheyAreClaimed() throws Exception {
+        properties.put("WarmPoolSize", "1");
+        CreateAgentRequest createAgentRequest = new CreateAgentRequest(UUID.randomUUID().toString(), properties, environment);
+        agentInstances.create(createAgentRequest, createSettings(), null);
+        String warmAgent = ((KubernetesAgentInstances) agentInstances).findByProfile(Util.fingerprint(properties)).stream()
+                .map(KubernetesInstance::name)
+                .filter(agentInstances::isWarm)
+                .findFirst().get();
+
+        ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(warmAgent, null, null, null), environment, properties);
+        assertThat(new ShouldAssignWorkRequestExecutor(request, agentInstances).execute().responseBody(), is("false"));
+
+        agentInstances.agentsListed(new Agents(Collections.singletonList(new Agent(warmAgent, Agent.AgentState.Idle, Agent.BuildState.Idle, Agent.ConfigState.Enabled))));
+        KubernetesInstance claimed = agentInstances.create(createAgentRequest, createSettings(), null);
+        assertThat(claimed.name(), is(warmAgent));
+        assertThat(new ShouldAssignWorkRequestExecutor(request, agentInstances).execute().responseBody(), is("true"));
+    }
+
+    @Test
+    public void shouldNotAssignMoreJobsToReusedAgentsThanAllowed() throws Exception {
+        properties.put("AgentIdleTimeout", "10");
+        properties.put("MaxJobsPerAgent", "2");
+        KubernetesInstance reused = agentInstances.create(new CreateAgentRequest(UUID.randomUUID().toString(), properties, environment), createSettings(), null);
+        ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(reused.name(), null, null, null), environment, properties);
+
+        assertThat(new ShouldAssignWorkRequestExecutor(request, agentInstances).execute().responseBody(), is("true"));
+        assertThat(new ShouldAssignWorkRequestExecutor(request, agentInstances).execute().responseBody(), is("true"));
+        assertThat(new ShouldAssignWorkRequestExecutor(request, agentInstances).execute().responseBody(), is("false"));
+    }
+
     @Test
     public void shouldNotAssignWorkToContainerWithDifferentProperties() throws Exception {
         ShouldAssignWorkRequest request = new ShouldAssignWorkRequest(new Agent(instance.name(), null, null, null), environment, null);
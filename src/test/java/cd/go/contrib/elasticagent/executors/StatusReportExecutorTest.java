@@ -16,27 +16,32 @@
 
 package cd.go.contrib.elasticagent.executors;
 
-import cd.go.contrib.elasticagent.Constants;
-import cd.go.contrib.elasticagent.KubernetesClientFactory;
-import cd.go.contrib.elasticagent.PluginRequest;
-import cd.go.contrib.elasticagent.PluginSettings;
+import cd.go.contrib.elasticagent.*;
 import cd.go.contrib.elasticagent.builders.PluginStatusReportViewBuilder;
 import cd.go.contrib.elasticagent.model.KubernetesCluster;
+import cd.go.contrib.elasticagent.model.StatusReport;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import freemarker.template.Template;
 import io.fabric8.kubernetes.api.model.NodeList;
 import io.fabric8.kubernetes.api.model.PodList;
 import io.fabric8.kubernetes.client.KubernetesClient;
+import io.fabric8.kubernetes.client.KubernetesClientException;
 import io.fabric8.kubernetes.client.dsl.internal.NodeOperationsImpl;
 import io.fabric8.kubernetes.client.dsl.internal.PodOperationsImpl;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class StatusReportExecutorTest {
@@ -52,8 +57,11 @@ public class StatusReportExecutorTest {
         pluginSettings = mock(PluginSettings.class);
         kubernetesClient = mock(KubernetesClient.class);
 
+        ClusterProfile primary = new ClusterProfile(ClusterProfile.PRIMARY, "https://cluster.example.com", null, null, null);
         when(pluginRequest.getPluginSettings()).thenReturn(pluginSettings);
-        when(kubernetesClientFactory.kubernetes(pluginSettings)).thenReturn(kubernetesClient);
+        when(pluginSettings.getClusters()).thenReturn(Collections.singletonList(primary));
+        when(pluginSettings.getNamespaces()).thenReturn(Collections.singletonList(Constants.KUBERNETES_NAMESPACE_KEY));
+        when(kubernetesClientFactory.kubernetes(primary)).thenReturn(kubernetesClient);
     }
 
     @Test
@@ -65,6 +73,7 @@ public class StatusReportExecutorTest {
         when(kubernetesClient.nodes()).thenReturn(nodes);
 
         when(pods.inNamespace(Constants.KUBERNETES_NAMESPACE_KEY)).thenReturn(pods);
+        when(pods.withLabels(Constants.ELASTIC_AGENT_POD_SELECTOR)).thenReturn(pods);
         when(pods.list()).thenReturn(new PodList());
         when(kubernetesClient.pods()).thenReturn(pods);
 
@@ -72,11 +81,38 @@ public class StatusReportExecutorTest {
         final Template template = mock(Template.class);
 
         when(builder.getTemplate("status-report.template.ftlh")).thenReturn(template);
-        when(builder.build(eq(template), any(KubernetesCluster.class))).thenReturn("status-report");
+        when(builder.build(eq(template), any(StatusReport.class))).thenReturn("status-report");
 
-        final GoPluginApiResponse response = new StatusReportExecutor(pluginRequest, kubernetesClientFactory, builder).execute();
+        final GoPluginApiResponse response = new StatusReportExecutor(pluginRequest, new KubernetesAgentInstances(kubernetesClientFactory), kubernetesClientFactory, builder).execute();
 
         assertThat(response.responseCode(), is(200));
         assertThat(response.responseBody(), is("{\"view\":\"status-report\"}"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldReportClustersThatCannotBeReadWithoutFailingTheReport() throws Exception {
+        ClusterProfile primary = new ClusterProfile(ClusterProfile.PRIMARY, "https://cluster.example.com", null, null, null);
+        ClusterProfile burst = new ClusterProfile("burst", "https://burst.example.com", null, null, null);
+        when(pluginSettings.getClusters()).thenReturn(Arrays.asList(primary, burst));
+        NodeOperationsImpl nodes = mock(NodeOperationsImpl.class);
+        when(nodes.list()).thenThrow(new KubernetesClientException("connection refused"));
+        when(kubernetesClient.nodes()).thenReturn(nodes);
+        when(kubernetesClientFactory.kubernetes(burst)).thenThrow(new IllegalStateException("no credentials"));
+
+        final PluginStatusReportViewBuilder builder = mock(PluginStatusReportViewBuilder.class);
+        final Template template = mock(Template.class);
+        when(builder.getTemplate("status-report.template.ftlh")).thenReturn(template);
+        when(builder.build(eq(template), any(StatusReport.class))).thenReturn("status-report");
+
+        final GoPluginApiResponse response = new StatusReportExecutor(pluginRequest, new KubernetesAgentInstances(kubernetesClientFactory), kubernetesClientFactory, builder).execute();
+
+        assertThat(response.responseCode(), is(200));
+        ArgumentCaptor<StatusReport> statusReport = ArgumentCaptor.forClass(StatusReport.class);
+        verify(builder).build(eq(template), statusReport.capture());
+        List<KubernetesCluster> clusters = statusReport.getValue().getClusters();
+        assertThat(clusters.size(), is(2));
+        assertThat(clusters.get(0).getError(), is("connection refused"));
+        assertThat(clusters.get(1).getName(), is("burst"));
+        assertThat(clusters.get(1).getError(), is("no credentials"));
+    }
+}
@@ -16,6 +16,7 @@
 
 package cd.go.contrib.elasticagent.model;
 
+import cd.go.contrib.elasticagent.ClusterProfile;
 import cd.go.contrib.elasticagent.Constants;
 import io.fabric8.kubernetes.api.model.Node;
 import io.fabric8.kubernetes.api.model.NodeList;
@@ -26,6 +27,7 @@ import io.fabric8.kubernetes.client.dsl.internal.PodOperationsImpl;
 import org.junit.Test;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.Matchers.hasSize;
@@ -44,10 +46,11 @@ public class KubernetesClusterTest {
         when(kubernetesClient.nodes()).thenReturn(nodes);
 
         when(pods.inNamespace(Constants.KUBERNETES_NAMESPACE_KEY)).thenReturn(pods);
+        when(pods.withLabels(Constants.ELASTIC_AGENT_POD_SELECTOR)).thenReturn(pods);
         when(pods.list()).thenReturn(new PodList());
         when(kubernetesClient.pods()).thenReturn(pods);
 
-        final KubernetesCluster cluster = new KubernetesCluster(kubernetesClient);
+        final KubernetesCluster cluster = new KubernetesCluster(ClusterProfile.PRIMARY, kubernetesClient, Collections.singletonList(Constants.KUBERNETES_NAMESPACE_KEY));
 
         verify(kubernetesClient, times(1)).nodes();
         verify(kubernetesClient, times(1)).pods();
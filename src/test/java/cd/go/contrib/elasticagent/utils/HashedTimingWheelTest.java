@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.utils;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class HashedTimingWheelTest {
+    private DateTime now;
+    private HashedTimingWheel<String> wheel;
+
+    @Before
+    public void setUp() throws Exception {
+        now = new DateTime(2017, 10, 1, 12, 0, 0);
+        wheel = new HashedTimingWheel<>(1000, 16);
+    }
+
+    @Test
+    public void shouldExpireOnlyKeysWhoseDeadlinePassed() throws Exception {
+        wheel.advance(now);
+        wheel.schedule("a", now.plusSeconds(2));
+        wheel.schedule("b", now.plusSeconds(5));
+
+        assertThat(wheel.advance(now.plusSeconds(1)), is(empty()));
+        assertThat(wheel.advance(now.plusSeconds(3)), contains("a"));
+        assertThat(wheel.advance(now.plusSeconds(10)), contains("b"));
+        assertThat(wheel.size(), is(0));
+    }
+
+    @Test
+    public void shouldKeepKeysScheduledForALaterRevolutionOfTheWheel() throws Exception {
+        wheel.advance(now);
+        wheel.schedule("later", now.plusSeconds(20));
+
+        assertThat(wheel.advance(now.plusSeconds(4)), is(empty()));
+        assertThat(wheel.advance(now.plusSeconds(15)), is(empty()));
+        assertThat(wheel.advance(now.plusSeconds(20)), contains("later"));
+    }
+
+    @Test
+    public void shouldExpireKeysScheduledInThePastOnNextAdvance() throws Exception {
+        wheel.advance(now);
+        wheel.schedule("overdue", now.minusSeconds(30));
+
+        assertThat(wheel.advance(now), contains("overdue"));
+    }
+
+    @Test
+    public void shouldExpireEverythingDueWhenAdvancingMoreThanOneRevolution() throws Exception {
+        wheel.schedule("a", now.plusSeconds(1));
+        wheel.schedule("b", now.plusSeconds(40));
+        wheel.schedule("c", now.plusMinutes(5));
+
+        assertThat(wheel.advance(now.plusMinutes(1)), containsInAnyOrder("a", "b"));
+        assertThat(wheel.size(), is(1));
+    }
+
+    @Test
+    public void shouldNotExpireCancelledKeys() throws Exception {
+        wheel.advance(now);
+        wheel.schedule("a", now.plusSeconds(1));
+        wheel.cancel("a");
+
+        assertThat(wheel.advance(now.plusSeconds(2)), is(empty()));
+    }
+
+    @Test
+    public void shouldRescheduleExistingKey() throws Exception {
+        wheel.advance(now);
+        wheel.schedule("a", now.plusSeconds(1));
+        wheel.schedule("a", now.plusSeconds(8));
+
+        assertThat(wheel.advance(now.plusSeconds(2)), is(empty()));
+        assertThat(wheel.advance(now.plusSeconds(8)), contains("a"));
+    }
+}
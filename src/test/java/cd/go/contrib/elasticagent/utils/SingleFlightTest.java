@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package cd.go.contrib.elasticagent.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    private final SingleFlight<Integer> singleFlight = new SingleFlight<>();
+
+    @Test
+    public void shouldShareTheCallInFlightWithCallersArrivingMeanwhile() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Integer> first = executor.submit(() -> singleFlight.run(() -> {
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                return calls.incrementAndGet();
+            }));
+            started.await(10, TimeUnit.SECONDS);
+
+            AtomicInteger secondResult = new AtomicInteger();
+            Thread second = new Thread(() -> {
+                try {
+                    secondResult.set(singleFlight.run(calls::incrementAndGet));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            second.start();
+            // parked waiting for the call in flight
+            while (second.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            second.join(10000);
+
+            assertThat(first.get(10, TimeUnit.SECONDS), is(1));
+            assertThat(secondResult.get(), is(1));
+            assertThat(calls.get(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldRunAgainOnceTheCallInFlightCompleted() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+
+        singleFlight.run(calls::incrementAndGet);
+
+        assertThat(singleFlight.run(calls::incrementAndGet), is(2));
+        assertThat(singleFlight.isRunning(), is(false));
+    }
+
+    @Test
+    public void shouldRethrowTheExceptionOfTheCall() throws Exception {
+        try {
+            singleFlight.run(() -> {
+                throw new IllegalStateException("cluster unreachable");
+            });
+            fail("Expected the exception of the call");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("cluster unreachable"));
+        }
+        assertThat(singleFlight.isRunning(), is(false));
+    }
+}